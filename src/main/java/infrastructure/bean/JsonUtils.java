@@ -28,6 +28,10 @@ public final class JsonUtils {
         JsonUtils.objectMapper = objectMapper;
     }
 
+    public static ObjectMapper getObjectMapper() {
+        return objectMapper;
+    }
+
     public static String toJson(Object object) {
         return uncheck(() -> objectMapper.writeValueAsString(object));
     }
@@ -4,6 +4,13 @@ public enum SystemErrorCode implements ErrorCode {
 
     SYSTEM_ERROR(100000),
     MQ_MSG_ILLEGAL(100001),
+    MQ_QUEUE_FULL(100002),
+    MQ_ACK_TIMEOUT(100003),
+    MQ_MSG_EXPIRED(100004),
+    MQ_REQUEST_TIMEOUT(100005),
+    MQ_REQUEST_FAILED(100006),
+    MQ_ACK_UNSUPPORTED(100007),
+    MQ_REQUEST_UNSUPPORTED(100008),
     ;
 
     private int code;
@@ -1,18 +1,57 @@
 package infrastructure.mq;
 
+import infrastructure.mq.internal.DeadLetterQueue;
+import infrastructure.mq.internal.HistogramMessageMetrics;
+import infrastructure.mq.internal.InMemoryDeadLetterService;
+import infrastructure.mq.internal.LocalMessageDeduplicator;
+import infrastructure.mq.internal.LocalMessageDispatcher;
+import infrastructure.mq.internal.MessageAcknowledger;
 import infrastructure.mq.internal.MessageConverter;
+import infrastructure.mq.internal.MessageDeduplicator;
+import infrastructure.mq.internal.MessageOutbox;
 import infrastructure.mq.internal.MessageQueueServiceImpl;
 import infrastructure.mq.internal.MessageReceiverImpl;
+import infrastructure.mq.internal.MessageRedelivery;
+import infrastructure.mq.internal.OutboxMapper;
+import infrastructure.mq.internal.RedisDeadLetterService;
+import infrastructure.mq.internal.RedisMessageDeduplicator;
+import infrastructure.mq.internal.ReplyCorrelator;
+import infrastructure.mq.internal.StripedExecutor;
+import infrastructure.mq.internal.TransactionalMessageQueueService;
+import infrastructure.mq.provider.BufferPool;
 import infrastructure.mq.provider.MessageSender;
+import infrastructure.mq.provider.log.LogMessageSender;
+import infrastructure.mq.provider.redis.LettuceStreamCommands;
+import infrastructure.mq.provider.redis.LuaScheduleCommands;
+import infrastructure.mq.provider.redis.RedisScheduledMessageSender;
+import infrastructure.mq.provider.redis.RedisStreamMessageConsumer;
+import infrastructure.mq.provider.redis.RedisStreamMessageSender;
+import infrastructure.mq.provider.threading.ConcurrencyLimiter;
+import infrastructure.mq.provider.threading.DispatchMode;
+import infrastructure.mq.provider.threading.OverflowPolicy;
+import infrastructure.mq.provider.threading.SchedulerMode;
 import infrastructure.mq.provider.threading.ThreadingMessageSender;
 import infrastructure.mq.service.MessageListener;
 import infrastructure.mq.service.MessageQueueService;
+import infrastructure.mq.service.RedeliveryPolicy;
+import org.mybatis.spring.SqlSessionTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 /**
@@ -22,20 +61,213 @@ import java.util.stream.Collectors;
 public class MessageQueueConfig {
 
     @Bean
-    public MessageQueueService messageQueueService(MessageSender messageSender, List<MessageListener> listeners) {
-        Map<String, Class> typeToBodyClassMap = listeners.stream().collect(Collectors.toMap(
-                MessageListener::forMessageType, MessageListener::forMessageClass));
-        MessageConverter messageConverter = new MessageConverter(typeToBodyClassMap);
+    public MessageConverter messageConverter(
+            List<MessageListener> listeners,
+            @Value("${summerwind.mq.compression.threshold-bytes:0}") int compressionThreshold,
+            @Value("${summerwind.mq.compression.max-decompressed-bytes:16777216}") int maxDecompressedBytes,
+            @Value("${summerwind.mq.buffer-pool.direct:false}") boolean directBuffers,
+            @Value("${summerwind.mq.buffer-pool.max-pooled-bytes:1048576}") int maxPooledBytes,
+            @Value("${summerwind.mq.buffer-pool.max-per-size:8}") int maxBuffersPerSize,
+            @Value("${summerwind.mq.buffer-pool.max-free-bytes:8388608}") long maxFreeBytes) {
+        //listeners of one message type share the decoded body, so they must agree on its type
+        Map<String, Type> typeToBodyTypeMap = listeners.stream().collect(Collectors.toMap(
+                MessageListener::forMessageType, MessageListener::forMessageGenericType, (a, b) -> {
+                    if (!a.equals(b)) {
+                        throw new IllegalStateException("Listeners of one message type declare different body types: " +
+                                a.getTypeName() + ", " + b.getTypeName());
+                    }
+                    return a;
+                }));
+        Map<String, Duration> timeToLiveMap = listeners.stream().filter(l -> l.timeToLive() != null)
+                .collect(Collectors.toMap(MessageListener::forMessageType, MessageListener::timeToLive,
+                        (a, b) -> a.compareTo(b) >= 0 ? a : b));
+        return new MessageConverter(typeToBodyTypeMap, compressionThreshold, timeToLiveMap,
+                new BufferPool(directBuffers, maxPooledBytes, maxBuffersPerSize, maxFreeBytes),
+                maxDecompressedBytes);
+    }
+
+    @Bean
+    public DeadLetterQueue deadLetterService(
+            MessageSender messageSender, MessageConverter messageConverter,
+            @Value("${summerwind.mq.dead-letter.capacity:10000}") int capacity,
+            @Value("${summerwind.mq.dead-letter.mode:}") String mode,
+            Optional<StringRedisTemplate> stringRedisTemplate) {
+        //dead letters of a cluster-wide sender must outlive the node that dead-lettered them
+        if ("redis".equals(mode) || (mode.isEmpty() && !messageSender.isReceivedInProcess())) {
+            return new RedisDeadLetterService(stringRedisTemplate.orElseThrow(
+                    () -> new IllegalStateException("StringRedisTemplate required by redis dead letters")),
+                    capacity, messageSender, messageConverter);
+        }
+        return new InMemoryDeadLetterService(capacity, messageSender, messageConverter);
+    }
+
+    @Bean
+    public HistogramMessageMetrics messageMetrics() {
+        return new HistogramMessageMetrics();
+    }
+
+    @Bean
+    public ConcurrencyLimiter concurrencyLimiter(
+            @Value("${summerwind.mq.threading.max-concurrency-per-type:256}") int maxConcurrencyPerType,
+            @Value("${summerwind.mq.threading.adaptive-concurrency.enabled:false}") boolean adaptive,
+            @Value("${summerwind.mq.threading.adaptive-concurrency.initial-limit:8}") int initialLimit,
+            @Value("${summerwind.mq.threading.adaptive-concurrency.min-limit:1}") int minLimit) {
+        //an adaptive limit starts at initial-limit and never exceeds max-concurrency-per-type
+        return adaptive ? ConcurrencyLimiter.aimd(initialLimit, minLimit, maxConcurrencyPerType) :
+                ConcurrencyLimiter.fixed(maxConcurrencyPerType);
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public StripedExecutor stripedExecutor(
+            @Value("${summerwind.mq.partition.queue-capacity:10000}") int queueCapacity,
+            @Value("${summerwind.mq.partition.offer-timeout-millis:1000}") long offerTimeoutMillis) {
+        return new StripedExecutor(Runtime.getRuntime().availableProcessors(), queueCapacity, offerTimeoutMillis);
+    }
+
+    @Bean
+    public MessageQueueService messageQueueService(
+            MessageSender messageSender, MessageConverter messageConverter, List<MessageListener> listeners,
+            DeadLetterQueue deadLetterService, HistogramMessageMetrics messageMetrics,
+            ConcurrencyLimiter concurrencyLimiter, StripedExecutor stripedExecutor,
+            @Value("${summerwind.mq.redelivery.max-attempts:3}") int maxAttempts,
+            @Value("${summerwind.mq.redelivery.initial-backoff-millis:1000}") long initialBackoffMillis,
+            @Value("${summerwind.mq.redelivery.max-backoff-millis:60000}") long maxBackoffMillis,
+            @Value("${summerwind.mq.local-delivery.enabled:false}") boolean localDeliveryEnabled,
+            @Value("${summerwind.mq.local-delivery.offer-timeout-millis:100}") long localOfferTimeoutMillis,
+            @Value("${summerwind.mq.threading.dispatch-mode:PLATFORM}") DispatchMode dispatchMode,
+            @Value("${summerwind.mq.bulkhead.threads:0}") int bulkheadThreads,
+            Optional<MessageDeduplicator> messageDeduplicator,
+            @Value("${summerwind.mq.schedule.mode:local}") String scheduleMode,
+            @Value("${summerwind.mq.schedule.batch-size:64}") int scheduleBatchSize,
+            @Value("${summerwind.mq.schedule.poll-interval-millis:500}") long schedulePollIntervalMillis,
+            @Value("${summerwind.mq.schedule.lease-millis:30000}") long scheduleLeaseMillis,
+            Optional<StringRedisTemplate> stringRedisTemplate,
+            @Value("${summerwind.mq.ack.timeout-millis:30000}") long ackTimeoutMillis,
+            @Value("${summerwind.mq.transaction-aware.enabled:false}") boolean transactionAware,
+            Optional<MessageOutbox> messageOutbox,
+            DefaultListableBeanFactory beanFactory) {
+        //scheduled messages of the service are claimed cluster-wide in redis schedule mode; a sender read by
+        //other nodes acks a failed message once its redelivery is scheduled, so that must survive this node too
+        RedisScheduledMessageSender scheduledMessageSender = null;
+        if ("redis".equals(scheduleMode) || !messageSender.isReceivedInProcess()) {
+            scheduledMessageSender = new RedisScheduledMessageSender(messageSender,
+                    new LuaScheduleCommands(stringRedisTemplate.orElseThrow(
+                            () -> new IllegalStateException("StringRedisTemplate required by redis schedule"))),
+                    scheduleBatchSize, schedulePollIntervalMillis, scheduleLeaseMillis);
+            //not a bean itself, it would be a second MessageSender; stop its poller with the context
+            beanFactory.registerDisposableBean("redisScheduledMessageSender", scheduledMessageSender);
+        }
+        RedeliveryPolicy defaultPolicy = new RedeliveryPolicy(maxAttempts,
+                Duration.ofMillis(initialBackoffMillis), Duration.ofMillis(maxBackoffMillis), 2, 0.2);
+        MessageRedelivery messageRedelivery = new MessageRedelivery(
+                messageSender.isReceivedInProcess() ? messageSender : scheduledMessageSender,
+                messageConverter, deadLetterService, defaultPolicy);
 
         //build and register a message receiver to MessageReceiver.getInstance()
-        new MessageReceiverImpl(messageConverter, listeners);
+        int processors = Runtime.getRuntime().availableProcessors();
+        MessageAcknowledger messageAcknowledger = new MessageAcknowledger(ackTimeoutMillis);
+        ReplyCorrelator replyCorrelator = new ReplyCorrelator(messageSender, messageConverter);
+        MessageReceiverImpl messageReceiver = new MessageReceiverImpl(messageConverter, listeners,
+                messageRedelivery, stripedExecutor, bulkheadThreads > 0 ? bulkheadThreads : processors,
+                messageDeduplicator.orElse(null), messageAcknowledger, replyCorrelator, messageMetrics,
+                concurrencyLimiter);
 
-        return new MessageQueueServiceImpl(messageSender, messageConverter);
+        MessageSender serviceSender = "redis".equals(scheduleMode) ? scheduledMessageSender : messageSender;
+
+        //local delivery is opt-in: listeners get the sender's own object, and the sender's queue bounds,
+        //statistics and shedding do not apply; virtual dispatch and adaptive limits need the sender's queues
+        MessageQueueServiceImpl messageQueueService;
+        if (localDeliveryEnabled && messageSender.isInProcess() && dispatchMode == DispatchMode.PLATFORM &&
+                !concurrencyLimiter.isAdaptive()) {
+            messageQueueService = new MessageQueueServiceImpl(serviceSender, messageConverter, messageAcknowledger,
+                    replyCorrelator, new LocalMessageDispatcher(messageReceiver, processors, localOfferTimeoutMillis));
+        } else {
+            messageQueueService = new MessageQueueServiceImpl(serviceSender, messageConverter, messageAcknowledger,
+                    replyCorrelator);
+        }
+        if (transactionAware || messageOutbox.isPresent()) {
+            return new TransactionalMessageQueueService(messageQueueService, messageConverter,
+                    messageOutbox.orElse(null));
+        }
+        return messageQueueService;
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "summerwind.mq.outbox.enabled", havingValue = "true")
+    public MessageOutbox messageOutbox(
+            MessageSender messageSender, SqlSessionTemplate sqlSessionTemplate,
+            @Value("${summerwind.mq.outbox.lease-millis:30000}") long leaseMillis,
+            @Value("${summerwind.mq.outbox.poll-interval-millis:5000}") long pollIntervalMillis,
+            @Value("${summerwind.mq.outbox.batch-size:100}") int batchSize) {
+        //the mapper lives outside the application's mapper scan
+        if (!sqlSessionTemplate.getConfiguration().hasMapper(OutboxMapper.class)) {
+            sqlSessionTemplate.getConfiguration().addMapper(OutboxMapper.class);
+        }
+        return new MessageOutbox(sqlSessionTemplate.getMapper(OutboxMapper.class), messageSender, leaseMillis,
+                pollIntervalMillis, batchSize);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "summerwind.mq.dedupe.mode", havingValue = "local", matchIfMissing = true)
+    public MessageDeduplicator localMessageDeduplicator(
+            @Value("${summerwind.mq.dedupe.window-millis:600000}") long windowMillis,
+            @Value("${summerwind.mq.dedupe.capacity:100000}") int capacity,
+            @Value("${summerwind.mq.dedupe.lease-millis:60000}") long leaseMillis) {
+        return new LocalMessageDeduplicator(windowMillis, capacity, leaseMillis);
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "summerwind.mq.dedupe.mode", havingValue = "redis")
+    public MessageDeduplicator redisMessageDeduplicator(
+            StringRedisTemplate stringRedisTemplate,
+            @Value("${summerwind.mq.dedupe.window-millis:600000}") long windowMillis,
+            @Value("${summerwind.mq.dedupe.lease-millis:60000}") long leaseMillis) {
+        return new RedisMessageDeduplicator(stringRedisTemplate, windowMillis, leaseMillis);
+    }
+
+    @Bean
+    @ConditionalOnMissingBean(MessageSender.class)
+    @ConditionalOnProperty(name = "summerwind.mq.sender", havingValue = "log")
+    public MessageSender logMessageSender(
+            @Value("${summerwind.mq.log.directory:mq-log}") String directory,
+            @Value("${summerwind.mq.log.segment-size:67108864}") int segmentSize) throws IOException {
+        return new LogMessageSender(new File(directory), segmentSize);
+    }
+
+    @Bean
+    @ConditionalOnMissingBean(MessageSender.class)
+    @ConditionalOnProperty(name = "summerwind.mq.sender", havingValue = "redis-stream")
+    public MessageSender redisStreamMessageSender(
+            RedisConnectionFactory redisConnectionFactory,
+            @Value("${summerwind.mq.redis.stream-max-length:1000000}") long maxLength) {
+        return new RedisStreamMessageSender(new LettuceStreamCommands(redisConnectionFactory),
+                RedisStreamMessageSender.STREAM_KEY, maxLength);
+    }
+
+    @Bean
+    @DependsOn("messageQueueService")
+    @ConditionalOnProperty(name = "summerwind.mq.sender", havingValue = "redis-stream")
+    public RedisStreamMessageConsumer redisStreamMessageConsumer(
+            RedisConnectionFactory redisConnectionFactory,
+            @Value("${summerwind.mq.redis.prefetch-count:64}") int prefetchCount,
+            @Value("${summerwind.mq.redis.claim-idle-millis:60000}") long claimIdleMillis) {
+        return new RedisStreamMessageConsumer(new LettuceStreamCommands(redisConnectionFactory),
+                RedisStreamMessageSender.STREAM_KEY, prefetchCount, claimIdleMillis);
     }
 
     @Bean
     @ConditionalOnMissingBean(MessageSender.class)
-    public MessageSender messageSender() {
-        return new ThreadingMessageSender();
+    public MessageSender messageSender(
+            @Value("${summerwind.mq.threading.scheduler-mode:EXECUTOR}") SchedulerMode schedulerMode,
+            @Value("${summerwind.mq.threading.queue-capacity:10000}") int queueCapacity,
+            @Value("${summerwind.mq.threading.overflow-policy:BLOCK}") OverflowPolicy overflowPolicy,
+            @Value("${summerwind.mq.threading.block-timeout-millis:1000}") long blockTimeoutMillis,
+            @Value("${summerwind.mq.threading.spill-directory:mq-spill}") String spillDirectory,
+            @Value("${summerwind.mq.threading.shed-queue-depth:0}") int shedQueueDepth,
+            @Value("${summerwind.mq.threading.shed-max-age-millis:60000}") long shedMaxAgeMillis,
+            @Value("${summerwind.mq.threading.dispatch-mode:PLATFORM}") DispatchMode dispatchMode,
+            ConcurrencyLimiter concurrencyLimiter) {
+        return new ThreadingMessageSender(schedulerMode, queueCapacity, overflowPolicy, blockTimeoutMillis,
+                new File(spillDirectory), shedQueueDepth, shedMaxAgeMillis, dispatchMode, concurrencyLimiter);
     }
 }
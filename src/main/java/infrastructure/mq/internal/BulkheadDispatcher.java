@@ -0,0 +1,111 @@
+package infrastructure.mq.internal;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import infrastructure.mq.service.BulkheadPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 按消息类型隔离的分发：每种类型有各自的并发上限与等待队列，共享一组工作线程。
+ * <p>工作线程从优先级队列中取任务，高优先级类型的任务先于低优先级类型执行，同一优先级按提交顺序执行。
+ */
+class BulkheadDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(BulkheadDispatcher.class);
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+
+    BulkheadDispatcher(int threads) {
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("mq-bulkhead-%d").setDaemon(true).build());
+    }
+
+    Bulkhead newBulkhead(String messageType, BulkheadPolicy policy) {
+        return new Bulkhead(messageType, policy);
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    class Bulkhead {
+        private final String messageType;
+        private final BulkheadPolicy policy;
+        private final BlockingQueue<Runnable> waiting;
+        private int running;
+
+        Bulkhead(String messageType, BulkheadPolicy policy) {
+            this.messageType = messageType;
+            this.policy = policy;
+            this.waiting = new ArrayBlockingQueue<>(policy.getQueueCapacity());
+        }
+
+        /**
+         * @return 等待队列已满时返回false
+         */
+        boolean offer(Runnable task) {
+            if (!waiting.offer(task)) {
+                return false;
+            }
+            scheduleNext();
+            return true;
+        }
+
+        int getQueueSize() {
+            return waiting.size();
+        }
+
+        private void scheduleNext() {
+            Runnable task;
+            synchronized (this) {
+                if (running >= policy.getMaxConcurrency() || (task = waiting.poll()) == null) {
+                    return;
+                }
+                running++;
+            }
+            executor.execute(new PrioritizedTask(policy.getPriority().ordinal(), sequence.getAndIncrement(), () -> {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    logger.error("bulkhead task error, type: " + messageType, ex);
+                } finally {
+                    synchronized (this) {
+                        running--;
+                    }
+                    scheduleNext();
+                }
+            }));
+        }
+    }
+
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        private final int priority;
+        private final long sequence;
+        private final Runnable task;
+
+        PrioritizedTask(int priority, long sequence, Runnable task) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            int result = Integer.compare(priority, other.priority);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package infrastructure.mq.internal;
+
+import infrastructure.mq.provider.ScheduledTask;
+import infrastructure.mq.provider.threading.MessageScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.support.CronSequenceGenerator;
+
+import java.util.Date;
+
+/**
+ * 按 cron 表达式重复执行的任务：每次只调度下一次触发，触发后再按表达式计算下一次。
+ */
+class CronScheduledTask implements ScheduledTask {
+    private static final Logger logger = LoggerFactory.getLogger(CronScheduledTask.class);
+
+    private final MessageScheduler scheduler;
+    private final CronSequenceGenerator sequenceGenerator;
+    private final Runnable task;
+    private ScheduledTask current;
+    private long scheduledTime;
+    private boolean cancelled;
+
+    /**
+     * @param firstTime 首次触发时间，为null时按表达式计算
+     */
+    CronScheduledTask(MessageScheduler scheduler, CronSequenceGenerator sequenceGenerator, Runnable task, Date firstTime) {
+        this.scheduler = scheduler;
+        this.sequenceGenerator = sequenceGenerator;
+        this.task = task;
+        scheduleAt(firstTime == null ? sequenceGenerator.next(new Date()) : firstTime);
+    }
+
+    @Override
+    public synchronized boolean cancel() {
+        if (cancelled) {
+            return false;
+        }
+        cancelled = true;
+        current.cancel();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    private synchronized void scheduleAt(Date time) {
+        if (cancelled) {
+            return;
+        }
+        scheduledTime = time.getTime();
+        current = scheduler.schedule(this::fire, scheduledTime - System.currentTimeMillis());
+    }
+
+    private void fire() {
+        try {
+            task.run();
+        } catch (RuntimeException ex) {
+            logger.error("cron message send error", ex);
+        } finally {
+            //never fire twice for the same time even if the timer fired early
+            long from;
+            synchronized (this) {
+                from = Math.max(System.currentTimeMillis(), scheduledTime);
+            }
+            scheduleAt(sequenceGenerator.next(new Date(from)));
+        }
+    }
+}
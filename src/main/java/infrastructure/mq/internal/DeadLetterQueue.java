@@ -0,0 +1,13 @@
+package infrastructure.mq.internal;
+
+import infrastructure.mq.service.DeadLetterService;
+
+/**
+ * 保存超过最大投递次数的消息的死信队列
+ */
+public interface DeadLetterQueue extends DeadLetterService {
+    /**
+     * @param cause 最后一次处理失败的异常
+     */
+    void add(MessageEnvelope envelope, Exception cause);
+}
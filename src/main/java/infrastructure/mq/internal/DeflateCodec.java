@@ -0,0 +1,84 @@
+package infrastructure.mq.internal;
+
+import infrastructure.errorcode.SystemErrorCode;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate 压缩。Deflater 与 Inflater 持有本地内存，池化复用，避免每条消息重新分配。
+ * <p>解压前按消息头声明的原长度分配输出，原长度超过上限的消息不解压，解压结果须与原长度一致。
+ */
+class DeflateCodec {
+    private final BlockingQueue<Deflater> deflaters;
+    private final BlockingQueue<Inflater> inflaters;
+    private final int maxRawLength;
+
+    /**
+     * @param maxRawLength 解压后的最大字节数
+     */
+    DeflateCodec(int poolSize, int maxRawLength) {
+        this.maxRawLength = maxRawLength;
+        deflaters = new ArrayBlockingQueue<>(poolSize);
+        inflaters = new ArrayBlockingQueue<>(poolSize);
+    }
+
+    /**
+     * @return 压缩后不小于原长度时返回null
+     */
+    byte[] compress(byte[] bytes, int offset, int length) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        try {
+            deflater.setInput(bytes, offset, length);
+            deflater.finish();
+            byte[] out = new byte[length];
+            int size = 0;
+            while (!deflater.finished() && size < out.length) {
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            return deflater.finished() && size < length ? Arrays.copyOf(out, size) : null;
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    byte[] decompress(byte[] bytes, int offset, int length, int rawLength) {
+        SystemErrorCode.MQ_MSG_ILLEGAL.throwIf(rawLength < 0 || rawLength > maxRawLength);
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            inflater.setInput(bytes, offset, length);
+            byte[] out = new byte[rawLength];
+            int size = 0;
+            while (!inflater.finished() && size < rawLength) {
+                int n = inflater.inflate(out, size, rawLength - size);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += n;
+            }
+            SystemErrorCode.MQ_MSG_ILLEGAL.throwIf(!inflater.finished() || size != rawLength ||
+                    inflater.getRemaining() > 0);
+            return out;
+        } catch (DataFormatException ex) {
+            throw SystemErrorCode.MQ_MSG_ILLEGAL.e(ex);
+        } finally {
+            inflater.reset();
+            if (!inflaters.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package infrastructure.mq.internal;
+
+import infrastructure.mq.service.LatencyStatistics;
+import infrastructure.mq.service.MessageMetrics;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * 以 HdrHistogram 的 {@link Recorder} 记录延迟：记录时无锁，不阻塞处理线程；
+ * 读取时取出各 {@link Recorder} 自上次读取以来的记录，累加到各自的累计分布中。
+ */
+public class HistogramMessageMetrics implements MessageMetrics {
+    private static final int SIGNIFICANT_DIGITS = 2;
+    private static final LatencyStatistics.Stage[] STAGES = LatencyStatistics.Stage.values();
+
+    private final Map<String, Latency[]> latencies = new ConcurrentSkipListMap<>();
+
+    void record(String messageType, LatencyStatistics.Stage stage, long micros) {
+        Latency[] typeLatencies = latencies.get(messageType);
+        if (typeLatencies == null) {
+            typeLatencies = latencies.computeIfAbsent(messageType, t -> {
+                Latency[] l = new Latency[STAGES.length];
+                for (int i = 0; i < l.length; i++) {
+                    l[i] = new Latency();
+                }
+                return l;
+            });
+        }
+        typeLatencies[stage.ordinal()].recorder.recordValue(Math.max(micros, 0));
+    }
+
+    @Override
+    public List<LatencyStatistics> getLatencyStatistics() {
+        List<LatencyStatistics> statistics = new ArrayList<>();
+        latencies.forEach((messageType, typeLatencies) -> {
+            for (LatencyStatistics.Stage stage : STAGES) {
+                LatencyStatistics s = typeLatencies[stage.ordinal()].statistics(messageType, stage);
+                if (s.getCount() > 0) {
+                    statistics.add(s);
+                }
+            }
+        });
+        return statistics;
+    }
+
+    private static class Latency {
+        private final Recorder recorder = new Recorder(SIGNIFICANT_DIGITS);
+        private final Histogram total = new Histogram(SIGNIFICANT_DIGITS);
+        private Histogram interval;
+
+        synchronized LatencyStatistics statistics(String messageType, LatencyStatistics.Stage stage) {
+            interval = recorder.getIntervalHistogram(interval);
+            total.add(interval);
+            return new LatencyStatistics(messageType, stage, total.getTotalCount(), total.getMean(),
+                    total.getValueAtPercentile(50), total.getValueAtPercentile(90), total.getValueAtPercentile(99),
+                    total.getMaxValue());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package infrastructure.mq.internal;
+
+import infrastructure.mq.provider.MessageSender;
+import infrastructure.mq.service.DeadLetter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * 保存在内存中的死信队列，超出容量时丢弃最早的死信。节点重启后死信丢失，只适合进程内投递的发送方。
+ */
+public class InMemoryDeadLetterService implements DeadLetterQueue {
+    private static final Logger logger = LoggerFactory.getLogger(InMemoryDeadLetterService.class);
+
+    private final Deque<Record> records = new ArrayDeque<>();
+    private int capacity;
+    private MessageSender messageSender;
+    private MessageConverter messageConverter;
+
+    public InMemoryDeadLetterService(int capacity, MessageSender messageSender, MessageConverter messageConverter) {
+        this.capacity = capacity;
+        this.messageSender = messageSender;
+        this.messageConverter = messageConverter;
+    }
+
+    @Override
+    public void add(MessageEnvelope envelope, Exception cause) {
+        String body = messageConverter.readBodyAsString(envelope);
+        DeadLetter deadLetter = new DeadLetter(envelope.getType(), body, envelope.getAttempt(),
+                String.valueOf(cause), OffsetDateTime.now());
+        synchronized (records) {
+            if (records.size() >= capacity) {
+                Record dropped = records.removeFirst();
+                logger.warn("dead letter queue is full, dropped message of type[{}]: {}",
+                        dropped.deadLetter.getType(), dropped.deadLetter.getBody());
+            }
+            records.addLast(new Record(deadLetter, envelope));
+        }
+    }
+
+    @Override
+    public List<DeadLetter> getDeadLetters(String type) {
+        synchronized (records) {
+            return records.stream()
+                    .map(r -> r.deadLetter)
+                    .filter(d -> d.getType().equals(type))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    @Override
+    public int requeue(String type) {
+        return requeue(r -> r.envelope.getType().equals(type));
+    }
+
+    @Override
+    public int requeueAll() {
+        return requeue(r -> true);
+    }
+
+    private int requeue(Predicate<Record> filter) {
+        List<MessageEnvelope> envelopes = new ArrayList<>();
+        synchronized (records) {
+            Iterator<Record> iterator = records.iterator();
+            while (iterator.hasNext()) {
+                Record record = iterator.next();
+                if (filter.test(record)) {
+                    envelopes.add(record.envelope);
+                    iterator.remove();
+                }
+            }
+        }
+        //the original id may already be recorded as handled by another listener of the type
+        envelopes.forEach(e -> messageSender.send(e.getType(),
+                messageConverter.toBytes(e.requeued(MessageConverter.newMessageId()))));
+        return envelopes.size();
+    }
+
+    private static class Record {
+        private final DeadLetter deadLetter;
+        private final MessageEnvelope envelope;
+
+        Record(DeadLetter deadLetter, MessageEnvelope envelope) {
+            this.deadLetter = deadLetter;
+            this.envelope = envelope;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package infrastructure.mq.internal;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.util.concurrent.Striped;
+import infrastructure.bean.CharsetUtils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 进程内去重：布隆过滤器在前，有界LRU在后。
+ * <p>布隆过滤器判定未出现过的消息ID直接登记，无需查询LRU；判定可能出现过时再由LRU确认，
+ * 布隆过滤器的误判或LRU已淘汰的消息ID按新消息处理。
+ * 两个布隆过滤器按时间窗口轮换，LRU中的消息ID在时间窗口后过期，内存占用有界。
+ * <p>LRU中记录预留的到期时间，已处理的消息ID不再到期。
+ */
+public class LocalMessageDeduplicator implements MessageDeduplicator {
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.001;
+
+    private final long windowMillis;
+    private final int capacity;
+    private final long leaseMillis;
+    private final Cache<String, Long> recentIds;
+    private final Striped<Lock> locks = Striped.lock(64);
+    private volatile BloomFilter<CharSequence> current;
+    private volatile BloomFilter<CharSequence> previous;
+    private volatile long rotatedAt;
+
+    /**
+     * @param windowMillis 去重时间窗口
+     * @param capacity     时间窗口内最多记录的消息ID数
+     */
+    public LocalMessageDeduplicator(long windowMillis, int capacity) {
+        this(windowMillis, capacity, DEFAULT_LEASE_MILLIS);
+    }
+
+    /**
+     * @param windowMillis 去重时间窗口
+     * @param capacity     时间窗口内最多记录的消息ID数
+     * @param leaseMillis  预留的租期
+     */
+    public LocalMessageDeduplicator(long windowMillis, int capacity, long leaseMillis) {
+        this.windowMillis = windowMillis;
+        this.capacity = capacity;
+        this.leaseMillis = leaseMillis;
+        this.recentIds = CacheBuilder.newBuilder()
+                .maximumSize(capacity)
+                .expireAfterWrite(windowMillis, TimeUnit.MILLISECONDS)
+                .build();
+        this.current = newBloomFilter();
+        this.previous = newBloomFilter();
+        this.rotatedAt = System.currentTimeMillis();
+    }
+
+    @Override
+    public boolean tryAcquire(String messageId) {
+        rotateIfExpired();
+        long now = System.currentTimeMillis();
+        Lock lock = locks.get(messageId);
+        lock.lock();
+        try {
+            BloomFilter<CharSequence> bloomFilter = current;
+            if (!bloomFilter.mightContain(messageId) && !previous.mightContain(messageId)) {
+                bloomFilter.put(messageId);
+                recentIds.put(messageId, now + leaseMillis);
+                return true;
+            }
+            bloomFilter.put(messageId);
+            Long reservedUntil = recentIds.getIfPresent(messageId);
+            if (reservedUntil != null && reservedUntil > now) {
+                return false;
+            }
+            recentIds.put(messageId, now + leaseMillis);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void complete(String messageId) {
+        recentIds.put(messageId, Long.MAX_VALUE);
+    }
+
+    @Override
+    public void release(String messageId) {
+        recentIds.invalidate(messageId);
+    }
+
+    private void rotateIfExpired() {
+        long now = System.currentTimeMillis();
+        if (now - rotatedAt < windowMillis) {
+            return;
+        }
+        synchronized (this) {
+            if (now - rotatedAt >= windowMillis) {
+                previous = current;
+                current = newBloomFilter();
+                rotatedAt = now;
+            }
+        }
+    }
+
+    private BloomFilter<CharSequence> newBloomFilter() {
+        return BloomFilter.create(Funnels.stringFunnel(CharsetUtils.UTF_8), capacity, FALSE_POSITIVE_PROBABILITY);
+    }
+}
@@ -0,0 +1,152 @@
+package infrastructure.mq.internal;
+
+import infrastructure.errorcode.SystemErrorCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 进程内投递：消息体对象不经序列化，通过无锁环形队列直接交给监听器。
+ * <p>每个工作线程独占一个 {@link MpscRingBuffer}。带分区键的消息固定进入同一个队列以保证顺序，
+ * 其他消息随机选择队列，队列满时依次尝试其他队列，全部已满时发送方最多等待 offerTimeoutMillis。
+ */
+public class LocalMessageDispatcher {
+    private static final Logger logger = LoggerFactory.getLogger(LocalMessageDispatcher.class);
+
+    private static final int RING_CAPACITY = 4096;
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long OFFER_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final Worker[] workers;
+    private final long offerTimeoutNanos;
+    private volatile boolean running = true;
+
+    /**
+     * @param offerTimeoutMillis 队列已满时发送方最多等待的毫秒数
+     */
+    public LocalMessageDispatcher(MessageReceiverImpl messageReceiver, int workerCount, long offerTimeoutMillis) {
+        this.offerTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(offerTimeoutMillis);
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(messageReceiver, "mq-local-" + i);
+            workers[i].thread.start();
+        }
+    }
+
+    /**
+     * 带分区键的消息等待超时后抛出 {@link SystemErrorCode#MQ_QUEUE_FULL}，不改经发送方投递，以免越过队列中的消息
+     *
+     * @param expiresAt 过期时间（毫秒时间戳），为0时不过期
+     * @return 等待超时或已关闭时返回false，由调用方改经发送方投递
+     */
+    public boolean dispatch(String messageType, Object messageBody, String partitionKey, long expiresAt) {
+        LocalMessage message = new LocalMessage(messageType, messageBody, expiresAt, System.currentTimeMillis(),
+                MessageTracing.capture());
+        long deadline = System.nanoTime() + offerTimeoutNanos;
+        if (partitionKey != null) {
+            int hash = partitionKey.hashCode();
+            hash ^= hash >>> 16;
+            Worker worker = workers[(hash & Integer.MAX_VALUE) % workers.length];
+            while (!worker.offer(message)) {
+                SystemErrorCode.MQ_QUEUE_FULL.throwIf(!running || !waitForSpace(deadline));
+            }
+            return true;
+        }
+        int start = ThreadLocalRandom.current().nextInt(workers.length);
+        while (running) {
+            for (int i = 0; i < workers.length; i++) {
+                if (workers[(start + i) % workers.length].offer(message)) {
+                    return true;
+                }
+            }
+            if (!waitForSpace(deadline)) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return 已超时返回false
+     */
+    private static boolean waitForSpace(long deadline) {
+        if (System.nanoTime() - deadline >= 0) {
+            return false;
+        }
+        LockSupport.parkNanos(OFFER_BACKOFF_NANOS);
+        return true;
+    }
+
+    public void shutdown() {
+        running = false;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker.thread);
+        }
+    }
+
+    static class LocalMessage {
+        final String type;
+        final Object body;
+        final long expiresAt;
+        final long sentAt;
+        final MessageTracing.Context trace;
+
+        LocalMessage(String type, Object body, long expiresAt, long sentAt, MessageTracing.Context trace) {
+            this.type = type;
+            this.body = body;
+            this.expiresAt = expiresAt;
+            this.sentAt = sentAt;
+            this.trace = trace;
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final MpscRingBuffer<LocalMessage> ring = new MpscRingBuffer<>(RING_CAPACITY);
+        private final MessageReceiverImpl messageReceiver;
+        private final Thread thread;
+        private volatile boolean sleeping;
+
+        Worker(MessageReceiverImpl messageReceiver, String name) {
+            this.messageReceiver = messageReceiver;
+            this.thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        boolean offer(LocalMessage message) {
+            if (!ring.offer(message)) {
+                return false;
+            }
+            if (sleeping) {
+                LockSupport.unpark(thread);
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                LocalMessage message = ring.poll();
+                if (message != null) {
+                    if (message.expiresAt > 0 && System.currentTimeMillis() > message.expiresAt) {
+                        logger.debug("expired message dropped, type: " + message.type);
+                        continue;
+                    }
+                    try {
+                        messageReceiver.onLocalMessage(message.type, message.body, message.sentAt, message.trace);
+                    } catch (RuntimeException ex) {
+                        logger.error("local message dispatch error", ex);
+                    }
+                    continue;
+                }
+                sleeping = true;
+                if (ring.isEmpty()) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                sleeping = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package infrastructure.mq.internal;
+
+import infrastructure.errorcode.SystemErrorCode;
+import infrastructure.mq.provider.ScheduledTask;
+import infrastructure.mq.provider.threading.MessageScheduler;
+import infrastructure.mq.provider.threading.TimingWheelMessageScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 异步发送的确认：记录等待处理结果的消息ID，由接收方在处理完成或最终失败时通知。
+ * <p>发送方与接收方的线程只将结果放入队列，通知线程整批完成调用方的 {@link CompletableFuture}，
+ * 调用方注册的回调不会占用写入线程或处理线程。
+ */
+public class MessageAcknowledger {
+    private static final Logger logger = LoggerFactory.getLogger(MessageAcknowledger.class);
+
+    private static final int MAX_BATCH_SIZE = 512;
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<>();
+    private final BlockingQueue<Completion> completions = new LinkedBlockingQueue<>();
+    private final MessageScheduler timeoutScheduler = new TimingWheelMessageScheduler(Runnable::run);
+    private final long timeoutMillis;
+    private final Thread notifier;
+    private volatile boolean running = true;
+
+    /**
+     * @param timeoutMillis 等待处理结果的最长时间，超时后异常完成
+     */
+    public MessageAcknowledger(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.notifier = new Thread(this::notifyLoop, "mq-ack");
+        notifier.setDaemon(true);
+        notifier.start();
+    }
+
+    /**
+     * 在消息发送前登记
+     *
+     * @return 收到处理结果或超时后完成
+     */
+    CompletableFuture<Void> track(String messageId) {
+        Pending p = new Pending();
+        pending.put(messageId, p);
+        p.timeoutTask = timeoutScheduler.schedule(() -> fail(messageId, SystemErrorCode.MQ_ACK_TIMEOUT.e()),
+                timeoutMillis);
+        return p.future;
+    }
+
+    /**
+     * @param parts 消息类型的监听器数，每个监听器处理完成后通知一次，全部完成后结果才完成
+     */
+    void acknowledge(String messageId, int parts) {
+        if (messageId == null || pending.isEmpty()) {
+            return;
+        }
+        Pending p = pending.get(messageId);
+        if (p == null) {
+            return;
+        }
+        synchronized (p) {
+            if (p.remaining < 0) {
+                p.remaining = parts;
+            }
+            if (--p.remaining > 0) {
+                return;
+            }
+        }
+        complete(messageId, null);
+    }
+
+    void fail(String messageId, Throwable cause) {
+        complete(messageId, cause);
+    }
+
+    /**
+     * @return 与source同时完成，在通知线程上执行回调
+     */
+    CompletableFuture<Void> relay(CompletableFuture<?> source) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        source.whenComplete((result, cause) -> completions.add(new Completion(future, cause)));
+        return future;
+    }
+
+    public void shutdown() {
+        running = false;
+        timeoutScheduler.shutdown();
+        notifier.interrupt();
+    }
+
+    private void complete(String messageId, Throwable cause) {
+        if (messageId == null || pending.isEmpty()) {
+            return;
+        }
+        Pending p = pending.remove(messageId);
+        if (p != null) {
+            p.timeoutTask.cancel();
+            completions.add(new Completion(p.future, cause));
+        }
+    }
+
+    private void notifyLoop() {
+        List<Completion> batch = new ArrayList<>();
+        while (running) {
+            try {
+                Completion first = completions.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                completions.drainTo(batch, MAX_BATCH_SIZE - 1);
+                for (Completion completion : batch) {
+                    if (completion.cause == null) {
+                        completion.future.complete(null);
+                    } else {
+                        completion.future.completeExceptionally(completion.cause);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException ex) {
+                logger.error("message acknowledge error", ex);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private static class Pending {
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+        private volatile ScheduledTask timeoutTask;
+        private int remaining = -1;
+    }
+
+    private static class Completion {
+        private final CompletableFuture<Void> future;
+        private final Throwable cause;
+
+        Completion(CompletableFuture<Void> future, Throwable cause) {
+            this.future = future;
+            this.cause = cause;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package infrastructure.mq.internal;
+
+import infrastructure.mq.provider.ScheduledTask;
+import infrastructure.mq.provider.threading.MessageScheduler;
+import infrastructure.mq.service.BatchMessageListener;
+import infrastructure.mq.service.BatchResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * 为 {@link BatchMessageListener} 累积消息，达到批次大小或等待超时后整批处理。
+ * <p>达到批次大小时在放入最后一条消息的线程上处理，超时的批次在调度器的线程上处理。
+ * 处理结果中超出批次范围的下标记录警告后忽略。
+ */
+class MessageBatcher {
+    private static final Logger logger = LoggerFactory.getLogger(MessageBatcher.class);
+
+    private final BatchMessageListener listener;
+    private final MessageScheduler scheduler;
+    private final Consumer<Item> successHandler;
+    private final FailureHandler failureHandler;
+    private List<Item> pending = new ArrayList<>();
+    private ScheduledTask flushTask;
+
+    MessageBatcher(BatchMessageListener listener, MessageScheduler scheduler, Consumer<Item> successHandler,
+                   FailureHandler failureHandler) {
+        this.listener = listener;
+        this.scheduler = scheduler;
+        this.successHandler = successHandler;
+        this.failureHandler = failureHandler;
+    }
+
+    void add(Item item) {
+        List<Item> batch = null;
+        synchronized (this) {
+            pending.add(item);
+            if (pending.size() >= listener.maxBatchSize()) {
+                batch = take();
+            } else if (pending.size() == 1) {
+                flushTask = scheduler.schedule(this::flush, listener.maxBatchDelayMillis());
+            }
+        }
+        if (batch != null) {
+            handle(batch);
+        }
+    }
+
+    /**
+     * 立即处理已累积的消息
+     */
+    void flush() {
+        List<Item> batch = take();
+        if (!batch.isEmpty()) {
+            handle(batch);
+        }
+    }
+
+    private synchronized List<Item> take() {
+        List<Item> batch = pending;
+        pending = new ArrayList<>();
+        if (flushTask != null) {
+            flushTask.cancel();
+            flushTask = null;
+        }
+        return batch;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handle(List<Item> batch) {
+        BatchResult result;
+        try {
+            result = listener.handleBatch(batch.stream().map(i -> i.body).collect(Collectors.toList()));
+        } catch (Exception ex) {
+            batch.forEach(i -> failureHandler.onFailure(i, ex));
+            return;
+        }
+        Map<Integer, Exception> failures = result == null ? Collections.emptyMap() : result.getFailures();
+        for (Integer index : failures.keySet()) {
+            if (index < 0 || index >= batch.size()) {
+                logger.warn("batch result index " + index + " out of batch of " + batch.size() +
+                        " ignored, listener: " + listener.getClass().getName());
+            }
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            Exception cause = failures.get(i);
+            if (cause == null) {
+                successHandler.accept(batch.get(i));
+            } else {
+                failureHandler.onFailure(batch.get(i), cause);
+            }
+        }
+    }
+
+    /**
+     * 批次中的一条消息
+     */
+    static class Item {
+        final Object body;
+        /**
+         * 进程内投递的消息为null，需要重新投递时才编码
+         */
+        final MessageEnvelope envelope;
+        /**
+         * 合并到这条消息的消息，与它一同确认或失败
+         */
+        final List<MessageEnvelope> superseded;
+        /**
+         * 所在批次处理完成（或已安排重新投递）后完成
+         */
+        final CompletableFuture<Boolean> received = new CompletableFuture<>();
+
+        Item(Object body, MessageEnvelope envelope, List<MessageEnvelope> superseded) {
+            this.body = body;
+            this.envelope = envelope;
+            this.superseded = superseded;
+        }
+    }
+
+    interface FailureHandler {
+        void onFailure(Item item, Exception ex);
+    }
+}
@@ -0,0 +1,143 @@
+package infrastructure.mq.internal;
+
+import infrastructure.mq.provider.ScheduledTask;
+import infrastructure.mq.provider.threading.MessageScheduler;
+import infrastructure.mq.service.CoalescingPolicy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 按 {@link CoalescingPolicy} 合并同一合并键的消息：每个合并键只保留最新的一条等待处理，
+ * 到期后在调度器的线程上处理。同一合并键的消息处理期间到达的新消息在处理完成后再调度。
+ * <p>被合并的消息与合并后处理的消息一同完成，由处理方按合并后的消息的处理结果确认或失败。
+ */
+class MessageCoalescer {
+    private final CoalescingPolicy policy;
+    private final MessageScheduler scheduler;
+    private final Handler handler;
+    private final Map<String, Slot> slots = new HashMap<>();
+
+    MessageCoalescer(CoalescingPolicy policy, MessageScheduler scheduler, Handler handler) {
+        this.policy = policy;
+        this.scheduler = scheduler;
+        this.handler = handler;
+    }
+
+    /**
+     * @return 消息或合并了它的消息处理完成（或已安排重新投递）后完成
+     */
+    @SuppressWarnings("unchecked")
+    CompletableFuture<Boolean> add(Object body, MessageEnvelope envelope) {
+        String key = policy.keyOf(body);
+        if (key == null) {
+            return handler.handle(body, envelope, Collections.emptyList());
+        }
+        synchronized (this) {
+            Slot slot = slots.computeIfAbsent(key, Slot::new);
+            if (slot.pending) {
+                if (slot.envelope != null) {
+                    slot.superseded.add(slot.envelope);
+                }
+            } else {
+                slot.pending = true;
+                slot.firstArrivalMillis = System.currentTimeMillis();
+                slot.received = new CompletableFuture<>();
+            }
+            slot.body = body;
+            slot.envelope = envelope;
+            if (!slot.running) {
+                schedule(slot);
+            }
+            return slot.received;
+        }
+    }
+
+    /**
+     * 没有静默期时只在尚未调度时调度一次，有静默期时每条消息都将处理推迟到静默期之后
+     */
+    private void schedule(Slot slot) {
+        long quietMillis = policy.getQuietPeriod().toMillis();
+        if (quietMillis == 0 && slot.task != null) {
+            return;
+        }
+        if (slot.task != null) {
+            slot.task.cancel();
+        }
+        long deadline = slot.firstArrivalMillis + policy.getMaxDelay().toMillis();
+        long delay = Math.min(quietMillis, deadline - System.currentTimeMillis());
+        int generation = ++slot.generation;
+        slot.task = scheduler.schedule(() -> run(slot, generation), Math.max(delay, 0));
+    }
+
+    private void run(Slot slot, int generation) {
+        Object body;
+        MessageEnvelope envelope;
+        List<MessageEnvelope> superseded;
+        CompletableFuture<Boolean> received;
+        synchronized (this) {
+            //a task cancelled too late to stop must not cut the quiet period short
+            if (generation != slot.generation || !slot.pending || slot.running) {
+                return;
+            }
+            body = slot.body;
+            envelope = slot.envelope;
+            superseded = slot.superseded;
+            received = slot.received;
+            slot.body = null;
+            slot.envelope = null;
+            slot.superseded = new ArrayList<>();
+            slot.received = null;
+            slot.pending = false;
+            slot.running = true;
+            slot.task = null;
+        }
+        CompletableFuture<Boolean> handled;
+        try {
+            handled = handler.handle(body, envelope, superseded);
+        } catch (RuntimeException ex) {
+            received.complete(false);
+            throw ex;
+        } finally {
+            synchronized (this) {
+                slot.running = false;
+                if (slot.pending) {
+                    schedule(slot);
+                } else {
+                    slots.remove(slot.key);
+                }
+            }
+        }
+        handled.whenComplete((result, ex) -> received.complete(ex == null && Boolean.TRUE.equals(result)));
+    }
+
+    private static class Slot {
+        private final String key;
+        private Object body;
+        private MessageEnvelope envelope;
+        private List<MessageEnvelope> superseded = new ArrayList<>();
+        private CompletableFuture<Boolean> received;
+        private boolean pending;
+        private boolean running;
+        private long firstArrivalMillis;
+        private ScheduledTask task;
+        private int generation;
+
+        Slot(String key) {
+            this.key = key;
+        }
+    }
+
+    interface Handler {
+        /**
+         * @param envelope   进程内投递的消息为null
+         * @param superseded 被合并的消息，不包括进程内投递的消息
+         * @return 处理完成（或已安排重新投递）后完成，结果为false时消息未被接收
+         */
+        CompletableFuture<Boolean> handle(Object body, MessageEnvelope envelope, List<MessageEnvelope> superseded);
+    }
+}
@@ -1,31 +1,491 @@
 package infrastructure.mq.internal;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
 import infrastructure.bean.CharsetUtils;
 import infrastructure.bean.JsonUtils;
+import infrastructure.errorcode.SystemErrorCode;
+import infrastructure.mq.provider.BufferPool;
+import infrastructure.mq.provider.MessageBuffer;
 import javafx.util.Pair;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
+ * 消息编解码。
+ * <p>消息格式：1字节版本号 + 4字节消息头长度 + JSON消息头 + JSON消息体。
+ * 消息头中只包含类型等元数据，接收方可先解析消息头完成分发，再按监听器的类型解析消息体。
+ * 以 '{' 开头的字节视为旧版本的 {@link Message} 格式，仍可解析。
+ * <p>消息体超过压缩阈值时以 Deflate 压缩，消息头中标记压缩方式与原长度，接收方解析消息体时再解压。
+ * 原长度超过解压上限的消息视为非法消息。
+ * <p>每种已注册的消息类型在创建时解析好 {@link ObjectReader}，解码时不再查找反序列化器。
+ * 编码按消息体的运行时类型序列化，消息体为注册类型的子类时不丢失子类的字段。
+ * <p>设置了 {@link BufferPool} 时，{@link #toBuffer(MessageEnvelope, Object)} 将消息头与消息体直接写入池化的缓冲区，
+ * 不产生中间的字节数组。
+ *
  * @author joeyh 2019/1/10 14:35
  */
 public class MessageConverter {
-    private Map<String, Class> messageTypeClassMap;
+    public static final int DEFAULT_MAX_DECOMPRESSED_BYTES = 16 * 1024 * 1024;
+    static final byte ENVELOPE_VERSION = 2;
+    private static final int HEADER_OFFSET = 5;
+    private static final int BUFFER_SIZE_HINT = 1024;
+    private static final byte[] LENGTH_PLACEHOLDER = new byte[4];
+    private static final String HEADER_ID = "id";
+    private static final String HEADER_TYPE = "type";
+    private static final String HEADER_ATTEMPT = "attempt";
+    private static final String HEADER_PARTITION_KEY = "key";
+    private static final String HEADER_TARGET = "target";
+    private static final String HEADER_EXPIRES_AT = "expires";
+    private static final String HEADER_CORRELATION_ID = "correlation";
+    private static final String HEADER_SENT_AT = "ts";
+    private static final String HEADER_TRACE_ID = "trace";
+    private static final String HEADER_SPAN_ID = "span";
+    private static final String HEADER_ENCODING = "encoding";
+    private static final String HEADER_RAW_LENGTH = "size";
+    private static final String ENCODING_DEFLATE = "deflate";
 
-    public MessageConverter(Map<String, Class> messageTypeClassMap) {
-        this.messageTypeClassMap = messageTypeClassMap;
+    private Map<String, ObjectReader> readers;
+    private ObjectWriter writer;
+    private ObjectMapper objectMapper;
+    private JsonFactory jsonFactory;
+    private int compressionThreshold;
+    private DeflateCodec deflateCodec;
+    private BufferPool bufferPool;
+    private Map<String, Long> timeToLiveMillis;
+    private ConcurrentMap<Type, ObjectReader> replyReaders = new ConcurrentHashMap<>();
+
+    /**
+     * @param messageTypes 消息类型到消息体类型的映射，消息体类型可以是泛型类型
+     */
+    public MessageConverter(Map<String, ? extends Type> messageTypes) {
+        this(messageTypes, 0);
+    }
+
+    /**
+     * @param messageTypes         消息类型到消息体类型的映射，消息体类型可以是泛型类型
+     * @param compressionThreshold 消息体超过此字节数时压缩，小于等于0时不压缩
+     */
+    public MessageConverter(Map<String, ? extends Type> messageTypes, int compressionThreshold) {
+        this(messageTypes, compressionThreshold, Collections.emptyMap());
+    }
+
+    /**
+     * @param messageTypes         消息类型到消息体类型的映射，消息体类型可以是泛型类型
+     * @param compressionThreshold 消息体超过此字节数时压缩，小于等于0时不压缩
+     * @param timeToLive           消息类型的默认存活时间，新的即时消息按此设置过期时间
+     */
+    public MessageConverter(Map<String, ? extends Type> messageTypes, int compressionThreshold,
+                            Map<String, Duration> timeToLive) {
+        this(messageTypes, compressionThreshold, timeToLive, null);
+    }
+
+    /**
+     * @param messageTypes         消息类型到消息体类型的映射，消息体类型可以是泛型类型
+     * @param compressionThreshold 消息体超过此字节数时压缩，小于等于0时不压缩
+     * @param timeToLive           消息类型的默认存活时间，新的即时消息按此设置过期时间
+     * @param bufferPool           编码到缓冲区时使用，为null时缓冲区包装字节数组
+     */
+    public MessageConverter(Map<String, ? extends Type> messageTypes, int compressionThreshold,
+                            Map<String, Duration> timeToLive, BufferPool bufferPool) {
+        this(messageTypes, compressionThreshold, timeToLive, bufferPool, DEFAULT_MAX_DECOMPRESSED_BYTES);
     }
 
+    /**
+     * @param messageTypes         消息类型到消息体类型的映射，消息体类型可以是泛型类型
+     * @param compressionThreshold 消息体超过此字节数时压缩，小于等于0时不压缩
+     * @param timeToLive           消息类型的默认存活时间，新的即时消息按此设置过期时间
+     * @param bufferPool           编码到缓冲区时使用，为null时缓冲区包装字节数组
+     * @param maxDecompressedBytes 压缩的消息体解压后的最大字节数
+     */
+    public MessageConverter(Map<String, ? extends Type> messageTypes, int compressionThreshold,
+                            Map<String, Duration> timeToLive, BufferPool bufferPool, int maxDecompressedBytes) {
+        this.bufferPool = bufferPool;
+        this.compressionThreshold = compressionThreshold;
+        this.timeToLiveMillis = new HashMap<>();
+        timeToLive.forEach((messageType, ttl) -> timeToLiveMillis.put(messageType, ttl.toMillis()));
+        this.deflateCodec = new DeflateCodec(Runtime.getRuntime().availableProcessors() * 2,
+                maxDecompressedBytes);
+        this.objectMapper = JsonUtils.getObjectMapper();
+        this.jsonFactory = objectMapper.getFactory();
+        this.readers = new HashMap<>();
+        this.writer = objectMapper.writer();
+        messageTypes.forEach((messageType, bodyType) -> {
+            JavaType javaType = objectMapper.getTypeFactory().constructType(bodyType);
+            readers.put(messageType, objectMapper.readerFor(javaType));
+        });
+    }
+
+    /**
+     * @return 消息类型已注册时返回true
+     */
+    public boolean supports(String messageType) {
+        return readers.containsKey(messageType);
+    }
+
+    /**
+     * 编码一条新的即时消息，生成新的消息ID，按消息类型的存活时间设置过期时间
+     */
     public byte[] toBytes(String messageType, Object messageBody) {
-        Message message = new Message(messageType, JsonUtils.toJson(messageBody));
-        return JsonUtils.toJson(message).getBytes(CharsetUtils.UTF_8);
+        return toBytes(newEnvelope(messageType), messageBody);
+    }
+
+    /**
+     * 新的即时消息的消息头：生成新的消息ID，按消息类型的存活时间设置过期时间，记录发送时间与当前调用链
+     */
+    MessageEnvelope newEnvelope(String messageType) {
+        MessageEnvelope envelope = new MessageEnvelope(messageType);
+        envelope.setId(newMessageId());
+        envelope.setExpiresAt(expiresAt(messageType));
+        envelope.setSentAt(System.currentTimeMillis());
+        MessageTracing.inject(envelope);
+        return envelope;
+    }
+
+    /**
+     * @return 现在发送的该类型消息的过期时间，没有设置存活时间时返回0
+     */
+    public long expiresAt(String messageType) {
+        Long ttl = timeToLiveMillis.get(messageType);
+        return ttl == null ? 0 : System.currentTimeMillis() + ttl;
+    }
+
+    /**
+     * 按消息头与消息体编码，消息头中的消息体字段被忽略。消息头中没有消息ID时不写入消息ID，接收方不做去重。
+     */
+    public byte[] toBytes(MessageEnvelope envelope, Object messageBody) {
+        try {
+            byte[] header = writeHeader(envelope);
+            ByteArrayBuilder builder = new ByteArrayBuilder(HEADER_OFFSET + header.length + 128);
+            builder.append(ENVELOPE_VERSION);
+            builder.appendFourBytes(header.length);
+            builder.write(header);
+            try (JsonGenerator generator = jsonFactory.createGenerator(builder)) {
+                writer.writeValue(generator, messageBody);
+            }
+            byte[] bytes = builder.toByteArray();
+            int bodyOffset = HEADER_OFFSET + header.length;
+            if (compressionThreshold > 0 && bytes.length - bodyOffset > compressionThreshold) {
+                return compress(envelope, bytes, bodyOffset);
+            }
+            return bytes;
+        } catch (IOException ex) {
+            throw SystemErrorCode.MQ_MSG_ILLEGAL.e(ex);
+        }
+    }
+
+    /**
+     * 编码一条新的即时消息到缓冲区，见 {@link #toBytes(String, Object)}
+     */
+    public MessageBuffer toBuffer(String messageType, Object messageBody) {
+        return toBuffer(newEnvelope(messageType), messageBody);
+    }
+
+    /**
+     * 编码到池化的缓冲区，格式与 {@link #toBytes(MessageEnvelope, Object)} 相同。
+     * 消息体需要压缩时压缩结果为字节数组，缓冲区随即归还。
+     *
+     * @return 由调用方或接收它的发送方归还
+     */
+    public MessageBuffer toBuffer(MessageEnvelope envelope, Object messageBody) {
+        if (bufferPool == null) {
+            return MessageBuffer.wrap(toBytes(envelope, messageBody));
+        }
+        BufferPool.Output output = bufferPool.newOutput(BUFFER_SIZE_HINT);
+        try {
+            output.write(ENVELOPE_VERSION);
+            output.write(LENGTH_PLACEHOLDER, 0, LENGTH_PLACEHOLDER.length);
+            writeHeader(envelope, output);
+            int bodyOffset = output.position();
+            output.putInt(1, bodyOffset - HEADER_OFFSET);
+            try (JsonGenerator generator = jsonFactory.createGenerator(output)) {
+                writer.writeValue(generator, messageBody);
+            }
+            if (compressionThreshold > 0 && output.position() - bodyOffset > compressionThreshold) {
+                MessageBuffer raw = output.toMessageBuffer();
+                try {
+                    return MessageBuffer.wrap(compress(envelope, raw.toByteArray(), bodyOffset));
+                } finally {
+                    raw.release();
+                }
+            }
+            return output.toMessageBuffer();
+        } catch (IOException ex) {
+            output.discard();
+            throw SystemErrorCode.MQ_MSG_ILLEGAL.e(ex);
+        } catch (RuntimeException ex) {
+            output.discard();
+            throw ex;
+        }
+    }
+
+    /**
+     * 按消息头重新编码，消息体直接复制原始字节，不做反序列化。
+     */
+    public byte[] toBytes(MessageEnvelope envelope) {
+        try {
+            byte[] header = writeHeader(envelope);
+            byte[] bytes = new byte[HEADER_OFFSET + header.length + envelope.getBodyLength()];
+            bytes[0] = ENVELOPE_VERSION;
+            writeInt(bytes, 1, header.length);
+            System.arraycopy(header, 0, bytes, HEADER_OFFSET, header.length);
+            System.arraycopy(envelope.getBytes(), envelope.getBodyOffset(),
+                    bytes, HEADER_OFFSET + header.length, envelope.getBodyLength());
+            return bytes;
+        } catch (IOException ex) {
+            throw SystemErrorCode.MQ_MSG_ILLEGAL.e(ex);
+        }
     }
 
-    @SuppressWarnings("unchecked")
     public Pair<String, Object> fromBytes(byte[] messageBytes) {
+        MessageEnvelope envelope = readEnvelope(messageBytes);
+        return new Pair<>(envelope.getType(), readBody(envelope));
+    }
+
+    /**
+     * 只解析消息头，消息体保持为原始字节。
+     */
+    public MessageEnvelope readEnvelope(byte[] messageBytes) {
+        if (messageBytes.length == 0) {
+            throw SystemErrorCode.MQ_MSG_ILLEGAL.e();
+        }
+        if (messageBytes[0] != ENVELOPE_VERSION) {
+            return readLegacyEnvelope(messageBytes);
+        }
+        SystemErrorCode.MQ_MSG_ILLEGAL.throwIf(messageBytes.length < HEADER_OFFSET);
+        int headerLength = readInt(messageBytes, 1);
+        int bodyOffset = HEADER_OFFSET + headerLength;
+        SystemErrorCode.MQ_MSG_ILLEGAL.throwIf(headerLength < 0 || bodyOffset > messageBytes.length);
+
+        MessageEnvelope envelope = new MessageEnvelope();
+        String encoding = null;
+        int rawLength = -1;
+        String traceId = null;
+        String spanId = null;
+        try (JsonParser parser = jsonFactory.createParser(messageBytes, HEADER_OFFSET, headerLength)) {
+            SystemErrorCode.MQ_MSG_ILLEGAL.throwIf(parser.nextToken() != JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                    case HEADER_ID:
+                        envelope.setId(parser.getValueAsString());
+                        break;
+                    case HEADER_TYPE:
+                        envelope.setType(parser.getValueAsString());
+                        break;
+                    case HEADER_ATTEMPT:
+                        envelope.setAttempt(parser.getValueAsInt(1));
+                        break;
+                    case HEADER_PARTITION_KEY:
+                        envelope.setPartitionKey(parser.getValueAsString());
+                        break;
+                    case HEADER_TARGET:
+                        envelope.setTarget(parser.getValueAsString());
+                        break;
+                    case HEADER_EXPIRES_AT:
+                        envelope.setExpiresAt(parser.getValueAsLong(0));
+                        break;
+                    case HEADER_CORRELATION_ID:
+                        envelope.setCorrelationId(parser.getValueAsString());
+                        break;
+                    case HEADER_SENT_AT:
+                        envelope.setSentAt(parser.getValueAsLong(0));
+                        break;
+                    case HEADER_TRACE_ID:
+                        traceId = parser.getValueAsString();
+                        break;
+                    case HEADER_SPAN_ID:
+                        spanId = parser.getValueAsString();
+                        break;
+                    case HEADER_ENCODING:
+                        encoding = parser.getValueAsString();
+                        break;
+                    case HEADER_RAW_LENGTH:
+                        rawLength = parser.getValueAsInt(-1);
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+        } catch (IOException ex) {
+            throw SystemErrorCode.MQ_MSG_ILLEGAL.e(ex);
+        }
+        SystemErrorCode.MQ_MSG_ILLEGAL.throwIf(envelope.getType() == null);
+        envelope.setTrace(traceId, spanId);
+        if (encoding != null) {
+            SystemErrorCode.MQ_MSG_ILLEGAL.throwIf(!ENCODING_DEFLATE.equals(encoding) || rawLength < 0);
+            envelope.setCompressed(rawLength);
+        }
+        envelope.setBody(messageBytes, bodyOffset, messageBytes.length - bodyOffset);
+        return envelope;
+    }
+
+    /**
+     * 按消息类型注册的消息体类型解析消息体，消息类型未注册时抛出 {@link SystemErrorCode#MQ_MSG_ILLEGAL}。
+     */
+    public Object readBody(MessageEnvelope envelope) {
+        return readBody(envelope, readerFor(envelope.getType()));
+    }
+
+    /**
+     * 按指定类型解析消息体，用于未注册的消息类型，如应答消息
+     */
+    public Object readBody(MessageEnvelope envelope, Type bodyType) {
+        return readBody(envelope, replyReaders.computeIfAbsent(bodyType,
+                t -> objectMapper.readerFor(objectMapper.getTypeFactory().constructType(t))));
+    }
+
+    private Object readBody(MessageEnvelope envelope, ObjectReader reader) {
+        try {
+            if (envelope.isCompressed()) {
+                byte[] body = decompress(envelope);
+                return reader.readValue(body, 0, body.length);
+            }
+            return reader.readValue(envelope.getBytes(), envelope.getBodyOffset(), envelope.getBodyLength());
+        } catch (IOException ex) {
+            throw SystemErrorCode.MQ_MSG_ILLEGAL.e(ex);
+        }
+    }
+
+    /**
+     * 消息体的JSON文本，压缩的消息体先解压
+     */
+    public String readBodyAsString(MessageEnvelope envelope) {
+        if (envelope.isCompressed()) {
+            return new String(decompress(envelope), CharsetUtils.UTF_8);
+        }
+        return new String(envelope.getBytes(), envelope.getBodyOffset(), envelope.getBodyLength(), CharsetUtils.UTF_8);
+    }
+
+    /**
+     * 复制消息体，经由 Jackson 的 TokenBuffer 转换，不产生字节数组。
+     */
+    public Object copy(String messageType, Object messageBody) {
+        ObjectReader reader = readerFor(messageType);
+        try {
+            TokenBuffer buffer = new TokenBuffer(objectMapper, false);
+            writer.writeValue(buffer, messageBody);
+            return reader.readValue(buffer.asParser());
+        } catch (IOException ex) {
+            throw SystemErrorCode.MQ_MSG_ILLEGAL.e(ex);
+        }
+    }
+
+    private ObjectReader readerFor(String messageType) {
+        ObjectReader reader = readers.get(messageType);
+        SystemErrorCode.MQ_MSG_ILLEGAL.throwIf(reader == null);
+        return reader;
+    }
+
+    private byte[] writeHeader(MessageEnvelope envelope) throws IOException {
+        ByteArrayBuilder builder = new ByteArrayBuilder(64);
+        writeHeader(envelope, builder);
+        return builder.toByteArray();
+    }
+
+    private void writeHeader(MessageEnvelope envelope, OutputStream out) throws IOException {
+        try (JsonGenerator generator = jsonFactory.createGenerator(out)) {
+            generator.writeStartObject();
+            if (envelope.getId() != null) {
+                generator.writeStringField(HEADER_ID, envelope.getId());
+            }
+            generator.writeStringField(HEADER_TYPE, envelope.getType());
+            if (envelope.getAttempt() > 1) {
+                generator.writeNumberField(HEADER_ATTEMPT, envelope.getAttempt());
+            }
+            if (envelope.getPartitionKey() != null) {
+                generator.writeStringField(HEADER_PARTITION_KEY, envelope.getPartitionKey());
+            }
+            if (envelope.getTarget() != null) {
+                generator.writeStringField(HEADER_TARGET, envelope.getTarget());
+            }
+            if (envelope.getExpiresAt() > 0) {
+                generator.writeNumberField(HEADER_EXPIRES_AT, envelope.getExpiresAt());
+            }
+            if (envelope.getCorrelationId() != null) {
+                generator.writeStringField(HEADER_CORRELATION_ID, envelope.getCorrelationId());
+            }
+            if (envelope.getSentAt() > 0) {
+                generator.writeNumberField(HEADER_SENT_AT, envelope.getSentAt());
+            }
+            if (envelope.getTraceId() != null) {
+                generator.writeStringField(HEADER_TRACE_ID, envelope.getTraceId());
+            }
+            if (envelope.getSpanId() != null) {
+                generator.writeStringField(HEADER_SPAN_ID, envelope.getSpanId());
+            }
+            if (envelope.isCompressed()) {
+                generator.writeStringField(HEADER_ENCODING, ENCODING_DEFLATE);
+                generator.writeNumberField(HEADER_RAW_LENGTH, envelope.getRawLength());
+            }
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * 压缩消息体，压缩后未变小时返回原消息
+     */
+    private byte[] compress(MessageEnvelope envelope, byte[] bytes, int bodyOffset) {
+        int rawLength = bytes.length - bodyOffset;
+        byte[] body = deflateCodec.compress(bytes, bodyOffset, rawLength);
+        if (body == null) {
+            return bytes;
+        }
+        MessageEnvelope compressed = envelope.withAttempt(envelope.getAttempt());
+        compressed.setCompressed(rawLength);
+        compressed.setBody(body, 0, body.length);
+        return toBytes(compressed);
+    }
+
+    private byte[] decompress(MessageEnvelope envelope) {
+        return deflateCodec.decompress(envelope.getBytes(), envelope.getBodyOffset(), envelope.getBodyLength(),
+                envelope.getRawLength());
+    }
+
+    /**
+     * 随机生成的 UUID 格式消息ID，用于去重，不要求不可预测
+     */
+    static String newMessageId() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return new UUID(random.nextLong(), random.nextLong()).toString();
+    }
+
+    private MessageEnvelope readLegacyEnvelope(byte[] messageBytes) {
         Message message = JsonUtils.toObject(new String(messageBytes, CharsetUtils.UTF_8), Message.class);
-        String messageType = message.getType();
-        Object messageBody = JsonUtils.toObject(message.getBody(), messageTypeClassMap.get(message.getType()));
-        return new Pair<>(messageType, messageBody);
+        byte[] body = message.getBody() == null ? new byte[0] : message.getBody().getBytes(CharsetUtils.UTF_8);
+        MessageEnvelope envelope = new MessageEnvelope(message.getType());
+        envelope.setBody(body, 0, body.length);
+        return envelope;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
     }
 }
@@ -0,0 +1,31 @@
+package infrastructure.mq.internal;
+
+/**
+ * 按消息ID去重。接收方在解析消息体前预留消息ID，处理成功后登记为已处理；已预留或已处理的消息视为重复消息丢弃。
+ * <p>预留在租期后失效，处理中的进程崩溃时，传输层重新投递的同一条消息在租期后可以再次处理。
+ */
+public interface MessageDeduplicator {
+    long DEFAULT_LEASE_MILLIS = 60000;
+
+    /**
+     * 预留消息ID，预留在租期后失效
+     *
+     * @param messageId 消息ID
+     * @return 消息ID此前未预留也未登记为已处理时返回true
+     */
+    boolean tryAcquire(String messageId);
+
+    /**
+     * 登记为已处理，在去重时间窗口内保留
+     *
+     * @param messageId 消息ID
+     */
+    void complete(String messageId);
+
+    /**
+     * 撤销预留。消息处理失败时撤销，使重新发送的同一条消息可以再次处理。
+     *
+     * @param messageId 消息ID
+     */
+    void release(String messageId);
+}
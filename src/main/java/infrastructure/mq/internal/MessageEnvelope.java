@@ -0,0 +1,207 @@
+package infrastructure.mq.internal;
+
+/**
+ * 已解析消息头、尚未反序列化消息体的消息。
+ * <p>消息体以原始字节区间的形式保留，监听器确定后再按目标类型解析。
+ */
+public class MessageEnvelope {
+    private String id;
+    private String type;
+    private int attempt = 1;
+    private String partitionKey;
+    private String target;
+    private long expiresAt;
+    private String correlationId;
+    private long sentAt;
+    private String traceId;
+    private String spanId;
+    private boolean compressed;
+    private int rawLength;
+    private byte[] bytes;
+    private int bodyOffset;
+    private int bodyLength;
+
+    MessageEnvelope() {
+    }
+
+    MessageEnvelope(String type) {
+        this.type = type;
+    }
+
+    /**
+     * 消息ID，同一条消息重新投递时不变
+     */
+    public String getId() {
+        return id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * 投递次数，首次投递为1
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * 分区键，相同分区键的消息按发送顺序处理
+     */
+    public String getPartitionKey() {
+        return partitionKey;
+    }
+
+    /**
+     * 目标监听器名称。为null时投递给该消息类型的全部监听器，重新投递的消息只投递给处理失败的监听器
+     */
+    public String getTarget() {
+        return target;
+    }
+
+    /**
+     * 过期时间（毫秒时间戳），为0时不过期。过期的消息在解析消息体前丢弃
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public boolean isExpired(long nowMillis) {
+        return expiresAt > 0 && nowMillis > expiresAt;
+    }
+
+    /**
+     * 关联ID。请求消息与其应答消息的关联ID相同，普通消息为null
+     */
+    public String getCorrelationId() {
+        return correlationId;
+    }
+
+    /**
+     * 发送时间（毫秒时间戳），为0时未记录。定时消息与周期消息不记录，重新投递时不变
+     */
+    public long getSentAt() {
+        return sentAt;
+    }
+
+    /**
+     * 发送方所在调用链的跟踪ID，处理消息时作为接收方的跟踪ID
+     */
+    public String getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * 发送方发送消息时所在的 span，没有时为null
+     */
+    public String getSpanId() {
+        return spanId;
+    }
+
+    /**
+     * 消息体是否经过压缩。压缩时 {@link #getBytes()} 中的消息体区间为压缩后的字节
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * 压缩前的消息体长度
+     */
+    public int getRawLength() {
+        return rawLength;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getBodyOffset() {
+        return bodyOffset;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    void setId(String id) {
+        this.id = id;
+    }
+
+    void setType(String type) {
+        this.type = type;
+    }
+
+    void setAttempt(int attempt) {
+        this.attempt = attempt;
+    }
+
+    void setPartitionKey(String partitionKey) {
+        this.partitionKey = partitionKey;
+    }
+
+    void setTarget(String target) {
+        this.target = target;
+    }
+
+    void setExpiresAt(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    void setCorrelationId(String correlationId) {
+        this.correlationId = correlationId;
+    }
+
+    void setSentAt(long sentAt) {
+        this.sentAt = sentAt;
+    }
+
+    void setTrace(String traceId, String spanId) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+    }
+
+    void setCompressed(int rawLength) {
+        this.compressed = true;
+        this.rawLength = rawLength;
+    }
+
+    void setBody(byte[] bytes, int bodyOffset, int bodyLength) {
+        this.bytes = bytes;
+        this.bodyOffset = bodyOffset;
+        this.bodyLength = bodyLength;
+    }
+
+    MessageEnvelope withAttempt(int attempt) {
+        return copy(id, attempt, target);
+    }
+
+    MessageEnvelope withTarget(String target) {
+        return copy(id, attempt, target);
+    }
+
+    /**
+     * 重新入队的死信以新的消息ID从第一次投递开始，不会被当作已处理的消息去重
+     */
+    MessageEnvelope requeued(String id) {
+        return copy(id, 1, target);
+    }
+
+    private MessageEnvelope copy(String id, int attempt, String target) {
+        MessageEnvelope copy = new MessageEnvelope(type);
+        copy.setId(id);
+        copy.setAttempt(attempt);
+        copy.setPartitionKey(partitionKey);
+        copy.setTarget(target);
+        copy.setExpiresAt(expiresAt);
+        copy.setCorrelationId(correlationId);
+        copy.setSentAt(sentAt);
+        copy.setTrace(traceId, spanId);
+        if (compressed) {
+            copy.setCompressed(rawLength);
+        }
+        copy.setBody(bytes, bodyOffset, bodyLength);
+        return copy;
+    }
+}
@@ -0,0 +1,182 @@
+package infrastructure.mq.internal;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import infrastructure.errorcode.SystemErrorCode;
+import infrastructure.mq.provider.MessageSender;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 事务发件箱：事务提交前将该事务发送的全部消息编码后作为一行写入发件箱表，与业务数据一起提交；
+ * 提交后由转发线程按提交顺序交给发送方并删除该行。
+ * <p>写入时转发时间设为租期之后，租期内由提交事务的节点转发。节点在转发前退出时，
+ * 任一节点的轮询在租期过后认领该行重新转发。转发中途失败时整行重新转发，已发送的消息可能重复，
+ * 接收方按消息ID去重。
+ */
+public class MessageOutbox {
+    private static final Logger logger = LoggerFactory.getLogger(MessageOutbox.class);
+
+    private static final byte PAYLOAD_VERSION = 1;
+
+    private final OutboxMapper outboxMapper;
+    private final MessageSender messageSender;
+    private final long leaseMillis;
+    private final int batchSize;
+    private final ScheduledExecutorService relayExecutor;
+
+    /**
+     * @param leaseMillis        提交事务的节点独占转发的时间，轮询认领后同样独占
+     * @param pollIntervalMillis 轮询未转发消息的间隔
+     * @param batchSize          每次轮询认领的最大行数
+     */
+    public MessageOutbox(OutboxMapper outboxMapper, MessageSender messageSender, long leaseMillis,
+                         long pollIntervalMillis, int batchSize) {
+        this.outboxMapper = outboxMapper;
+        this.messageSender = messageSender;
+        this.leaseMillis = leaseMillis;
+        this.batchSize = batchSize;
+        //one thread keeps relays in commit order and never races the poll of this node
+        this.relayExecutor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("mq-outbox-%d").setDaemon(true).build());
+        relayExecutor.scheduleWithFixedDelay(this::poll, pollIntervalMillis, pollIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 在事务中写入一行
+     *
+     * @return 行ID
+     */
+    String save(List<Entry> entries) {
+        String id = UUID.randomUUID().toString();
+        outboxMapper.insert(id, System.currentTimeMillis() + leaseMillis, encode(entries));
+        return id;
+    }
+
+    /**
+     * 事务提交后转发，不阻塞提交事务的线程
+     */
+    void relay(String id, List<Entry> entries) {
+        relayExecutor.execute(() -> relayNow(id, entries));
+    }
+
+    public void shutdown() {
+        relayExecutor.shutdown();
+    }
+
+    private void poll() {
+        List<OutboxMapper.Row> rows;
+        long now = System.currentTimeMillis();
+        try {
+            rows = outboxMapper.selectDue(now, batchSize);
+        } catch (RuntimeException ex) {
+            logger.error("poll outbox error", ex);
+            return;
+        }
+        for (OutboxMapper.Row row : rows) {
+            try {
+                if (outboxMapper.claim(row.getId(), row.getRelayAt(), now + leaseMillis) == 1) {
+                    relayNow(row.getId(), decode(row.getPayload()));
+                }
+            } catch (RuntimeException ex) {
+                logger.error("claim outbox error, id: " + row.getId(), ex);
+            }
+        }
+    }
+
+    private void relayNow(String id, List<Entry> entries) {
+        try {
+            send(entries);
+            outboxMapper.delete(id);
+        } catch (RuntimeException ex) {
+            logger.error("relay outbox error, id: " + id + ", relay again after lease", ex);
+        }
+    }
+
+    /**
+     * 按原顺序发送，连续的同类型不带分区键的消息合并为一次批量发送
+     */
+    private void send(List<Entry> entries) {
+        int i = 0;
+        while (i < entries.size()) {
+            Entry entry = entries.get(i);
+            if (entry.partitionKey != null) {
+                messageSender.send(entry.messageType, entry.partitionKey, entry.bytes);
+                i++;
+                continue;
+            }
+            List<byte[]> batch = new ArrayList<>();
+            while (i < entries.size() && entries.get(i).partitionKey == null &&
+                    entries.get(i).messageType.equals(entry.messageType)) {
+                batch.add(entries.get(i++).bytes);
+            }
+            if (batch.size() == 1) {
+                messageSender.send(entry.messageType, batch.get(0));
+            } else {
+                messageSender.sendAll(entry.messageType, batch);
+            }
+        }
+    }
+
+    private static byte[] encode(List<Entry> entries) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(PAYLOAD_VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeUTF(entry.messageType);
+                out.writeBoolean(entry.partitionKey != null);
+                if (entry.partitionKey != null) {
+                    out.writeUTF(entry.partitionKey);
+                }
+                out.writeInt(entry.bytes.length);
+                out.write(entry.bytes);
+            }
+        } catch (IOException ex) {
+            throw SystemErrorCode.MQ_MSG_ILLEGAL.e(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static List<Entry> decode(byte[] payload) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+            SystemErrorCode.MQ_MSG_ILLEGAL.throwIf(in.readByte() != PAYLOAD_VERSION);
+            int count = in.readInt();
+            List<Entry> entries = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String messageType = in.readUTF();
+                String partitionKey = in.readBoolean() ? in.readUTF() : null;
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                entries.add(new Entry(messageType, partitionKey, bytes));
+            }
+            return entries;
+        } catch (IOException ex) {
+            throw SystemErrorCode.MQ_MSG_ILLEGAL.e(ex);
+        }
+    }
+
+    static class Entry {
+        final String messageType;
+        final String partitionKey;
+        final byte[] bytes;
+
+        Entry(String messageType, String partitionKey, byte[] bytes) {
+            this.messageType = messageType;
+            this.partitionKey = partitionKey;
+            this.bytes = bytes;
+        }
+    }
+}
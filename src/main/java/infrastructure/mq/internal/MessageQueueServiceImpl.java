@@ -1,10 +1,28 @@
 package infrastructure.mq.internal;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import infrastructure.errorcode.SystemErrorCode;
 import infrastructure.mq.provider.MessageSender;
+import infrastructure.mq.provider.ScheduledTask;
+import infrastructure.mq.provider.threading.MessageScheduler;
+import infrastructure.mq.provider.threading.TimingWheelMessageScheduler;
+import infrastructure.mq.service.AckLevel;
 import infrastructure.mq.service.MessageQueueService;
+import infrastructure.mq.service.ScheduledMessage;
+import org.springframework.scheduling.support.CronSequenceGenerator;
 
 import java.time.Duration;
 import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
 
 /**
  * @author joeyh 2019/1/9 15:29
@@ -12,27 +30,282 @@ import java.time.OffsetDateTime;
 public class MessageQueueServiceImpl implements MessageQueueService {
     private MessageSender messageSender;
     private MessageConverter messageConverter;
+    private LocalMessageDispatcher localMessageDispatcher;
+    private MessageAcknowledger messageAcknowledger;
+    private ReplyCorrelator replyCorrelator;
+    private ConcurrentMap<String, ScheduledMessage> scheduledMessages = new ConcurrentHashMap<>();
+    private MessageScheduler localScheduler;
 
-    public MessageQueueServiceImpl(MessageSender messageSender, MessageConverter messageConverter) {
+    public MessageQueueServiceImpl(MessageSender messageSender, MessageConverter messageConverter,
+                                   MessageAcknowledger messageAcknowledger, ReplyCorrelator replyCorrelator) {
+        this(messageSender, messageConverter, messageAcknowledger, replyCorrelator, null);
+    }
+
+    /**
+     * @param messageAcknowledger    与接收方共用，{@link AckLevel#HANDLED} 的消息在处理后由接收方通知
+     * @param replyCorrelator        与接收方共用，接收请求的应答
+     * @param localMessageDispatcher 不为null时即时消息不经序列化，直接在进程内投递；进程内队列已满时经发送方投递
+     */
+    public MessageQueueServiceImpl(MessageSender messageSender, MessageConverter messageConverter,
+                                   MessageAcknowledger messageAcknowledger, ReplyCorrelator replyCorrelator,
+                                   LocalMessageDispatcher localMessageDispatcher) {
         this.messageSender = messageSender;
         this.messageConverter = messageConverter;
+        this.messageAcknowledger = messageAcknowledger;
+        this.replyCorrelator = replyCorrelator;
+        this.localMessageDispatcher = localMessageDispatcher;
     }
 
     @Override
     public void send(String messageType, Object messageBody) {
+        if (localMessageDispatcher != null) {
+            checkLocalType(messageType);
+            if (localMessageDispatcher.dispatch(messageType, messageBody, null, messageConverter.expiresAt(messageType))) {
+                return;
+            }
+        }
+        if (messageSender.supportsMessageBuffer()) {
+            messageSender.send(messageType, messageConverter.toBuffer(messageType, messageBody));
+            return;
+        }
         byte[] bytes = messageConverter.toBytes(messageType, messageBody);
         messageSender.send(messageType, bytes);
     }
 
     @Override
-    public void send(String messageType, Object messageBody, OffsetDateTime time) {
-        byte[] bytes = messageConverter.toBytes(messageType, messageBody);
-        messageSender.send(messageType, bytes, time);
+    public void sendAll(String messageType, Collection<?> messageBodies) {
+        if (localMessageDispatcher != null) {
+            checkLocalType(messageType);
+            long expiresAt = messageConverter.expiresAt(messageType);
+            List<Object> notDispatched = new ArrayList<>();
+            for (Object messageBody : messageBodies) {
+                if (!localMessageDispatcher.dispatch(messageType, messageBody, null, expiresAt)) {
+                    notDispatched.add(messageBody);
+                }
+            }
+            if (notDispatched.isEmpty()) {
+                return;
+            }
+            messageBodies = notDispatched;
+        }
+        if (messageSender.supportsMessageBuffer()) {
+            //enqueue the whole batch before waiting, as sendAll does, so it shares one flush
+            List<CompletableFuture<Void>> futures = new ArrayList<>(messageBodies.size());
+            for (Object messageBody : messageBodies) {
+                futures.add(messageSender.sendAsync(messageType, messageConverter.toBuffer(messageType, messageBody)));
+            }
+            futures.forEach(CompletableFuture::join);
+            return;
+        }
+        List<byte[]> messagesBytes = new ArrayList<>(messageBodies.size());
+        for (Object messageBody : messageBodies) {
+            messagesBytes.add(messageConverter.toBytes(messageType, messageBody));
+        }
+        messageSender.sendAll(messageType, messagesBytes);
     }
 
     @Override
-    public void send(String messageType, Object messageBody, OffsetDateTime time, Duration duration) {
-        byte[] bytes = messageConverter.toBytes(messageType, messageBody);
-        messageSender.send(messageType, bytes, time, duration);
+    public void sendWithPartitionKey(String messageType, Object messageBody, String partitionKey) {
+        if (localMessageDispatcher != null) {
+            checkLocalType(messageType);
+            localMessageDispatcher.dispatch(messageType, messageBody, partitionKey,
+                    messageConverter.expiresAt(messageType));
+            return;
+        }
+        MessageEnvelope envelope = messageConverter.newEnvelope(messageType);
+        envelope.setPartitionKey(partitionKey);
+        byte[] bytes = messageConverter.toBytes(envelope, messageBody);
+        messageSender.send(messageType, partitionKey, bytes);
+    }
+
+    @Override
+    public void sendWithTtl(String messageType, Object messageBody, Duration timeToLive) {
+        long expiresAt = System.currentTimeMillis() + timeToLive.toMillis();
+        if (localMessageDispatcher != null) {
+            checkLocalType(messageType);
+            if (localMessageDispatcher.dispatch(messageType, messageBody, null, expiresAt)) {
+                return;
+            }
+        }
+        MessageEnvelope envelope = messageConverter.newEnvelope(messageType);
+        envelope.setExpiresAt(expiresAt);
+        if (messageSender.supportsMessageBuffer()) {
+            messageSender.send(messageType, messageConverter.toBuffer(envelope, messageBody));
+            return;
+        }
+        messageSender.send(messageType, messageConverter.toBytes(envelope, messageBody));
+    }
+
+    /**
+     * {@link AckLevel#HANDLED} 的消息总是序列化后经发送方投递，以消息ID对应处理结果。
+     * 消息可能由其他进程处理的发送方（如 Redis Stream）无法得知处理结果，
+     * 此时异常完成，错误码为 {@link SystemErrorCode#MQ_ACK_UNSUPPORTED}，消息不发送
+     */
+    @Override
+    public CompletableFuture<Void> sendAsync(String messageType, Object messageBody, AckLevel ackLevel) {
+        try {
+            switch (ackLevel) {
+                case ENQUEUED:
+                    if (localMessageDispatcher != null) {
+                        send(messageType, messageBody);
+                    } else {
+                        sendImmediateAsync(messageType, messageBody);
+                    }
+                    return CompletableFuture.completedFuture(null);
+                case PERSISTED:
+                    if (localMessageDispatcher != null) {
+                        send(messageType, messageBody);
+                        return CompletableFuture.completedFuture(null);
+                    }
+                    return messageAcknowledger.relay(sendImmediateAsync(messageType, messageBody));
+                default:
+                    SystemErrorCode.MQ_ACK_UNSUPPORTED.throwIf(!messageSender.isReceivedInProcess());
+                    if (localMessageDispatcher != null) {
+                        checkLocalType(messageType);
+                    }
+                    MessageEnvelope envelope = messageConverter.newEnvelope(messageType);
+                    byte[] bytes = messageConverter.toBytes(envelope, messageBody);
+                    CompletableFuture<Void> handled = messageAcknowledger.track(envelope.getId());
+                    messageSender.sendAsync(messageType, bytes).whenComplete((result, cause) -> {
+                        if (cause != null) {
+                            messageAcknowledger.fail(envelope.getId(), cause);
+                        }
+                    });
+                    return handled;
+            }
+        } catch (RuntimeException ex) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(ex);
+            return future;
+        }
+    }
+
+    /**
+     * 请求消息总是序列化后经发送方投递，过期时间与等待应答的超时相同。
+     * 应答经同一个发送方发回，只有消息总由本进程接收的发送方能收到应答
+     */
+    @Override
+    public <R> CompletableFuture<R> request(String messageType, Object messageBody, Class<R> replyClass,
+                                            Duration timeout) {
+        if (!messageSender.isReceivedInProcess()) {
+            CompletableFuture<R> future = new CompletableFuture<>();
+            future.completeExceptionally(SystemErrorCode.MQ_REQUEST_UNSUPPORTED.e());
+            return future;
+        }
+        if (localMessageDispatcher != null) {
+            checkLocalType(messageType);
+        }
+        MessageEnvelope envelope = messageConverter.newEnvelope(messageType);
+        envelope.setCorrelationId(MessageConverter.newMessageId());
+        envelope.setExpiresAt(System.currentTimeMillis() + timeout.toMillis());
+        byte[] bytes = messageConverter.toBytes(envelope, messageBody);
+        CompletableFuture<R> reply = replyCorrelator.register(envelope.getCorrelationId(), replyClass,
+                timeout.toMillis());
+        try {
+            messageSender.send(messageType, bytes);
+        } catch (RuntimeException ex) {
+            replyCorrelator.cancel(envelope.getCorrelationId(), ex);
+        }
+        return reply;
+    }
+
+    /**
+     * 定时消息不设置过期时间。发送方不通知触发，登记在本地计时到触发时间后移除
+     */
+    @Override
+    public ScheduledMessage send(String messageType, Object messageBody, OffsetDateTime time) {
+        MessageEnvelope envelope = new MessageEnvelope(messageType);
+        envelope.setId(MessageConverter.newMessageId());
+        byte[] bytes = messageConverter.toBytes(envelope, messageBody);
+        String id = MessageConverter.newMessageId();
+        MessageScheduler scheduler = getLocalScheduler();
+        return register(new ScheduledMessageImpl(id, messageType, time.toString(), next -> {
+            OffsetDateTime fireTime = next == null ? time : next;
+            ScheduledTask task = messageSender.send(messageType, bytes, fireTime);
+            long delay = Math.max(0, OffsetDateTime.now().until(fireTime, ChronoUnit.MILLIS));
+            return new OneShotTask(task, scheduler.schedule(() -> scheduledMessages.remove(id), delay));
+        }, m -> scheduledMessages.remove(m.getId())));
+    }
+
+    /**
+     * 周期消息每次触发都使用同一份字节，不带消息ID，接收方不做去重
+     */
+    @Override
+    public ScheduledMessage send(String messageType, Object messageBody, OffsetDateTime time, Duration duration) {
+        byte[] bytes = messageConverter.toBytes(new MessageEnvelope(messageType), messageBody);
+        return register(new ScheduledMessageImpl(MessageConverter.newMessageId(), messageType,
+                "every " + duration + " from " + time,
+                next -> messageSender.send(messageType, bytes, next == null ? time : next, duration),
+                m -> scheduledMessages.remove(m.getId())));
+    }
+
+    @Override
+    public ScheduledMessage sendByCron(String messageType, Object messageBody, String cronExpression) {
+        CronSequenceGenerator sequenceGenerator = new CronSequenceGenerator(cronExpression, TimeZone.getDefault());
+        byte[] bytes = messageConverter.toBytes(new MessageEnvelope(messageType), messageBody);
+        MessageScheduler scheduler = getLocalScheduler();
+        return register(new ScheduledMessageImpl(MessageConverter.newMessageId(), messageType, cronExpression,
+                next -> new CronScheduledTask(scheduler, sequenceGenerator, () -> messageSender.send(messageType, bytes),
+                        next == null ? null : Date.from(next.toInstant())),
+                m -> scheduledMessages.remove(m.getId())));
+    }
+
+    @Override
+    public List<ScheduledMessage> getScheduledMessages() {
+        return new ArrayList<>(scheduledMessages.values());
+    }
+
+    private ScheduledMessage register(ScheduledMessageImpl scheduledMessage) {
+        scheduledMessages.put(scheduledMessage.getId(), scheduledMessage);
+        return scheduledMessage;
+    }
+
+    /**
+     * cron 消息在本地计时，到期后作为即时消息发送；定时消息的登记同样在本地计时
+     */
+    private synchronized MessageScheduler getLocalScheduler() {
+        if (localScheduler == null) {
+            localScheduler = new TimingWheelMessageScheduler(Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setNameFormat("mq-cron-%d").setDaemon(true).build()));
+        }
+        return localScheduler;
+    }
+
+    private CompletableFuture<Void> sendImmediateAsync(String messageType, Object messageBody) {
+        if (messageSender.supportsMessageBuffer()) {
+            return messageSender.sendAsync(messageType, messageConverter.toBuffer(messageType, messageBody));
+        }
+        return messageSender.sendAsync(messageType, messageConverter.toBytes(messageType, messageBody));
+    }
+
+    /**
+     * 进程内投递时没有其他节点可以处理未注册的消息类型，直接拒绝
+     */
+    private void checkLocalType(String messageType) {
+        SystemErrorCode.MQ_MSG_ILLEGAL.throwIf(!messageConverter.supports(messageType));
+    }
+
+    /**
+     * 定时消息在发送方的任务与到期移除登记的本地任务，一同取消
+     */
+    private static class OneShotTask implements ScheduledTask {
+        private final ScheduledTask task;
+        private final ScheduledTask expiry;
+
+        OneShotTask(ScheduledTask task, ScheduledTask expiry) {
+            this.task = task;
+            this.expiry = expiry;
+        }
+
+        @Override
+        public boolean cancel() {
+            expiry.cancel();
+            return task.cancel();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return task.isCancelled();
+        }
     }
 }
@@ -1,49 +1,494 @@
 package infrastructure.mq.internal;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import infrastructure.errorcode.SystemErrorCode;
 import infrastructure.mq.provider.MessageReceiver;
+import infrastructure.mq.provider.threading.ConcurrencyLimiter;
+import infrastructure.mq.provider.threading.MessageScheduler;
+import infrastructure.mq.provider.threading.TimingWheelMessageScheduler;
+import infrastructure.mq.service.BatchMessageListener;
+import infrastructure.mq.service.BulkheadPolicy;
+import infrastructure.mq.service.CoalescingPolicy;
+import infrastructure.mq.service.LatencyStatistics;
 import infrastructure.mq.service.MessageListener;
-import javafx.util.Pair;
+import infrastructure.mq.service.RequestListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
+ * 同一消息类型可以有多个监听器：消息体只解析一次，由各监听器并行处理，
+ * 每个监听器有各自的批量、合并、隔离舱设置与重新投递，重新投递的消息只投递给处理失败的监听器。
+ * <p>监听器在消息的调用链中处理，见 {@link MessageTracing}；
+ * 各消息类型的排队、解析与处理延迟记录在 {@link HistogramMessageMetrics}。
+ *
  * @author joeyh 2019/1/9 14:16
  */
 public class MessageReceiverImpl extends MessageReceiver {
     private static final Logger logger = LoggerFactory.getLogger(MessageReceiverImpl.class);
 
-    private Map<String, MessageListener> listenerMap;
+    private static final int FAN_OUT_QUEUE_CAPACITY = 1024;
+    private static final CompletableFuture<Boolean> RECEIVED = CompletableFuture.completedFuture(true);
+
+    private Map<String, List<Subscriber>> subscriberMap;
     private MessageConverter messageConverter;
+    private MessageRedelivery messageRedelivery;
+    private StripedExecutor stripedExecutor;
+    private MessageScheduler batchScheduler;
+    private MessageScheduler coalesceScheduler;
+    private BulkheadDispatcher bulkheadDispatcher;
+    private ThreadPoolExecutor fanOutExecutor;
+    private MessageDeduplicator messageDeduplicator;
+    private MessageAcknowledger messageAcknowledger;
+    private ReplyCorrelator replyCorrelator;
+    private HistogramMessageMetrics messageMetrics;
+    private ConcurrencyLimiter concurrencyLimiter;
 
-    public MessageReceiverImpl(MessageConverter messageConverter, List<MessageListener> messageListeners) {
+    /**
+     * @param bulkheadThreads     设置了隔离舱策略的消息类型共享的工作线程数，也是多个监听器并行处理的线程数
+     * @param messageDeduplicator 为null时不去重
+     * @param messageAcknowledger 接收处理完成与最终失败的通知
+     * @param replyCorrelator     接收应答消息，发送 {@link RequestListener} 的应答
+     * @param messageMetrics      记录各消息类型的排队、解析与处理延迟
+     * @param concurrencyLimiter  报告监听器的处理时间与失败，为null时不报告
+     */
+    public MessageReceiverImpl(MessageConverter messageConverter, List<MessageListener> messageListeners,
+                               MessageRedelivery messageRedelivery, StripedExecutor stripedExecutor,
+                               int bulkheadThreads, MessageDeduplicator messageDeduplicator,
+                               MessageAcknowledger messageAcknowledger, ReplyCorrelator replyCorrelator,
+                               HistogramMessageMetrics messageMetrics, ConcurrencyLimiter concurrencyLimiter) {
         this.messageConverter = messageConverter;
-        listenerMap = new HashMap<>();
-        messageListeners.forEach(l -> {
+        this.messageMetrics = messageMetrics;
+        this.concurrencyLimiter = concurrencyLimiter;
+        this.messageDeduplicator = messageDeduplicator;
+        this.messageAcknowledger = messageAcknowledger;
+        this.replyCorrelator = replyCorrelator;
+        this.messageRedelivery = messageRedelivery;
+        this.stripedExecutor = stripedExecutor;
+        subscriberMap = new HashMap<>();
+        for (MessageListener l : messageListeners) {
             String messageType = l.forMessageType();
-            if (listenerMap.containsKey(messageType)) {
-                throw new RuntimeException("Multiple listeners for message type[" + messageType + "] found: " +
-                        listenerMap.get(messageType).getClass().getName() +
-                        ", " + l.getClass().getName());
+            List<Subscriber> subscribers = subscriberMap.computeIfAbsent(messageType, t -> new ArrayList<>());
+            for (Subscriber s : subscribers) {
+                if (s.name.equals(l.listenerName())) {
+                    throw new RuntimeException("Multiple listeners named [" + s.name + "] for message type[" +
+                            messageType + "] found: " + s.listener.getClass().getName() +
+                            ", " + l.getClass().getName());
+                }
             }
-            listenerMap.put(messageType, l);
-        });
+            subscribers.add(new Subscriber(messageType, l, bulkheadThreads));
+        }
+        if (subscriberMap.values().stream().anyMatch(subscribers -> subscribers.size() > 1)) {
+            fanOutExecutor = new ThreadPoolExecutor(bulkheadThreads, bulkheadThreads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(FAN_OUT_QUEUE_CAPACITY),
+                    new ThreadFactoryBuilder().setNameFormat("mq-fan-out-%d").setDaemon(true).build(),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+        }
     }
 
-    @SuppressWarnings("unchecked")
+    /**
+     * 等待消息处理完成，带分区键的消息在分区线程上处理完成后才返回
+     */
+    @Override
     public boolean onMessageReceived(byte[] messageBytes) {
-        Pair<String, Object> message = messageConverter.fromBytes(messageBytes);
-        MessageListener l = listenerMap.get(message.getKey());
-        Object body = message.getValue();
+        return onMessageReceivedAsync(messageBytes).join();
+    }
+
+    /**
+     * 带分区键或由隔离舱处理的消息排入对应线程后返回，在该线程上处理完成后完成；分区队列已满时抛出 {@link SystemErrorCode#MQ_QUEUE_FULL}
+     */
+    @Override
+    public CompletableFuture<Boolean> onMessageReceivedAsync(byte[] messageBytes) {
+        MessageEnvelope envelope;
         try {
-            l.handle(body);
+            envelope = messageConverter.readEnvelope(messageBytes);
+            if (replyCorrelator.isReply(envelope)) {
+                replyCorrelator.onReply(envelope);
+                return RECEIVED;
+            }
+            SystemErrorCode.MQ_MSG_ILLEGAL.throwIf(!subscriberMap.containsKey(envelope.getType()));
+        } catch (RuntimeException ex) {
+            logger.error("illegal message dropped", ex);
+            return RECEIVED;
+        }
+        if (isExpired(envelope)) {
+            return RECEIVED;
+        }
+        List<Subscriber> subscribers = subscribersOf(envelope);
+        if (subscribers.isEmpty()) {
+            logger.warn("message of type[" + envelope.getType() + "] dropped, listener not found: " +
+                    envelope.getTarget());
+            return RECEIVED;
+        }
+        if (isDuplicate(envelope)) {
+            logger.debug("duplicate message dropped, id: " + envelope.getId());
+            return RECEIVED;
+        }
+        if (envelope.getPartitionKey() != null) {
+            //listeners run one after another on the partition thread to keep each of them in order
+            CompletableFuture<CompletableFuture<Boolean>> queued = new CompletableFuture<>();
+            stripedExecutor.execute(envelope.getPartitionKey(), () -> {
+                try {
+                    Object body = readBody(envelope, subscribers);
+                    List<CompletableFuture<Boolean>> received = new ArrayList<>(subscribers.size());
+                    if (body != null) {
+                        for (Subscriber s : subscribers) {
+                            received.add(deliver(s, body, envelope));
+                        }
+                    }
+                    queued.complete(allReceived(received));
+                } catch (RuntimeException ex) {
+                    queued.completeExceptionally(ex);
+                }
+            });
+            return queued.thenCompose(received -> received);
+        }
+        if (subscribers.size() == 1 && subscribers.get(0).bulkhead != null) {
+            //a single listener decodes on its bulkhead thread
+            Subscriber s = subscribers.get(0);
+            CompletableFuture<Boolean> received = offer(s.bulkhead, () -> {
+                Object body = readBody(envelope, subscribers);
+                return body == null ? RECEIVED : deliver(s, body, envelope);
+            });
+            if (received == null) {
+                return CompletableFuture.completedFuture(
+                        onFailure(s, null, envelope, SystemErrorCode.MQ_QUEUE_FULL.e()));
+            }
+            return received;
+        }
+        Object body = readBody(envelope, subscribers);
+        return body == null ? RECEIVED : fanOut(subscribers, body, envelope);
+    }
+
+    /**
+     * 处理进程内投递的消息，消息体未经序列化。监听器在发送方的调用链中处理。
+     *
+     * @param sentAt 发送时间（毫秒时间戳）
+     * @param trace  发送时的调用链
+     */
+    void onLocalMessage(String messageType, Object messageBody, long sentAt, MessageTracing.Context trace) {
+        messageMetrics.record(messageType, LatencyStatistics.Stage.QUEUE_WAIT,
+                (System.currentTimeMillis() - sentAt) * 1000);
+        try (MessageTracing.Scope ignored = MessageTracing.open(trace)) {
+            fanOut(subscriberMap.get(messageType), messageBody, null);
+        }
+    }
+
+    /**
+     * 最后一个监听器在当前线程上处理，其他监听器交给各自的隔离舱或并行处理的线程
+     *
+     * @return 各监听器都处理完成（或已安排重新投递）后完成
+     * @param envelope 进程内投递的消息为null
+     */
+    private CompletableFuture<Boolean> fanOut(List<Subscriber> subscribers, Object body, MessageEnvelope envelope) {
+        List<CompletableFuture<Boolean>> received = new ArrayList<>(subscribers.size());
+        for (int i = 0; i < subscribers.size(); i++) {
+            Subscriber s = subscribers.get(i);
+            if (s.bulkhead != null) {
+                CompletableFuture<Boolean> offered = offer(s.bulkhead,
+                        MessageTracing.propagate(() -> deliver(s, body, envelope)));
+                received.add(offered != null ? offered : CompletableFuture.completedFuture(
+                        onFailure(s, body, envelope, SystemErrorCode.MQ_QUEUE_FULL.e())));
+            } else if (i < subscribers.size() - 1) {
+                //the caller runs the listener itself when the queue is full
+                received.add(CompletableFuture.supplyAsync(
+                        MessageTracing.propagate(() -> deliver(s, body, envelope)), fanOutExecutor)
+                        .thenCompose(r -> r));
+            } else {
+                received.add(deliver(s, body, envelope));
+            }
+        }
+        return allReceived(received);
+    }
+
+    /**
+     * @return 隔离舱等待队列已满时返回null，否则在隔离舱线程上交出的处理结果完成后完成
+     */
+    private static CompletableFuture<Boolean> offer(BulkheadDispatcher.Bulkhead bulkhead,
+                                                    Supplier<CompletableFuture<Boolean>> task) {
+        CompletableFuture<CompletableFuture<Boolean>> queued = new CompletableFuture<>();
+        if (!bulkhead.offer(() -> {
+            try {
+                queued.complete(task.get());
+            } catch (RuntimeException ex) {
+                queued.completeExceptionally(ex);
+            }
+        })) {
+            return null;
+        }
+        return queued.thenCompose(received -> received);
+    }
+
+    /**
+     * @return 各监听器都完成后完成，都已接收时结果为true
+     */
+    private static CompletableFuture<Boolean> allReceived(List<CompletableFuture<Boolean>> received) {
+        if (received.size() == 1) {
+            return received.get(0);
+        }
+        return CompletableFuture.allOf(received.toArray(new CompletableFuture[0]))
+                .thenApply(ignored -> received.stream().allMatch(CompletableFuture::join));
+    }
+
+    /**
+     * 排队期间过期的消息在此丢弃，不再解析消息体
+     *
+     * @return 消息已过期或解析失败时返回null，解析失败的消息已按各监听器的策略重新投递
+     */
+    private Object readBody(MessageEnvelope envelope, List<Subscriber> subscribers) {
+        if (isExpired(envelope)) {
+            return null;
+        }
+        if (envelope.getSentAt() > 0 && envelope.getAttempt() == 1) {
+            messageMetrics.record(envelope.getType(), LatencyStatistics.Stage.QUEUE_WAIT,
+                    (System.currentTimeMillis() - envelope.getSentAt()) * 1000);
+        }
+        long start = System.nanoTime();
+        try {
+            Object body = messageConverter.readBody(envelope);
+            messageMetrics.record(envelope.getType(), LatencyStatistics.Stage.DESERIALIZATION,
+                    (System.nanoTime() - start) / 1000);
+            return body;
+        } catch (RuntimeException ex) {
+            subscribers.forEach(s -> onFailure(s, null, envelope, ex));
+            return null;
+        }
+    }
+
+    /**
+     * @return 监听器处理完成（或已安排重新投递）后完成，批量处理的消息在所在批次处理后完成，
+     * 合并的消息在合并后的消息处理后完成
+     */
+    private CompletableFuture<Boolean> deliver(Subscriber s, Object messageBody, MessageEnvelope envelope) {
+        Object body = messageBody;
+        try {
+            if (envelope == null && (s.listener.copyOnLocalDelivery() ||
+                    (body != null && !s.listener.forMessageClass().isInstance(body)))) {
+                long start = System.nanoTime();
+                body = messageConverter.copy(s.messageType, body);
+                messageMetrics.record(s.messageType, LatencyStatistics.Stage.DESERIALIZATION,
+                        (System.nanoTime() - start) / 1000);
+            }
+            if (s.coalescer != null) {
+                return s.coalescer.add(body, envelope);
+            }
+        } catch (Exception ex) {
+            return CompletableFuture.completedFuture(onFailure(s, messageBody, envelope, ex));
+        }
+        return process(s, body, envelope, Collections.emptyList());
+    }
+
+    /**
+     * 批量处理的监听器放入批次，其他监听器在当前线程上处理
+     *
+     * @param superseded 合并到这条消息的消息
+     */
+    private CompletableFuture<Boolean> process(Subscriber s, Object body, MessageEnvelope envelope,
+                                               List<MessageEnvelope> superseded) {
+        if (s.batcher != null) {
+            MessageBatcher.Item item = new MessageBatcher.Item(body, envelope, superseded);
+            try {
+                s.batcher.add(item);
+            } catch (RuntimeException ex) {
+                item.received.complete(onFailure(s, body, envelope, superseded, ex));
+            }
+            return item.received;
+        }
+        return CompletableFuture.completedFuture(handle(s, body, envelope, superseded));
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean handle(Subscriber s, Object body, MessageEnvelope envelope, List<MessageEnvelope> superseded) {
+        try {
+            //nested sends of the listener join the trace of the message
+            long start = System.nanoTime();
+            boolean failed = true;
+            try (MessageTracing.Scope ignored = MessageTracing.open(envelope)) {
+                if (s.listener instanceof RequestListener && envelope != null && envelope.getCorrelationId() != null) {
+                    replyCorrelator.reply(envelope.getCorrelationId(), ((RequestListener) s.listener).reply(body));
+                } else {
+                    s.listener.handle(body);
+                }
+                failed = false;
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                messageMetrics.record(s.messageType, LatencyStatistics.Stage.HANDLER, elapsed / 1000);
+                if (concurrencyLimiter != null) {
+                    concurrencyLimiter.onSample(s.messageType, elapsed, failed);
+                }
+            }
+            acknowledge(envelope);
+            superseded.forEach(this::acknowledge);
             return true;
         } catch (Exception ex) {
+            return onFailure(s, body, envelope, superseded, ex);
+        }
+    }
+
+    private List<Subscriber> subscribersOf(MessageEnvelope envelope) {
+        List<Subscriber> subscribers = subscriberMap.get(envelope.getType());
+        if (envelope.getTarget() == null) {
+            return subscribers;
+        }
+        for (Subscriber s : subscribers) {
+            if (s.name.equals(envelope.getTarget())) {
+                return Collections.singletonList(s);
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * 处理成功后登记消息ID，预留到期后重新投递的同一条消息不再处理
+     */
+    private void acknowledge(MessageEnvelope envelope) {
+        if (envelope == null) {
+            return;
+        }
+        messageAcknowledger.acknowledge(envelope.getId(), subscriberMap.get(envelope.getType()).size());
+        if (messageDeduplicator != null && envelope.getId() != null) {
+            try {
+                messageDeduplicator.complete(envelope.getId());
+            } catch (RuntimeException ex) {
+                logger.warn("message dedupe complete error, id: " + envelope.getId(), ex);
+            }
+        }
+    }
+
+    private boolean isExpired(MessageEnvelope envelope) {
+        if (!envelope.isExpired(System.currentTimeMillis())) {
+            return false;
+        }
+        logger.debug("expired message dropped, id: " + envelope.getId());
+        messageAcknowledger.fail(envelope.getId(), SystemErrorCode.MQ_MSG_EXPIRED.e());
+        return true;
+    }
+
+    /**
+     * 重新投递的消息总是处理，只重新登记消息ID。去重失败时按非重复消息处理。
+     */
+    private boolean isDuplicate(MessageEnvelope envelope) {
+        if (messageDeduplicator == null || envelope.getId() == null) {
+            return false;
+        }
+        try {
+            return !messageDeduplicator.tryAcquire(envelope.getId()) && envelope.getAttempt() == 1;
+        } catch (RuntimeException ex) {
+            logger.warn("message dedupe error, id: " + envelope.getId(), ex);
+            return false;
+        }
+    }
+
+    /**
+     * 被合并的消息与合并后的消息一同失败。合并后的消息已包含最新的内容，被合并的消息不再单独重新投递，
+     * 等待处理结果的发送方收到失败。
+     */
+    private boolean onFailure(Subscriber s, Object body, MessageEnvelope envelope,
+                              List<MessageEnvelope> superseded, Exception ex) {
+        for (MessageEnvelope e : superseded) {
+            release(s, e);
+            messageAcknowledger.fail(e.getId(), ex);
+        }
+        return onFailure(s, body, envelope, ex);
+    }
+
+    /**
+     * 有多个监听器时，重新投递的消息指定处理失败的监听器，其他监听器不会重复处理
+     *
+     * @param body     进程内投递的消息需要重新投递时才编码
+     * @param envelope 进程内投递的消息为null
+     */
+    private boolean onFailure(Subscriber s, Object body, MessageEnvelope envelope, Exception ex) {
+        if (envelope == null) {
+            envelope = messageConverter.readEnvelope(messageConverter.toBytes(s.messageType, body));
+        }
+        if (subscriberMap.get(s.messageType).size() > 1 && envelope.getTarget() == null) {
+            envelope = envelope.withTarget(s.name);
+        }
+        release(s, envelope);
+        try {
+            if (!messageRedelivery.onFailure(envelope, s.listener, ex)) {
+                messageAcknowledger.fail(envelope.getId(), ex);
+                if (s.listener instanceof RequestListener && envelope.getCorrelationId() != null) {
+                    replyCorrelator.replyError(envelope.getCorrelationId(), ex);
+                }
+            }
+            return true;
+        } catch (RuntimeException redeliveryEx) {
             logger.error("on message received error", ex);
+            logger.error("message redelivery error", redeliveryEx);
+            messageAcknowledger.fail(envelope.getId(), ex);
             return false;
         }
     }
+
+    private void release(Subscriber s, MessageEnvelope envelope) {
+        //other listeners may have handled the message, keep its id so duplicates still drop
+        if (messageDeduplicator != null && envelope.getId() != null && subscriberMap.get(s.messageType).size() == 1) {
+            try {
+                messageDeduplicator.release(envelope.getId());
+            } catch (RuntimeException releaseEx) {
+                logger.warn("message dedupe release error, id: " + envelope.getId(), releaseEx);
+            }
+        }
+    }
+
+    /**
+     * 一个监听器及其批量、合并与隔离舱设置
+     */
+    private class Subscriber {
+        private final String messageType;
+        private final String name;
+        private final MessageListener listener;
+        private MessageBatcher batcher;
+        private MessageCoalescer coalescer;
+        private BulkheadDispatcher.Bulkhead bulkhead;
+
+        Subscriber(String messageType, MessageListener listener, int bulkheadThreads) {
+            this.messageType = messageType;
+            this.name = listener.listenerName();
+            this.listener = listener;
+            if (listener instanceof BatchMessageListener) {
+                if (batchScheduler == null) {
+                    batchScheduler = new TimingWheelMessageScheduler(Executors.newCachedThreadPool(
+                            new ThreadFactoryBuilder().setNameFormat("mq-batch-%d").setDaemon(true).build()));
+                }
+                batcher = new MessageBatcher((BatchMessageListener) listener, batchScheduler,
+                        item -> {
+                            acknowledge(item.envelope);
+                            item.superseded.forEach(MessageReceiverImpl.this::acknowledge);
+                            item.received.complete(true);
+                        },
+                        (item, ex) -> item.received.complete(
+                                onFailure(this, item.body, item.envelope, item.superseded, ex)));
+            }
+            CoalescingPolicy coalescingPolicy = listener.coalescingPolicy();
+            if (coalescingPolicy != null) {
+                if (coalesceScheduler == null) {
+                    coalesceScheduler = new TimingWheelMessageScheduler(Executors.newCachedThreadPool(
+                            new ThreadFactoryBuilder().setNameFormat("mq-coalesce-%d").setDaemon(true).build()));
+                }
+                coalescer = new MessageCoalescer(coalescingPolicy, coalesceScheduler,
+                        (body, envelope, superseded) -> process(this, body, envelope, superseded));
+            }
+            BulkheadPolicy bulkheadPolicy = listener.bulkheadPolicy();
+            if (bulkheadPolicy != null) {
+                if (bulkheadDispatcher == null) {
+                    bulkheadDispatcher = new BulkheadDispatcher(bulkheadThreads);
+                }
+                bulkhead = bulkheadDispatcher.newBulkhead(messageType + "/" + name, bulkheadPolicy);
+            }
+        }
+    }
 }
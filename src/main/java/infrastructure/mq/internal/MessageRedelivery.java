@@ -0,0 +1,56 @@
+package infrastructure.mq.internal;
+
+import infrastructure.mq.provider.MessageSender;
+import infrastructure.mq.service.MessageListener;
+import infrastructure.mq.service.RedeliveryPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+
+/**
+ * 处理失败的消息按 {@link RedeliveryPolicy} 以定时消息的形式重新发送，由消息提供方计时，不占用处理线程；
+ * 超过最大投递次数后进入死信队列。
+ * <p>消息可能由其他节点接收的发送方应传入持久化的定时发送方与死信队列：返回true后消息提供方即确认原消息，
+ * 只在本节点计时的重新投递会随节点重启丢失。
+ */
+public class MessageRedelivery {
+    private static final Logger logger = LoggerFactory.getLogger(MessageRedelivery.class);
+
+    private MessageSender messageSender;
+    private MessageConverter messageConverter;
+    private DeadLetterQueue deadLetterService;
+    private RedeliveryPolicy defaultPolicy;
+
+    /**
+     * @param messageSender 发送重新投递的定时消息
+     */
+    public MessageRedelivery(MessageSender messageSender, MessageConverter messageConverter,
+                             DeadLetterQueue deadLetterService, RedeliveryPolicy defaultPolicy) {
+        this.messageSender = messageSender;
+        this.messageConverter = messageConverter;
+        this.deadLetterService = deadLetterService;
+        this.defaultPolicy = defaultPolicy;
+    }
+
+    /**
+     * @return 已安排重新投递时返回true，进入死信队列时返回false
+     */
+    public boolean onFailure(MessageEnvelope envelope, MessageListener listener, Exception cause) {
+        RedeliveryPolicy policy = listener == null || listener.redeliveryPolicy() == null ?
+                defaultPolicy : listener.redeliveryPolicy();
+        int attempt = envelope.getAttempt();
+        if (attempt >= policy.getMaxAttempts()) {
+            logger.error("message of type[{}] failed after {} attempts", envelope.getType(), attempt, cause);
+            deadLetterService.add(envelope, cause);
+            return false;
+        }
+        Duration backoff = policy.backoff(attempt);
+        logger.warn("message of type[{}] failed on attempt {}, redeliver in {}ms",
+                envelope.getType(), attempt, backoff.toMillis(), cause);
+        messageSender.send(envelope.getType(), messageConverter.toBytes(envelope.withAttempt(attempt + 1)),
+                OffsetDateTime.now().plus(backoff));
+        return true;
+    }
+}
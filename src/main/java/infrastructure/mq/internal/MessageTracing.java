@@ -0,0 +1,128 @@
+package infrastructure.mq.internal;
+
+import org.slf4j.MDC;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * 以 MDC 传递调用链：发送时从 MDC 读取跟踪ID与 span 写入消息头，没有跟踪ID时生成新的跟踪ID；
+ * 处理时将消息的跟踪ID与新的 span 放入 MDC，监听器的日志与其中发送的消息都属于同一调用链。
+ * <p>MDC 的键与 Spring Cloud Sleuth 相同，接入 Sleuth 后沿用其跟踪ID。
+ */
+final class MessageTracing {
+    static final String MDC_TRACE_ID = "traceId";
+    static final String MDC_SPAN_ID = "spanId";
+    static final String MDC_PARENT_SPAN_ID = "parentId";
+
+    private MessageTracing() {
+    }
+
+    static void inject(MessageEnvelope envelope) {
+        Context context = capture();
+        envelope.setTrace(context.traceId, context.spanId);
+    }
+
+    /**
+     * 进程内投递的消息不写入消息头，发送时取得调用链，处理时以 {@link #open(Context)} 打开
+     */
+    static Context capture() {
+        String traceId = MDC.get(MDC_TRACE_ID);
+        return new Context(traceId == null ? newId() : traceId, MDC.get(MDC_SPAN_ID));
+    }
+
+    /**
+     * 没有跟踪ID的消息（进程内投递或旧版本发送方）不改变当前线程的 MDC
+     *
+     * @return 处理完成后关闭，恢复处理前的 MDC
+     */
+    static Scope open(MessageEnvelope envelope) {
+        if (envelope == null || envelope.getTraceId() == null) {
+            return Scope.NOOP;
+        }
+        return open(envelope.getTraceId(), newId(), envelope.getSpanId());
+    }
+
+    /**
+     * @return 处理完成后关闭，恢复处理前的 MDC
+     */
+    static Scope open(Context context) {
+        return context == null ? Scope.NOOP : open(context.traceId, newId(), context.spanId);
+    }
+
+    /**
+     * 交给其他线程的任务沿用当前线程的调用链，当前线程没有跟踪ID时原样返回
+     */
+    static <T> Supplier<T> propagate(Supplier<T> task) {
+        String traceId = MDC.get(MDC_TRACE_ID);
+        if (traceId == null) {
+            return task;
+        }
+        String spanId = MDC.get(MDC_SPAN_ID);
+        String parentSpanId = MDC.get(MDC_PARENT_SPAN_ID);
+        return () -> {
+            try (Scope ignored = open(traceId, spanId, parentSpanId)) {
+                return task.get();
+            }
+        };
+    }
+
+    private static Scope open(String traceId, String spanId, String parentSpanId) {
+        Scope scope = new Scope(MDC.get(MDC_TRACE_ID), MDC.get(MDC_SPAN_ID), MDC.get(MDC_PARENT_SPAN_ID));
+        MDC.put(MDC_TRACE_ID, traceId);
+        put(MDC_SPAN_ID, spanId);
+        put(MDC_PARENT_SPAN_ID, parentSpanId);
+        return scope;
+    }
+
+    /**
+     * 16位十六进制，与 B3 的64位ID格式相同
+     */
+    private static String newId() {
+        String hex = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        return hex.length() == 16 ? hex : "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    private static void put(String key, String value) {
+        if (value == null) {
+            MDC.remove(key);
+        } else {
+            MDC.put(key, value);
+        }
+    }
+
+    static class Context {
+        private final String traceId;
+        private final String spanId;
+
+        private Context(String traceId, String spanId) {
+            this.traceId = traceId;
+            this.spanId = spanId;
+        }
+    }
+
+    static class Scope implements AutoCloseable {
+        private static final Scope NOOP = new Scope(null, null, null) {
+            @Override
+            public void close() {
+            }
+        };
+
+        private final String traceId;
+        private final String spanId;
+        private final String parentSpanId;
+
+        private Scope(String traceId, String spanId, String parentSpanId) {
+            this.traceId = traceId;
+            this.spanId = spanId;
+            this.parentSpanId = parentSpanId;
+        }
+
+        @Override
+        public void close() {
+            put(MDC_TRACE_ID, traceId);
+            put(MDC_SPAN_ID, spanId);
+            put(MDC_PARENT_SPAN_ID, parentSpanId);
+        }
+    }
+}
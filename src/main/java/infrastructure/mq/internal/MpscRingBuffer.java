@@ -0,0 +1,76 @@
+package infrastructure.mq.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 有界、无锁的多生产者单消费者环形队列。
+ * <p>每个槽位带有序号：生产者通过CAS抢占尾部序号后写入元素并发布槽位序号，消费者只读取已发布的槽位。
+ */
+public class MpscRingBuffer<E> {
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    /**
+     * @param capacity 容量，向上取整为2的幂
+     */
+    public MpscRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.mask = size - 1;
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return 队列已满时返回false
+     */
+    public boolean offer(E element) {
+        while (true) {
+            long current = tail.get();
+            int index = (int) (current & mask);
+            long sequence = sequences.get(index);
+            if (sequence == current) {
+                if (tail.compareAndSet(current, current + 1)) {
+                    elements.lazySet(index, element);
+                    sequences.set(index, current + 1);
+                    return true;
+                }
+            } else if (sequence < current) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 只能由唯一的消费者线程调用
+     *
+     * @return 队列为空时返回null
+     */
+    public E poll() {
+        long current = head;
+        int index = (int) (current & mask);
+        if (sequences.get(index) != current + 1) {
+            return null;
+        }
+        E element = elements.get(index);
+        elements.lazySet(index, null);
+        sequences.lazySet(index, current + mask + 1);
+        head = current + 1;
+        return element;
+    }
+
+    public boolean isEmpty() {
+        return sequences.get((int) (head & mask)) != head + 1;
+    }
+
+    public int size() {
+        return (int) Math.max(tail.get() - head, 0);
+    }
+}
@@ -0,0 +1,74 @@
+package infrastructure.mq.internal;
+
+import org.apache.ibatis.annotations.Delete;
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+
+import java.util.List;
+
+/**
+ * 发件箱表，每个事务一行，保存该事务中发送的全部消息。以 MySQL 为例：
+ * <pre>
+ * CREATE TABLE infra_mq_outbox (
+ *   id       CHAR(36)   NOT NULL PRIMARY KEY,
+ *   relay_at BIGINT     NOT NULL,
+ *   payload  LONGBLOB   NOT NULL,
+ *   KEY idx_relay_at (relay_at)
+ * );
+ * </pre>
+ */
+public interface OutboxMapper {
+
+    @Insert("INSERT INTO infra_mq_outbox (id, relay_at, payload) VALUES (#{id}, #{relayAt}, #{payload})")
+    void insert(@Param("id") String id, @Param("relayAt") long relayAt, @Param("payload") byte[] payload);
+
+    @Select("SELECT id, relay_at AS relayAt, payload FROM infra_mq_outbox WHERE relay_at <= #{now} " +
+            "ORDER BY relay_at LIMIT #{limit}")
+    List<Row> selectDue(@Param("now") long now, @Param("limit") int limit);
+
+    /**
+     * 以原转发时间为条件推迟转发时间，多个节点同时认领时只有一个成功
+     *
+     * @return 认领成功时返回1
+     */
+    @Update("UPDATE infra_mq_outbox SET relay_at = #{next} WHERE id = #{id} AND relay_at = #{relayAt}")
+    int claim(@Param("id") String id, @Param("relayAt") long relayAt, @Param("next") long next);
+
+    @Delete("DELETE FROM infra_mq_outbox WHERE id = #{id}")
+    int delete(@Param("id") String id);
+
+    class Row {
+        private String id;
+        private long relayAt;
+        private byte[] payload;
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        /**
+         * 最早的转发时间（毫秒时间戳），在此之前由提交事务的节点转发
+         */
+        public long getRelayAt() {
+            return relayAt;
+        }
+
+        public void setRelayAt(long relayAt) {
+            this.relayAt = relayAt;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public void setPayload(byte[] payload) {
+            this.payload = payload;
+        }
+    }
+}
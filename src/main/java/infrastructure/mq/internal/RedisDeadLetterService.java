@@ -0,0 +1,104 @@
+package infrastructure.mq.internal;
+
+import infrastructure.bean.JsonUtils;
+import infrastructure.mq.provider.MessageSender;
+import infrastructure.mq.service.DeadLetter;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 保存在 Redis 中的死信队列，节点重启后不丢失。每种消息类型一个列表，超出容量时丢弃最早的死信；
+ * 重新发送时逐条弹出，多个节点同时重新发送时每条死信只发送一次。
+ */
+public class RedisDeadLetterService implements DeadLetterQueue {
+    private static final String DEAD_LETTER_NAMESPACE = "infra:mq:dead-letter:";
+    private static final String TYPES_KEY = DEAD_LETTER_NAMESPACE + "types";
+
+    private StringRedisTemplate stringRedisTemplate;
+    private int capacity;
+    private MessageSender messageSender;
+    private MessageConverter messageConverter;
+
+    /**
+     * @param capacity 每种消息类型保存的最大死信数
+     */
+    public RedisDeadLetterService(StringRedisTemplate stringRedisTemplate, int capacity, MessageSender messageSender,
+                                  MessageConverter messageConverter) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.capacity = capacity;
+        this.messageSender = messageSender;
+        this.messageConverter = messageConverter;
+    }
+
+    @Override
+    public void add(MessageEnvelope envelope, Exception cause) {
+        Map<String, Object> record = new HashMap<>();
+        record.put("message", Base64.getEncoder().encodeToString(messageConverter.toBytes(envelope)));
+        record.put("error", String.valueOf(cause));
+        record.put("time", System.currentTimeMillis());
+        String key = DEAD_LETTER_NAMESPACE + envelope.getType();
+        stringRedisTemplate.opsForList().rightPush(key, JsonUtils.toJson(record));
+        stringRedisTemplate.opsForList().trim(key, -capacity, -1);
+        stringRedisTemplate.opsForSet().add(TYPES_KEY, envelope.getType());
+    }
+
+    @Override
+    public List<DeadLetter> getDeadLetters(String type) {
+        List<String> records = stringRedisTemplate.opsForList().range(DEAD_LETTER_NAMESPACE + type, 0, -1);
+        List<DeadLetter> deadLetters = new ArrayList<>();
+        if (records != null) {
+            for (String json : records) {
+                Map<?, ?> record = JsonUtils.toObject(json, Map.class);
+                MessageEnvelope envelope = envelopeOf(record);
+                deadLetters.add(new DeadLetter(type, messageConverter.readBodyAsString(envelope),
+                        envelope.getAttempt(), (String) record.get("error"), OffsetDateTime.ofInstant(
+                        Instant.ofEpochMilli(((Number) record.get("time")).longValue()), ZoneId.systemDefault())));
+            }
+        }
+        return deadLetters;
+    }
+
+    @Override
+    public int requeue(String type) {
+        String key = DEAD_LETTER_NAMESPACE + type;
+        int requeued = 0;
+        String json;
+        while ((json = stringRedisTemplate.opsForList().leftPop(key)) != null) {
+            MessageEnvelope envelope = envelopeOf(JsonUtils.toObject(json, Map.class));
+            try {
+                //the original id may already be recorded as handled by another listener of the type
+                messageSender.send(type, messageConverter.toBytes(envelope.requeued(MessageConverter.newMessageId())));
+            } catch (RuntimeException ex) {
+                stringRedisTemplate.opsForList().leftPush(key, json);
+                throw ex;
+            }
+            requeued++;
+        }
+        return requeued;
+    }
+
+    @Override
+    public int requeueAll() {
+        Set<String> types = stringRedisTemplate.opsForSet().members(TYPES_KEY);
+        int requeued = 0;
+        if (types != null) {
+            for (String type : types) {
+                requeued += requeue(type);
+            }
+        }
+        return requeued;
+    }
+
+    private MessageEnvelope envelopeOf(Map<?, ?> record) {
+        return messageConverter.readEnvelope(Base64.getDecoder().decode((String) record.get("message")));
+    }
+}
@@ -0,0 +1,57 @@
+package infrastructure.mq.internal;
+
+import infrastructure.bean.CharsetUtils;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.types.Expiration;
+
+/**
+ * 集群范围的去重：以 SET NX PX 预留消息ID，租期后由 Redis 过期删除；处理成功后以 SET PX 延长到时间窗口。
+ */
+public class RedisMessageDeduplicator implements MessageDeduplicator {
+    private static final String DEDUPE_NAMESPACE = "infra:mq:dedupe:";
+    private static final byte[] VALUE = {'1'};
+    private static final byte[] COMPLETED = {'2'};
+
+    private StringRedisTemplate stringRedisTemplate;
+    private long windowMillis;
+    private long leaseMillis;
+
+    /**
+     * @param windowMillis 去重时间窗口
+     */
+    public RedisMessageDeduplicator(StringRedisTemplate stringRedisTemplate, long windowMillis) {
+        this(stringRedisTemplate, windowMillis, DEFAULT_LEASE_MILLIS);
+    }
+
+    /**
+     * @param windowMillis 去重时间窗口
+     * @param leaseMillis  预留的租期
+     */
+    public RedisMessageDeduplicator(StringRedisTemplate stringRedisTemplate, long windowMillis, long leaseMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.windowMillis = windowMillis;
+        this.leaseMillis = leaseMillis;
+    }
+
+    @Override
+    public boolean tryAcquire(String messageId) {
+        byte[] key = (DEDUPE_NAMESPACE + messageId).getBytes(CharsetUtils.UTF_8);
+        Boolean acquired = stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.set(
+                key, VALUE, Expiration.milliseconds(leaseMillis), RedisStringCommands.SetOption.ifAbsent()));
+        return Boolean.TRUE.equals(acquired);
+    }
+
+    @Override
+    public void complete(String messageId) {
+        byte[] key = (DEDUPE_NAMESPACE + messageId).getBytes(CharsetUtils.UTF_8);
+        stringRedisTemplate.execute((RedisCallback<Boolean>) connection -> connection.set(
+                key, COMPLETED, Expiration.milliseconds(windowMillis), RedisStringCommands.SetOption.upsert()));
+    }
+
+    @Override
+    public void release(String messageId) {
+        stringRedisTemplate.delete(DEDUPE_NAMESPACE + messageId);
+    }
+}
@@ -0,0 +1,132 @@
+package infrastructure.mq.internal;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import infrastructure.errorcode.SystemErrorCode;
+import infrastructure.mq.provider.MessageSender;
+import infrastructure.mq.provider.ScheduledTask;
+import infrastructure.mq.provider.threading.MessageScheduler;
+import infrastructure.mq.provider.threading.TimingWheelMessageScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+
+/**
+ * 请求与应答的关联：请求方按关联ID登记等待中的请求，应答作为内部消息类型经同一个 {@link MessageSender} 发回，
+ * 收到应答后直接在接收线程上完成请求方的 {@link CompletableFuture}，超时由时间轮计时。
+ * <p>应答只能由发出请求的进程匹配，因此只支持消息总由本进程接收的发送方，
+ * 其他发送方的请求以 {@link SystemErrorCode#MQ_REQUEST_UNSUPPORTED} 拒绝。
+ */
+public class ReplyCorrelator {
+    private static final Logger logger = LoggerFactory.getLogger(ReplyCorrelator.class);
+
+    static final String REPLY_TYPE = "infra.mq.reply";
+    static final String ERROR_REPLY_TYPE = "infra.mq.reply.error";
+
+    private final MessageSender messageSender;
+    private final MessageConverter messageConverter;
+    private final ConcurrentMap<String, PendingRequest> pending = new ConcurrentHashMap<>();
+    private MessageScheduler timeoutScheduler;
+
+    public ReplyCorrelator(MessageSender messageSender, MessageConverter messageConverter) {
+        this.messageSender = messageSender;
+        this.messageConverter = messageConverter;
+    }
+
+    /**
+     * 在请求发送前登记
+     *
+     * @return 收到应答或超时后完成
+     */
+    @SuppressWarnings("unchecked")
+    <R> CompletableFuture<R> register(String correlationId, Class<R> replyClass, long timeoutMillis) {
+        PendingRequest request = new PendingRequest(replyClass);
+        pending.put(correlationId, request);
+        request.timeoutTask = getTimeoutScheduler().schedule(
+                () -> complete(correlationId, null, SystemErrorCode.MQ_REQUEST_TIMEOUT.e()), timeoutMillis);
+        return (CompletableFuture<R>) request.future;
+    }
+
+    void cancel(String correlationId, Throwable cause) {
+        complete(correlationId, null, cause);
+    }
+
+    void reply(String correlationId, Object replyBody) {
+        send(REPLY_TYPE, correlationId, replyBody);
+    }
+
+    void replyError(String correlationId, Exception cause) {
+        send(ERROR_REPLY_TYPE, correlationId, cause.getClass().getName() + ": " + cause.getMessage());
+    }
+
+    boolean isReply(MessageEnvelope envelope) {
+        return envelope.getCorrelationId() != null &&
+                (REPLY_TYPE.equals(envelope.getType()) || ERROR_REPLY_TYPE.equals(envelope.getType()));
+    }
+
+    void onReply(MessageEnvelope envelope) {
+        PendingRequest request = pending.get(envelope.getCorrelationId());
+        if (request == null) {
+            logger.debug("reply dropped, request not found or timed out: " + envelope.getCorrelationId());
+            return;
+        }
+        try {
+            if (ERROR_REPLY_TYPE.equals(envelope.getType())) {
+                String error = (String) messageConverter.readBody(envelope, String.class);
+                complete(envelope.getCorrelationId(), null,
+                        SystemErrorCode.MQ_REQUEST_FAILED.e(new RuntimeException(error)));
+            } else {
+                complete(envelope.getCorrelationId(), messageConverter.readBody(envelope, request.replyClass), null);
+            }
+        } catch (RuntimeException ex) {
+            complete(envelope.getCorrelationId(), null, ex);
+        }
+    }
+
+    private void send(String replyType, String correlationId, Object replyBody) {
+        MessageEnvelope envelope = new MessageEnvelope(replyType);
+        envelope.setCorrelationId(correlationId);
+        envelope.setSentAt(System.currentTimeMillis());
+        MessageTracing.inject(envelope);
+        messageSender.send(replyType, messageConverter.toBytes(envelope, replyBody));
+    }
+
+    private void complete(String correlationId, Object reply, Throwable cause) {
+        PendingRequest request = pending.remove(correlationId);
+        if (request == null) {
+            return;
+        }
+        if (request.timeoutTask != null) {
+            request.timeoutTask.cancel();
+        }
+        if (cause == null) {
+            request.future.complete(reply);
+        } else {
+            request.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * 超时在单独的线程上完成，请求方的回调不占用时间轮线程
+     */
+    private synchronized MessageScheduler getTimeoutScheduler() {
+        if (timeoutScheduler == null) {
+            timeoutScheduler = new TimingWheelMessageScheduler(Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setNameFormat("mq-request-%d").setDaemon(true).build()));
+        }
+        return timeoutScheduler;
+    }
+
+    private static class PendingRequest {
+        private final Class<?> replyClass;
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+        private volatile ScheduledTask timeoutTask;
+
+        PendingRequest(Class<?> replyClass) {
+            this.replyClass = replyClass;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package infrastructure.mq.internal;
+
+import infrastructure.mq.provider.ScheduledTask;
+import infrastructure.mq.service.ScheduledMessage;
+
+import java.time.OffsetDateTime;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 定时消息句柄。调整触发时间时取消原有的定时任务，从新的时间重新调度。
+ */
+class ScheduledMessageImpl implements ScheduledMessage {
+    private final String id;
+    private final String messageType;
+    private final String schedule;
+    private final Function<OffsetDateTime, ScheduledTask> scheduleFunction;
+    private final Consumer<ScheduledMessageImpl> onCancel;
+    private ScheduledTask task;
+    private boolean cancelled;
+
+    /**
+     * @param scheduleFunction 从给定的下一次触发时间开始调度，参数为null时使用初始调度
+     * @param onCancel         取消后的回调，可以为null
+     */
+    ScheduledMessageImpl(String id, String messageType, String schedule,
+                         Function<OffsetDateTime, ScheduledTask> scheduleFunction,
+                         Consumer<ScheduledMessageImpl> onCancel) {
+        this.id = id;
+        this.messageType = messageType;
+        this.schedule = schedule;
+        this.scheduleFunction = scheduleFunction;
+        this.onCancel = onCancel;
+        this.task = scheduleFunction.apply(null);
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public String getMessageType() {
+        return messageType;
+    }
+
+    @Override
+    public String getSchedule() {
+        return schedule;
+    }
+
+    @Override
+    public boolean cancel() {
+        synchronized (this) {
+            if (cancelled) {
+                return false;
+            }
+            cancelled = true;
+            task.cancel();
+        }
+        if (onCancel != null) {
+            onCancel.accept(this);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized void reschedule(OffsetDateTime nextTime) {
+        if (cancelled) {
+            throw new IllegalStateException("Scheduled message " + id + " is cancelled");
+        }
+        task.cancel();
+        task = scheduleFunction.apply(nextTime);
+    }
+
+    @Override
+    public String toString() {
+        return messageType + "[" + id + "]: " + schedule;
+    }
+}
@@ -0,0 +1,82 @@
+package infrastructure.mq.internal;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import infrastructure.errorcode.SystemErrorCode;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按键分条执行任务：同一个键的任务总是落在同一条单线程队列上，按提交顺序执行；不同的键分散到各条队列并行执行。
+ * <p>每条队列最多排队 queueCapacity 个任务，已满时提交方最多等待 offerTimeoutMillis。
+ */
+public class StripedExecutor {
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    public static final long DEFAULT_OFFER_TIMEOUT_MILLIS = 1000;
+
+    private final ExecutorService[] stripes;
+    private final Semaphore[] permits;
+    private final long offerTimeoutMillis;
+
+    public StripedExecutor(int stripeCount) {
+        this(stripeCount, DEFAULT_QUEUE_CAPACITY, DEFAULT_OFFER_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param queueCapacity      每条队列排队（含执行中）的最大任务数
+     * @param offerTimeoutMillis 队列已满时提交方最多等待的毫秒数
+     */
+    public StripedExecutor(int stripeCount, int queueCapacity, long offerTimeoutMillis) {
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("mq-stripe-%d").setDaemon(true).build();
+        this.offerTimeoutMillis = offerTimeoutMillis;
+        stripes = new ExecutorService[stripeCount];
+        permits = new Semaphore[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = Executors.newSingleThreadExecutor(threadFactory);
+            permits[i] = new Semaphore(queueCapacity);
+        }
+    }
+
+    /**
+     * 队列已满且等待超时后抛出 {@link SystemErrorCode#MQ_QUEUE_FULL}，关闭后提交时抛出 {@link RejectedExecutionException}
+     */
+    public void execute(String key, Runnable task) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        int stripe = (hash & Integer.MAX_VALUE) % stripes.length;
+        Semaphore permit = permits[stripe];
+        boolean acquired;
+        try {
+            acquired = permit.tryAcquire(offerTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw SystemErrorCode.MQ_QUEUE_FULL.e(ex);
+        }
+        SystemErrorCode.MQ_QUEUE_FULL.throwIf(!acquired);
+        try {
+            stripes[stripe].execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permit.release();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            permit.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * 不再接收新任务，已排队的任务继续执行
+     */
+    public void shutdown() {
+        for (ExecutorService stripe : stripes) {
+            stripe.shutdown();
+        }
+    }
+}
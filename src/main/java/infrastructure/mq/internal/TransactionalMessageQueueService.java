@@ -0,0 +1,239 @@
+package infrastructure.mq.internal;
+
+import infrastructure.mq.service.AckLevel;
+import infrastructure.mq.service.MessageQueueService;
+import infrastructure.mq.service.ScheduledMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 感知事务的消息发送：在 Spring 事务中发送的即时消息先按事务缓存，事务提交后按发送顺序整批发送，回滚时丢弃。
+ * 不在事务中或事务已提交（如在其他事务同步的提交后回调中）时直接发送。
+ * <p>设置了 {@link MessageOutbox} 时，缓存的消息在事务提交前编码后写入发件箱，与业务数据一起提交，
+ * 提交后由发件箱转发，节点在转发前退出也不会丢失。
+ * <p>异步发送、请求与定时消息不缓存：前两者的调用方需要结果，定时消息的注册不属于业务数据。
+ */
+public class TransactionalMessageQueueService implements MessageQueueService {
+    private static final Logger logger = LoggerFactory.getLogger(TransactionalMessageQueueService.class);
+
+    private final MessageQueueService messageQueueService;
+    private final MessageConverter messageConverter;
+    private final MessageOutbox messageOutbox;
+
+    /**
+     * @param messageOutbox 为null时只在内存中缓存，事务提交后发送失败或节点退出时消息丢失
+     */
+    public TransactionalMessageQueueService(MessageQueueService messageQueueService,
+                                            MessageConverter messageConverter, MessageOutbox messageOutbox) {
+        this.messageQueueService = messageQueueService;
+        this.messageConverter = messageConverter;
+        this.messageOutbox = messageOutbox;
+    }
+
+    @Override
+    public void send(String messageType, Object messageBody) {
+        if (!buffer(messageType, messageBody, null, null)) {
+            messageQueueService.send(messageType, messageBody);
+        }
+    }
+
+    @Override
+    public void sendAll(String messageType, Collection<?> messageBodies) {
+        Buffer buffer = currentBuffer();
+        if (buffer == null) {
+            messageQueueService.sendAll(messageType, messageBodies);
+            return;
+        }
+        messageBodies.forEach(body -> buffer.messages.add(new PendingMessage(messageType, body, null, null)));
+    }
+
+    @Override
+    public void sendWithPartitionKey(String messageType, Object messageBody, String partitionKey) {
+        if (!buffer(messageType, messageBody, partitionKey, null)) {
+            messageQueueService.sendWithPartitionKey(messageType, messageBody, partitionKey);
+        }
+    }
+
+    @Override
+    public void sendWithTtl(String messageType, Object messageBody, Duration timeToLive) {
+        if (!buffer(messageType, messageBody, null, timeToLive)) {
+            messageQueueService.sendWithTtl(messageType, messageBody, timeToLive);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(String messageType, Object messageBody, AckLevel ackLevel) {
+        return messageQueueService.sendAsync(messageType, messageBody, ackLevel);
+    }
+
+    @Override
+    public <R> CompletableFuture<R> request(String messageType, Object messageBody, Class<R> replyClass,
+                                            Duration timeout) {
+        return messageQueueService.request(messageType, messageBody, replyClass, timeout);
+    }
+
+    @Override
+    public ScheduledMessage send(String messageType, Object messageBody, OffsetDateTime time) {
+        return messageQueueService.send(messageType, messageBody, time);
+    }
+
+    @Override
+    public ScheduledMessage send(String messageType, Object messageBody, OffsetDateTime time, Duration duration) {
+        return messageQueueService.send(messageType, messageBody, time, duration);
+    }
+
+    @Override
+    public ScheduledMessage sendByCron(String messageType, Object messageBody, String cronExpression) {
+        return messageQueueService.sendByCron(messageType, messageBody, cronExpression);
+    }
+
+    @Override
+    public List<ScheduledMessage> getScheduledMessages() {
+        return messageQueueService.getScheduledMessages();
+    }
+
+    private boolean buffer(String messageType, Object messageBody, String partitionKey, Duration timeToLive) {
+        Buffer buffer = currentBuffer();
+        if (buffer == null) {
+            return false;
+        }
+        buffer.messages.add(new PendingMessage(messageType, messageBody, partitionKey, timeToLive));
+        return true;
+    }
+
+    /**
+     * 缓存随事务同步注册，挂起的外层事务的缓存随其同步一起挂起
+     *
+     * @return 不在事务中或事务已提交时返回null
+     */
+    private Buffer currentBuffer() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive() ||
+                !TransactionSynchronizationManager.isActualTransactionActive()) {
+            return null;
+        }
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            if (synchronization instanceof Buffer && ((Buffer) synchronization).owner() == this) {
+                return ((Buffer) synchronization).committed ? null : (Buffer) synchronization;
+            }
+        }
+        Buffer buffer = new Buffer();
+        TransactionSynchronizationManager.registerSynchronization(buffer);
+        return buffer;
+    }
+
+    /**
+     * 其他同步的提交前回调在写入发件箱之后缓存的消息不在发件箱中，提交后直接发送
+     */
+    private class Buffer extends TransactionSynchronizationAdapter {
+        private final List<PendingMessage> messages = new ArrayList<>();
+        private int saved;
+        private String outboxId;
+        private List<MessageOutbox.Entry> entries;
+        private boolean committed;
+
+        TransactionalMessageQueueService owner() {
+            return TransactionalMessageQueueService.this;
+        }
+
+        /**
+         * 写入发件箱失败时异常传给事务，事务回滚
+         */
+        @Override
+        public void beforeCommit(boolean readOnly) {
+            if (messageOutbox == null || messages.isEmpty()) {
+                return;
+            }
+            entries = new ArrayList<>(messages.size());
+            for (PendingMessage m : messages) {
+                MessageEnvelope envelope = messageConverter.newEnvelope(m.messageType);
+                envelope.setPartitionKey(m.partitionKey);
+                if (m.timeToLive != null) {
+                    envelope.setExpiresAt(System.currentTimeMillis() + m.timeToLive.toMillis());
+                }
+                entries.add(new MessageOutbox.Entry(m.messageType, m.partitionKey,
+                        messageConverter.toBytes(envelope, m.body)));
+            }
+            outboxId = messageOutbox.save(entries);
+            saved = messages.size();
+        }
+
+        @Override
+        public void afterCommit() {
+            committed = true;
+            if (outboxId != null) {
+                messageOutbox.relay(outboxId, entries);
+            }
+            try {
+                sendBuffered(saved);
+            } catch (RuntimeException ex) {
+                logger.error("send messages after commit error", ex);
+            }
+        }
+
+        /**
+         * 在其他同步的提交后回调中注册的缓存收不到提交后回调，在完成回调中发送
+         */
+        @Override
+        public void afterCompletion(int status) {
+            if (status == STATUS_COMMITTED && !committed) {
+                afterCommit();
+            }
+        }
+
+        /**
+         * 按发送顺序发送，连续的同类型普通消息合并为一次批量发送
+         */
+        private void sendBuffered(int from) {
+            int i = from;
+            while (i < messages.size()) {
+                PendingMessage m = messages.get(i);
+                if (m.partitionKey != null) {
+                    messageQueueService.sendWithPartitionKey(m.messageType, m.body, m.partitionKey);
+                    i++;
+                } else if (m.timeToLive != null) {
+                    messageQueueService.sendWithTtl(m.messageType, m.body, m.timeToLive);
+                    i++;
+                } else {
+                    List<Object> bodies = new ArrayList<>();
+                    while (i < messages.size() && messages.get(i).isPlain() &&
+                            messages.get(i).messageType.equals(m.messageType)) {
+                        bodies.add(messages.get(i++).body);
+                    }
+                    if (bodies.size() == 1) {
+                        messageQueueService.send(m.messageType, bodies.get(0));
+                    } else {
+                        messageQueueService.sendAll(m.messageType, bodies);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class PendingMessage {
+        private final String messageType;
+        private final Object body;
+        private final String partitionKey;
+        private final Duration timeToLive;
+
+        PendingMessage(String messageType, Object body, String partitionKey, Duration timeToLive) {
+            this.messageType = messageType;
+            this.body = body;
+            this.partitionKey = partitionKey;
+            this.timeToLive = timeToLive;
+        }
+
+        boolean isPlain() {
+            return partitionKey == null && timeToLive == null;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package infrastructure.mq.provider;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 编码消息用的缓冲区池。容量按2的幂分级，每级缓存有限个空闲缓冲区，空闲缓冲区的总容量也有上限；
+ * 超过最大池化容量的缓冲区不缓存。
+ * <p>缓冲区由 {@link MessageBuffer#release()} 归还，未归还的缓冲区由 GC 回收，只是不再复用。
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 8;
+
+    private final boolean direct;
+    private final int maxShift;
+    private final BlockingQueue<ByteBuffer>[] freeBuffers;
+    private final long maxFreeBytes;
+    private final AtomicLong freeBytes = new AtomicLong();
+
+    /**
+     * @param direct        是否分配堆外缓冲区，写入文件或网络时少一次复制
+     * @param maxPooledSize 缓存的最大缓冲区容量，向上取整为2的幂
+     * @param maxPerSize    每级容量缓存的最大空闲缓冲区数
+     * @param maxFreeBytes  缓存的空闲缓冲区的最大总字节数
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(boolean direct, int maxPooledSize, int maxPerSize, long maxFreeBytes) {
+        this.direct = direct;
+        this.maxFreeBytes = maxFreeBytes;
+        this.maxShift = shiftFor(Math.max(maxPooledSize, 1 << MIN_SHIFT));
+        this.freeBuffers = new BlockingQueue[maxShift - MIN_SHIFT + 1];
+        for (int i = 0; i < freeBuffers.length; i++) {
+            freeBuffers[i] = new ArrayBlockingQueue<>(maxPerSize);
+        }
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @param sizeHint 预计写入的字节数，写满后自动换用更大的缓冲区
+     * @return 写入池化缓冲区的输出流
+     */
+    public Output newOutput(int sizeHint) {
+        return new Output(acquire(sizeHint));
+    }
+
+    /**
+     * @return position为0、容量不小于指定值的缓冲区
+     */
+    ByteBuffer acquire(int capacity) {
+        int shift = shiftFor(capacity);
+        if (shift > maxShift) {
+            return ByteBuffer.allocate(capacity);
+        }
+        ByteBuffer buffer = freeBuffers[shift - MIN_SHIFT].poll();
+        if (buffer != null) {
+            freeBytes.addAndGet(-buffer.capacity());
+            buffer.clear();
+            return buffer;
+        }
+        return direct ? ByteBuffer.allocateDirect(1 << shift) : ByteBuffer.allocate(1 << shift);
+    }
+
+    /**
+     * @return 缓存的空闲缓冲区的总字节数
+     */
+    public long getFreeBytes() {
+        return freeBytes.get();
+    }
+
+    /**
+     * 不是本池分配的缓冲区、该级已满或空闲缓冲区的总容量将超过上限时丢弃
+     */
+    void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (buffer.isDirect() != direct || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        int shift = Integer.numberOfTrailingZeros(capacity);
+        if (shift < MIN_SHIFT || shift > maxShift) {
+            return;
+        }
+        //reserve the bytes first, so racing releases cannot overshoot the total
+        if (freeBytes.addAndGet(capacity) > maxFreeBytes || !freeBuffers[shift - MIN_SHIFT].offer(buffer)) {
+            freeBytes.addAndGet(-capacity);
+        }
+    }
+
+    private static int shiftFor(int capacity) {
+        return capacity <= 1 << MIN_SHIFT ? MIN_SHIFT : 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+
+    /**
+     * 写入池化缓冲区的输出流，写满时从池中换用两倍容量的缓冲区并归还原缓冲区。
+     * 非线程安全，完成后调用 {@link #toMessageBuffer()} 或 {@link #discard()} 一次。
+     */
+    public final class Output extends OutputStream {
+        private ByteBuffer buffer;
+
+        private Output(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void write(int b) {
+            ensureRemaining(1);
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureRemaining(len);
+            buffer.put(b, off, len);
+        }
+
+        /**
+         * 关闭不归还缓冲区，写入的 JsonGenerator 关闭时不影响后续写入
+         */
+        @Override
+        public void close() {
+        }
+
+        /**
+         * @return 已写入的字节数
+         */
+        public int position() {
+            return buffer.position();
+        }
+
+        /**
+         * 在已写入的位置回填4字节大端整数，不改变写入位置
+         */
+        public void putInt(int index, int value) {
+            buffer.putInt(index, value);
+        }
+
+        /**
+         * @return 已写入的内容，由接收者负责归还
+         */
+        public MessageBuffer toMessageBuffer() {
+            buffer.flip();
+            MessageBuffer messageBuffer = new MessageBuffer(buffer, BufferPool.this);
+            buffer = null;
+            return messageBuffer;
+        }
+
+        /**
+         * 放弃已写入的内容并归还缓冲区
+         */
+        public void discard() {
+            if (buffer != null) {
+                release(buffer);
+                buffer = null;
+            }
+        }
+
+        private void ensureRemaining(int length) {
+            if (buffer.remaining() >= length) {
+                return;
+            }
+            int required = buffer.position() + length;
+            ByteBuffer larger = acquire(Math.max(required, buffer.capacity() * 2));
+            buffer.flip();
+            larger.put(buffer);
+            release(buffer);
+            buffer = larger;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package infrastructure.mq.provider;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 编码好的消息，内容可能位于池化的缓冲区中。
+ * <p>持有者写出后调用 {@link #release()} 归还缓冲区，归还后不得再读取；发送方接收后由发送方负责归还。
+ */
+public final class MessageBuffer {
+    private final ByteBuffer buffer;
+    private final BufferPool bufferPool;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    MessageBuffer(ByteBuffer buffer, BufferPool bufferPool) {
+        this.buffer = buffer;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * @return 包装字节数组，不池化
+     */
+    public static MessageBuffer wrap(byte[] messageBytes) {
+        return new MessageBuffer(ByteBuffer.wrap(messageBytes), null);
+    }
+
+    /**
+     * @return 消息内容的视图，position为0，limit为消息长度，读取不影响其他视图
+     */
+    public ByteBuffer nioBuffer() {
+        return buffer.duplicate();
+    }
+
+    public int size() {
+        return buffer.limit();
+    }
+
+    public byte[] toByteArray() {
+        if (bufferPool == null && buffer.hasArray() && buffer.arrayOffset() == 0 &&
+                buffer.array().length == buffer.limit()) {
+            return buffer.array();
+        }
+        byte[] bytes = new byte[buffer.limit()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * 归还缓冲区，重复调用时忽略
+     */
+    public void release() {
+        if (bufferPool != null && released.compareAndSet(false, true)) {
+            bufferPool.release(buffer);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package infrastructure.mq.provider;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * @author joeyh 2019/1/9 14:16
  */
@@ -19,5 +21,24 @@ public abstract class MessageReceiver {
         messageReceiver = this;
     }
 
+    /**
+     * 处理收到的消息
+     *
+     * @param messageBytes 消息体
+     * @return 消息已被接收（处理成功、已安排重新投递或已进入死信队列）时返回true；
+     * 返回false时消息提供方应自行重新投递
+     */
     public abstract boolean onMessageReceived(byte[] messageBytes);
+
+    /**
+     * 处理收到的消息，监听器在其他线程上处理时不等待处理完成。
+     * 需要在处理完成后才确认消息的提供方（持久化的日志、Redis Stream）在返回的结果完成后确认。
+     * 默认实现在当前线程上调用 {@link #onMessageReceived(byte[])}。
+     *
+     * @param messageBytes 消息体
+     * @return 处理完成后完成，结果同 {@link #onMessageReceived(byte[])}；接收方无法接收时抛出异常或异常完成
+     */
+    public CompletableFuture<Boolean> onMessageReceivedAsync(byte[] messageBytes) {
+        return CompletableFuture.completedFuture(onMessageReceived(messageBytes));
+    }
 }
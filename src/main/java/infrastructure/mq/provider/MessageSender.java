@@ -2,6 +2,8 @@ package infrastructure.mq.provider;
 
 import java.time.Duration;
 import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 实现此接口，发送消息
@@ -15,14 +17,110 @@ public interface MessageSender {
      */
     void send(String messageType, byte[] messageBytes);
 
+    /**
+     * 批量发送同一类型的消息。实现方可在一次调用中提交整批消息，默认实现逐条发送。
+     *
+     * @param messageType   消息类型
+     * @param messagesBytes 消息体
+     */
+    default void sendAll(String messageType, List<byte[]> messagesBytes) {
+        messagesBytes.forEach(bytes -> send(messageType, bytes));
+    }
+
+    /**
+     * 异步发送消息。返回时消息已入队，持久化后返回的结果完成；不落盘的实现方入队后即完成。默认实现同步发送。
+     *
+     * @param messageType  消息类型
+     * @param messageBytes 消息体
+     * @return 持久化后完成，发送失败时异常完成
+     */
+    default CompletableFuture<Void> sendAsync(String messageType, byte[] messageBytes) {
+        send(messageType, messageBytes);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * 发送编码在缓冲区中的消息。发送方负责在写出后调用 {@link MessageBuffer#release()}，
+     * 默认实现复制为字节数组后立即归还，再按字节数组发送。
+     *
+     * @param messageType   消息类型
+     * @param messageBuffer 消息体
+     */
+    default void send(String messageType, MessageBuffer messageBuffer) {
+        byte[] messageBytes;
+        try {
+            messageBytes = messageBuffer.toByteArray();
+        } finally {
+            messageBuffer.release();
+        }
+        send(messageType, messageBytes);
+    }
+
+    /**
+     * 异步发送编码在缓冲区中的消息，缓冲区的归还同 {@link #send(String, MessageBuffer)}。默认实现复制后按字节数组发送。
+     *
+     * @param messageType   消息类型
+     * @param messageBuffer 消息体
+     * @return 持久化后完成，发送失败时异常完成
+     */
+    default CompletableFuture<Void> sendAsync(String messageType, MessageBuffer messageBuffer) {
+        byte[] messageBytes;
+        try {
+            messageBytes = messageBuffer.toByteArray();
+        } finally {
+            messageBuffer.release();
+        }
+        return sendAsync(messageType, messageBytes);
+    }
+
+    /**
+     * 是否直接写出 {@link MessageBuffer} 而不复制为字节数组。直接写出时调用方将消息编码到池化的缓冲区中发送。
+     *
+     * @return 直接写出缓冲区时返回true
+     */
+    default boolean supportsMessageBuffer() {
+        return false;
+    }
+
+    /**
+     * 发送带分区键的消息。接收方按分区键依次处理，实现方按发送顺序交给 {@link MessageReceiver} 时同一分区键的消息保持顺序。
+     * 默认实现按普通消息发送，不保证顺序。
+     *
+     * @param messageType  消息类型
+     * @param partitionKey 分区键
+     * @param messageBytes 消息体
+     */
+    default void send(String messageType, String partitionKey, byte[] messageBytes) {
+        send(messageType, messageBytes);
+    }
+
+    /**
+     * 是否只在当前进程内投递。进程内投递且未开启持久化时，消息体可不经序列化直接交给监听器。
+     *
+     * @return 只在当前进程内投递时返回true
+     */
+    default boolean isInProcess() {
+        return false;
+    }
+
+    /**
+     * 消息是否总由当前进程接收处理。只有这样的发送方能等到 {@link infrastructure.mq.service.AckLevel#HANDLED}。
+     *
+     * @return 消息总由当前进程的接收方处理时返回true
+     */
+    default boolean isReceivedInProcess() {
+        return isInProcess();
+    }
+
     /**
      * 发送定时消息。时间精确到秒。
      *
      * @param messageType  消息类型
      * @param messageBytes 消息体
      * @param time         触发时间
+     * @return 可取消的定时任务
      */
-    void send(String messageType, byte[] messageBytes, OffsetDateTime time);
+    ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime time);
 
     /**
      * 以指定的周期发送定时消息。时间精确到秒。
@@ -31,6 +129,7 @@ public interface MessageSender {
      * @param messageBytes 消息体
      * @param firstTime    首次触发时间
      * @param duration     两次触发的时间间隔
+     * @return 可取消的定时任务
      */
-    void send(String messageType, byte[] messageBytes, OffsetDateTime firstTime, Duration duration);
+    ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime firstTime, Duration duration);
 }
@@ -0,0 +1,15 @@
+package infrastructure.mq.provider;
+
+/**
+ * 已提交到 {@link MessageSender} 或 {@link infrastructure.mq.provider.threading.MessageScheduler} 的定时任务。
+ */
+public interface ScheduledTask {
+    /**
+     * 取消任务。周期任务取消后不再触发。
+     *
+     * @return 任务此前未被取消时返回true
+     */
+    boolean cancel();
+
+    boolean isCancelled();
+}
@@ -0,0 +1,638 @@
+package infrastructure.mq.provider.log;
+
+import infrastructure.mq.provider.MessageBuffer;
+import infrastructure.mq.provider.MessageReceiver;
+import infrastructure.mq.provider.MessageSender;
+import infrastructure.mq.provider.ScheduledTask;
+import infrastructure.mq.provider.threading.MessageScheduler;
+import infrastructure.mq.provider.threading.TimingWheelMessageScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 将消息追加到本地分段内存映射日志后再投递的 {@link MessageSender}，重启后未处理完的消息会重新投递（至少一次）。
+ * <p>写入线程合并提交：一批追加请求写入后只调用一次 force，之后唤醒这一批的发送方。
+ * {@link MessageBuffer} 直接写入映射的日志段，force 之后归还。
+ * 读取线程从消费位点开始读取已提交的记录并投递，消费位点为最小的未处理完记录的偏移量，定期写入 consumer.offset，
+ * 位点之前的日志段会被删除。接收方处理完成后记录才算处理完，未被接收的消息稍后重新投递。
+ * 带分区键的消息在读取线程上按日志顺序交给接收方，由接收方按分区键排队。
+ * <p>定时消息随日志持久化，重启后重新调度，已过期的立即投递。取消定时消息时追加一条取消记录，重启后同样生效。
+ * 读到的定时记录移入定时索引，检查点先写入 delayed.index 再写入消费位点，未到期的定时消息不阻挡消费位点与日志段删除。
+ * <p>已提交的记录校验失败时跳到段内下一条有效记录，跳过的范围记录错误日志。
+ * 周期消息只保存在内存中，
+ * 由应用启动时重新注册，避免重启后重复注册。
+ */
+public class LogMessageSender implements MessageSender {
+    private static final Logger logger = LoggerFactory.getLogger(LogMessageSender.class);
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String OFFSET_FILE = "consumer.offset";
+    private static final String DELAYED_INDEX_FILE = "delayed.index";
+    private static final int DELAYED_INDEX_VERSION = 1;
+    private static final int MAX_BATCH_SIZE = 1024;
+    private static final int MAX_IN_FLIGHT = 10000;
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 1000;
+    private static final long REDELIVERY_DELAY_MILLIS = 1000;
+
+    private final File directory;
+    private final int segmentSize;
+    private final ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+    private final BlockingQueue<AppendRequest> appendQueue = new LinkedBlockingQueue<>();
+    private final ConcurrentSkipListSet<Long> inFlightOffsets = new ConcurrentSkipListSet<>();
+    private final ConcurrentMap<Long, DelayedRecord> pendingDelayed = new ConcurrentHashMap<>();
+    private final Semaphore inFlightPermits = new Semaphore(MAX_IN_FLIGHT);
+    private final Object commitMonitor = new Object();
+    private final ExecutorService executorService;
+    private final MessageScheduler scheduler;
+    private final RandomAccessFile offsetFile;
+    private final Thread writer;
+    private final Thread reader;
+
+    private volatile LogSegment activeSegment;
+    private volatile long committedOffset;
+    private long readOffset;
+    private volatile boolean running = true;
+    private volatile boolean delayedIndexDirty;
+
+    public LogMessageSender(File directory, int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create message log directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this.scheduler = new TimingWheelMessageScheduler(executorService);
+        this.offsetFile = new RandomAccessFile(new File(directory, OFFSET_FILE), "rw");
+        recover();
+
+        writer = new Thread(this::writeLoop, "mq-log-writer");
+        reader = new Thread(this::readLoop, "mq-log-reader");
+        writer.setDaemon(true);
+        reader.setDaemon(true);
+        writer.start();
+        reader.start();
+    }
+
+    @Override
+    public void send(String messageType, byte[] messageBytes) {
+        append(LogRecord.KIND_IMMEDIATE, 0, messageBytes);
+    }
+
+    @Override
+    public void send(String messageType, String partitionKey, byte[] messageBytes) {
+        append(LogRecord.KIND_KEYED, 0, messageBytes);
+    }
+
+    /**
+     * 整批入队后再等待，同一批消息通常在一次刷盘中提交。
+     */
+    @Override
+    public void sendAll(String messageType, List<byte[]> messagesBytes) {
+        List<AppendRequest> requests = new ArrayList<>(messagesBytes.size());
+        for (byte[] messageBytes : messagesBytes) {
+            requests.add(newRequest(LogRecord.KIND_IMMEDIATE, 0, messageBytes));
+        }
+        enqueue(requests);
+        requests.forEach(r -> r.future.join());
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(String messageType, byte[] messageBytes) {
+        AppendRequest request = newRequest(LogRecord.KIND_IMMEDIATE, 0, messageBytes);
+        enqueue(Collections.singletonList(request));
+        return request.future.thenApply(offset -> null);
+    }
+
+    @Override
+    public void send(String messageType, MessageBuffer messageBuffer) {
+        AppendRequest request = newRequest(LogRecord.KIND_IMMEDIATE, 0, messageBuffer);
+        enqueue(Collections.singletonList(request));
+        request.future.join();
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(String messageType, MessageBuffer messageBuffer) {
+        AppendRequest request = newRequest(LogRecord.KIND_IMMEDIATE, 0, messageBuffer);
+        enqueue(Collections.singletonList(request));
+        return request.future.thenApply(offset -> null);
+    }
+
+    @Override
+    public boolean supportsMessageBuffer() {
+        return true;
+    }
+
+    /**
+     * 日志只由本进程的读取线程投递
+     */
+    @Override
+    public boolean isReceivedInProcess() {
+        return true;
+    }
+
+    @Override
+    public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime time) {
+        return new DelayedRecordTask(append(LogRecord.KIND_DELAYED, time.toInstant().toEpochMilli(), messageBytes));
+    }
+
+    @Override
+    public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime firstTime, Duration duration) {
+        return scheduler.scheduleAtFixedRate(() -> MessageReceiver.getInstance().onMessageReceivedAsync(messageBytes),
+                OffsetDateTime.now().until(firstTime, ChronoUnit.MILLIS), duration.toMillis());
+    }
+
+    public void shutdown() throws IOException {
+        running = false;
+        writer.interrupt();
+        reader.interrupt();
+        scheduler.shutdown();
+        executorService.shutdown();
+        try {
+            writer.join();
+            reader.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        checkpoint();
+        for (LogSegment segment : segments.values()) {
+            segment.close();
+        }
+        offsetFile.close();
+    }
+
+    /**
+     * @return 记录的偏移量
+     */
+    private long append(byte kind, long dueMillis, byte[] messageBytes) {
+        AppendRequest request = newRequest(kind, dueMillis, messageBytes);
+        enqueue(Collections.singletonList(request));
+        return request.future.join();
+    }
+
+    /**
+     * 关闭后入队的请求立即失败，不会一直等待
+     */
+    private void enqueue(Collection<AppendRequest> requests) {
+        if (!running) {
+            requests.forEach(r -> r.reject(new IllegalStateException("Message log is shut down")));
+            return;
+        }
+        appendQueue.addAll(requests);
+        if (!running) {
+            //the writer may have drained the queue before these requests were added
+            rejectQueued();
+        }
+    }
+
+    private void rejectQueued() {
+        AppendRequest request;
+        while ((request = appendQueue.poll()) != null) {
+            request.reject(new IllegalStateException("Message log is shut down"));
+        }
+    }
+
+    private AppendRequest newRequest(byte kind, long dueMillis, byte[] messageBytes) {
+        checkSize(messageBytes.length);
+        return new AppendRequest(kind, dueMillis, ByteBuffer.wrap(messageBytes), null);
+    }
+
+    /**
+     * 超过日志段大小时立即归还缓冲区，否则在写入线程提交后归还
+     */
+    private AppendRequest newRequest(byte kind, long dueMillis, MessageBuffer messageBuffer) {
+        try {
+            checkSize(messageBuffer.size());
+        } catch (IllegalArgumentException ex) {
+            messageBuffer.release();
+            throw ex;
+        }
+        return new AppendRequest(kind, dueMillis, messageBuffer.nioBuffer(), messageBuffer);
+    }
+
+    private void checkSize(int messageLength) {
+        if (LogSegment.RECORD_HEADER_SIZE + messageLength > segmentSize) {
+            throw new IllegalArgumentException("Message of " + messageLength +
+                    " bytes exceeds log segment size " + segmentSize);
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            for (File file : files) {
+                long baseOffset = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+                segments.put(baseOffset, new LogSegment(file, baseOffset, segmentSize));
+            }
+        }
+        if (segments.isEmpty()) {
+            activeSegment = createSegment(0);
+        } else {
+            activeSegment = segments.lastEntry().getValue();
+        }
+        activeSegment.recover();
+        committedOffset = activeSegment.getBaseOffset() + activeSegment.getWritePosition();
+
+        readOffset = offsetFile.length() >= 8 ? offsetFile.readLong() : segments.firstKey();
+        readOffset = Math.max(readOffset, segments.firstKey());
+        loadDelayedIndex();
+        logger.info("message log recovered, replay from offset {} to {}, {} delayed messages", readOffset,
+                committedOffset, pendingDelayed.size());
+    }
+
+    private LogSegment createSegment(long baseOffset) throws IOException {
+        File file = new File(directory, String.format("%020d%s", baseOffset, SEGMENT_SUFFIX));
+        LogSegment segment = new LogSegment(file, baseOffset, segmentSize);
+        segments.put(baseOffset, segment);
+        return segment;
+    }
+
+    private void writeLoop() {
+        List<AppendRequest> batch = new ArrayList<>();
+        while (running) {
+            try {
+                AppendRequest first = appendQueue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                appendQueue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                commit(batch);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+        rejectQueued();
+    }
+
+    private void commit(List<AppendRequest> batch) {
+        try {
+            for (AppendRequest request : batch) {
+                int position = activeSegment.append(request.kind, request.dueMillis, request.payload);
+                if (position < 0) {
+                    activeSegment.force();
+                    activeSegment = createSegment(activeSegment.getBaseOffset() + activeSegment.getWritePosition());
+                    position = activeSegment.append(request.kind, request.dueMillis, request.payload);
+                }
+                request.offset = activeSegment.getBaseOffset() + position;
+            }
+            activeSegment.force();
+        } catch (IOException | RuntimeException ex) {
+            logger.error("message log append error", ex);
+            batch.forEach(r -> r.reject(ex));
+            return;
+        }
+        batch.forEach(AppendRequest::release);
+        committedOffset = activeSegment.getBaseOffset() + activeSegment.getWritePosition();
+        synchronized (commitMonitor) {
+            commitMonitor.notifyAll();
+        }
+        batch.forEach(r -> r.future.complete(r.offset));
+    }
+
+    private void readLoop() {
+        long lastCheckpoint = System.currentTimeMillis();
+        while (running) {
+            try {
+                if (readOffset >= committedOffset) {
+                    synchronized (commitMonitor) {
+                        if (readOffset >= committedOffset) {
+                            commitMonitor.wait(POLL_TIMEOUT_MILLIS);
+                        }
+                    }
+                } else {
+                    readNext();
+                }
+                if (System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL_MILLIS) {
+                    checkpoint();
+                    lastCheckpoint = System.currentTimeMillis();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException | RuntimeException ex) {
+                logger.error("message log read error", ex);
+            }
+        }
+    }
+
+    private void readNext() throws InterruptedException {
+        Map.Entry<Long, LogSegment> entry = segments.floorEntry(readOffset);
+        LogSegment segment = entry.getValue();
+        int position = (int) (readOffset - segment.getBaseOffset());
+        LogRecord record = segment.read(position);
+        if (record == null) {
+            skipUnreadable(segment, position);
+            return;
+        }
+        long offset = readOffset;
+        readOffset += record.getSize();
+        if (record.getKind() == LogRecord.KIND_CANCEL) {
+            cancelDelayed(record.getDueMillis());
+            return;
+        }
+        if (record.getKind() == LogRecord.KIND_DELAYED) {
+            //already in the index when the log is replayed past the last offset checkpoint
+            if (!pendingDelayed.containsKey(offset)) {
+                scheduleDelayed(offset, new DelayedRecord(record.getDueMillis(), record.getPayload()));
+                delayedIndexDirty = true;
+            }
+            return;
+        }
+        inFlightOffsets.add(offset);
+        inFlightPermits.acquire();
+        Runnable onReceived = () -> {
+            inFlightOffsets.remove(offset);
+            inFlightPermits.release();
+        };
+        if (record.getKind() == LogRecord.KIND_KEYED) {
+            handOver(record.getPayload(), onReceived);
+            return;
+        }
+        executorService.execute(() -> {
+            if (!running) {
+                //not started before shutdown: stays in flight so the last checkpoint keeps it for replay
+                inFlightPermits.release();
+                return;
+            }
+            deliver(record.getPayload(), onReceived);
+        });
+    }
+
+    /**
+     * 接收方的分区队列已满时读取线程等待，保持同一分区键的消息按日志顺序交给接收方
+     */
+    private void handOver(byte[] messageBytes, Runnable onReceived) throws InterruptedException {
+        while (running) {
+            CompletableFuture<Boolean> received;
+            try {
+                received = MessageReceiver.getInstance().onMessageReceivedAsync(messageBytes);
+            } catch (RuntimeException ex) {
+                logger.warn("hand over partitioned message error, retry in " + POLL_TIMEOUT_MILLIS + "ms", ex);
+                Thread.sleep(POLL_TIMEOUT_MILLIS);
+                continue;
+            }
+            whenReceived(received, messageBytes, onReceived);
+            return;
+        }
+    }
+
+    /**
+     * 段内余下部分未使用时继续读下一段；记录损坏时跳到段内下一条有效记录，段内没有有效记录时跳到下一段
+     */
+    private void skipUnreadable(LogSegment segment, int position) {
+        Long nextSegment = segments.higherKey(segment.getBaseOffset());
+        if (nextSegment != null && segment.isEndOfData(position)) {
+            readOffset = nextSegment;
+            return;
+        }
+        int limit = nextSegment != null ? segment.getCapacity() :
+                (int) Math.min(committedOffset - segment.getBaseOffset(), segment.getCapacity());
+        int next = segment.findRecord(position + 1, limit);
+        long resumeOffset = next >= 0 ? segment.getBaseOffset() + next :
+                nextSegment != null ? nextSegment : committedOffset;
+        logger.error("corrupted message log record at offset " + readOffset + ", skipped " +
+                (resumeOffset - readOffset) + " bytes to offset " + resumeOffset);
+        readOffset = resumeOffset;
+    }
+
+    private void deliver(byte[] messageBytes, Runnable onReceived) {
+        CompletableFuture<Boolean> received;
+        try {
+            received = MessageReceiver.getInstance().onMessageReceivedAsync(messageBytes);
+        } catch (RuntimeException ex) {
+            received = new CompletableFuture<>();
+            received.completeExceptionally(ex);
+        }
+        whenReceived(received, messageBytes, onReceived);
+    }
+
+    /**
+     * 接收方处理完成后回调；未被接收或处理出错的消息稍后重新投递，关闭后不再投递，重启后从日志重放
+     */
+    private void whenReceived(CompletableFuture<Boolean> received, byte[] messageBytes, Runnable onReceived) {
+        received.whenComplete((accepted, ex) -> {
+            if (ex == null && accepted) {
+                onReceived.run();
+                return;
+            }
+            if (ex != null) {
+                logger.error("message log delivery error, redeliver in " + REDELIVERY_DELAY_MILLIS + "ms", ex);
+            }
+            if (running) {
+                scheduler.schedule(() -> {
+                    if (running) {
+                        deliver(messageBytes, onReceived);
+                    }
+                }, REDELIVERY_DELAY_MILLIS);
+            }
+        });
+    }
+
+    private void scheduleDelayed(long offset, DelayedRecord delayed) {
+        pendingDelayed.put(offset, delayed);
+        delayed.task = scheduler.schedule(() -> fireDelayed(offset, delayed),
+                delayed.dueMillis - System.currentTimeMillis());
+    }
+
+    /**
+     * 处理完成后才从索引中移除，处理完成前退出时重启后重新投递
+     */
+    private void fireDelayed(long offset, DelayedRecord delayed) {
+        if (!running || pendingDelayed.get(offset) != delayed) {
+            return;
+        }
+        deliver(delayed.payload, () -> {
+            if (pendingDelayed.remove(offset, delayed)) {
+                delayedIndexDirty = true;
+            }
+        });
+    }
+
+    /**
+     * 取消尚未投递的定时记录
+     */
+    private void cancelDelayed(long offset) {
+        DelayedRecord delayed = pendingDelayed.remove(offset);
+        if (delayed != null) {
+            if (delayed.task != null) {
+                delayed.task.cancel();
+            }
+            delayedIndexDirty = true;
+        }
+    }
+
+    private void loadDelayedIndex() throws IOException {
+        File file = new File(directory, DELAYED_INDEX_FILE);
+        if (!file.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != DELAYED_INDEX_VERSION) {
+                throw new IOException("Unknown delayed index version in " + file);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long offset = in.readLong();
+                long dueMillis = in.readLong();
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                scheduleDelayed(offset, new DelayedRecord(dueMillis, payload));
+            }
+        }
+    }
+
+    /**
+     * 写入临时文件后替换，写入中途退出时保留上一次的索引
+     */
+    private void writeDelayedIndex() throws IOException {
+        delayedIndexDirty = false;
+        List<Map.Entry<Long, DelayedRecord>> entries = new ArrayList<>(pendingDelayed.entrySet());
+        File tmp = new File(directory, DELAYED_INDEX_FILE + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(DELAYED_INDEX_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<Long, DelayedRecord> entry : entries) {
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue().dueMillis);
+                out.writeInt(entry.getValue().payload.length);
+                out.write(entry.getValue().payload);
+            }
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException ex) {
+            delayedIndexDirty = true;
+            throw ex;
+        }
+        Files.move(tmp.toPath(), new File(directory, DELAYED_INDEX_FILE).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 定时索引先于消费位点写入，位点越过的定时记录已在索引中
+     */
+    private void checkpoint() throws IOException {
+        if (delayedIndexDirty) {
+            writeDelayedIndex();
+        }
+        Long first = inFlightOffsets.isEmpty() ? null : inFlightOffsets.first();
+        long consumerOffset = first == null ? readOffset : Math.min(first, readOffset);
+        offsetFile.seek(0);
+        offsetFile.writeLong(consumerOffset);
+        //not FileChannel.force: interrupting the reader on shutdown would close the channel and the offset file
+        offsetFile.getFD().sync();
+
+        Map.Entry<Long, LogSegment> head = segments.firstEntry();
+        while (head != null && head.getValue() != activeSegment) {
+            Long next = segments.higherKey(head.getKey());
+            if (next == null || next > consumerOffset) {
+                break;
+            }
+            segments.remove(head.getKey());
+            head.getValue().delete();
+            head = segments.firstEntry();
+        }
+    }
+
+    private static class AppendRequest {
+        private final byte kind;
+        private final long dueMillis;
+        private final ByteBuffer payload;
+        private final MessageBuffer messageBuffer;
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+        private long offset;
+
+        AppendRequest(byte kind, long dueMillis, ByteBuffer payload, MessageBuffer messageBuffer) {
+            this.kind = kind;
+            this.dueMillis = dueMillis;
+            this.payload = payload;
+            this.messageBuffer = messageBuffer;
+        }
+
+        void release() {
+            if (messageBuffer != null) {
+                messageBuffer.release();
+            }
+        }
+
+        void reject(Throwable cause) {
+            release();
+            future.completeExceptionally(cause);
+        }
+    }
+
+    private static class DelayedRecord {
+        private final long dueMillis;
+        private final byte[] payload;
+        private volatile ScheduledTask task;
+
+        DelayedRecord(long dueMillis, byte[] payload) {
+            this.dueMillis = dueMillis;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * 已持久化的定时消息。取消时立即取消本地调度，并追加取消记录使重启后不再投递。
+     */
+    private class DelayedRecordTask implements ScheduledTask {
+        private final long offset;
+        private volatile boolean cancelled;
+
+        DelayedRecordTask(long offset) {
+            this.offset = offset;
+        }
+
+        @Override
+        public synchronized boolean cancel() {
+            if (cancelled) {
+                return false;
+            }
+            cancelled = true;
+            append(LogRecord.KIND_CANCEL, offset, new byte[0]);
+            cancelDelayed(offset);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
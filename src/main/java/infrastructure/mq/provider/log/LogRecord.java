@@ -0,0 +1,45 @@
+package infrastructure.mq.provider.log;
+
+/**
+ * 日志段中的一条记录。
+ */
+class LogRecord {
+    static final byte KIND_IMMEDIATE = 1;
+    static final byte KIND_DELAYED = 2;
+    /**
+     * 取消定时消息，dueMillis 为被取消记录的偏移量
+     */
+    static final byte KIND_CANCEL = 3;
+    /**
+     * 带分区键的即时消息，在读取线程上按日志顺序交给接收方
+     */
+    static final byte KIND_KEYED = 4;
+
+    private final byte kind;
+    private final long dueMillis;
+    private final byte[] payload;
+    private final int size;
+
+    LogRecord(byte kind, long dueMillis, byte[] payload, int size) {
+        this.kind = kind;
+        this.dueMillis = dueMillis;
+        this.payload = payload;
+        this.size = size;
+    }
+
+    byte getKind() {
+        return kind;
+    }
+
+    long getDueMillis() {
+        return dueMillis;
+    }
+
+    byte[] getPayload() {
+        return payload;
+    }
+
+    int getSize() {
+        return size;
+    }
+}
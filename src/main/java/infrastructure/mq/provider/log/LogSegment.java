@@ -0,0 +1,162 @@
+package infrastructure.mq.provider.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * 预分配并映射到内存的日志段文件。
+ * <p>记录格式：4字节记录总长度 + 4字节CRC32 + 1字节记录类型 + 8字节触发时间 + 消息字节。
+ * 长度为0表示段内数据结束。
+ */
+class LogSegment {
+    static final int RECORD_HEADER_SIZE = 17;
+
+    private final long baseOffset;
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer;
+    private int writePosition;
+
+    LogSegment(File file, long baseOffset, int segmentSize) throws IOException {
+        this.baseOffset = baseOffset;
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        if (randomAccessFile.length() < segmentSize) {
+            randomAccessFile.setLength(segmentSize);
+        }
+        this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+    }
+
+    long getBaseOffset() {
+        return baseOffset;
+    }
+
+    int getWritePosition() {
+        return writePosition;
+    }
+
+    /**
+     * 扫描校验已有记录，截断尾部不完整的记录。
+     *
+     * @return 恢复后的写入位置
+     */
+    int recover() {
+        int position = 0;
+        LogRecord record;
+        while ((record = read(position)) != null) {
+            position += record.getSize();
+        }
+        writePosition = position;
+        if (position + 4 <= buffer.capacity() && buffer.getInt(position) != 0) {
+            ByteBuffer tail = buffer.duplicate();
+            tail.position(position);
+            while (tail.hasRemaining()) {
+                tail.put((byte) 0);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * @return 写入的位置，空间不足时返回-1
+     */
+    int append(byte kind, long dueMillis, byte[] payload) {
+        return append(kind, dueMillis, ByteBuffer.wrap(payload));
+    }
+
+    /**
+     * 从 payload 的 position 写到 limit，不改变 payload 的 position
+     */
+    int append(byte kind, long dueMillis, ByteBuffer payload) {
+        int size = RECORD_HEADER_SIZE + payload.remaining();
+        if (writePosition + size > buffer.capacity()) {
+            return -1;
+        }
+        int position = writePosition;
+        ByteBuffer out = buffer.duplicate();
+        out.position(position + 8);
+        out.put(kind);
+        out.putLong(dueMillis);
+        out.put(payload.duplicate());
+        buffer.putInt(position + 4, crc(position + 8, size - 8));
+        buffer.putInt(position, size);
+        writePosition = position + size;
+        return position;
+    }
+
+    /**
+     * @return position 处的完整记录，没有记录或记录损坏时返回null
+     */
+    LogRecord read(int position) {
+        if (position + RECORD_HEADER_SIZE > buffer.capacity()) {
+            return null;
+        }
+        int size = buffer.getInt(position);
+        if (size < RECORD_HEADER_SIZE || position + size > buffer.capacity()
+                || buffer.getInt(position + 4) != crc(position + 8, size - 8)) {
+            return null;
+        }
+        ByteBuffer in = buffer.duplicate();
+        in.position(position + 8);
+        byte kind = in.get();
+        long dueMillis = in.getLong();
+        byte[] payload = new byte[size - RECORD_HEADER_SIZE];
+        in.get(payload);
+        return new LogRecord(kind, dueMillis, payload, size);
+    }
+
+    int getCapacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return position 之后没有写入数据时返回true
+     */
+    boolean isEndOfData(int position) {
+        return position + 4 > buffer.capacity() || buffer.getInt(position) == 0;
+    }
+
+    /**
+     * 逐字节查找下一条校验通过的记录，用于跳过损坏的记录
+     *
+     * @return 记录的位置，limit 之前没有时返回-1
+     */
+    int findRecord(int from, int limit) {
+        for (int position = from; position + RECORD_HEADER_SIZE <= limit; position++) {
+            LogRecord record = read(position);
+            if (record != null && position + record.getSize() <= limit) {
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    void close() throws IOException {
+        randomAccessFile.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        if (!file.delete()) {
+            throw new IOException("Cannot delete log segment " + file);
+        }
+    }
+
+    private int crc(int position, int length) {
+        ByteBuffer region = buffer.duplicate();
+        region.position(position);
+        region.limit(position + length);
+        CRC32 crc32 = new CRC32();
+        crc32.update(region);
+        return (int) crc32.getValue();
+    }
+}
@@ -0,0 +1,127 @@
+package infrastructure.mq.provider.redis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * 进程内的 {@link RedisScheduleCommands}，按 {@link LuaScheduleCommands} 的语义保存定时与周期消息，
+ * 用于测试与单节点运行。消息不持久化。
+ */
+public class InMemoryScheduleCommands implements RedisScheduleCommands {
+    private final Map<String, Long> schedule = new HashMap<>();
+    private final Map<String, Long> processing = new HashMap<>();
+    private final Map<String, Long> alive = new HashMap<>();
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    @Override
+    public synchronized void register(String id, long dueMillis, String messageType, byte[] payload,
+                                      long periodMillis, long now) {
+        if (periodMillis > 0) {
+            alive.put(id, now);
+        }
+        if (schedule.containsKey(id)) {
+            return;
+        }
+        entries.put(id, new Entry(messageType, payload, periodMillis));
+        schedule.put(id, dueMillis);
+    }
+
+    @Override
+    public synchronized List<ScheduledEntry> claim(long now, int count, long leaseUntil, long staleBefore) {
+        List<ScheduledEntry> claimed = new ArrayList<>();
+        for (String id : dueIds(processing, now, count)) {
+            processing.put(id, leaseUntil);
+            add(claimed, id, false);
+        }
+        for (String id : dueIds(schedule, now, count - claimed.size())) {
+            Entry entry = entries.get(id);
+            if (entry != null && entry.periodMillis > 0) {
+                Long aliveAt = alive.get(id);
+                if (aliveAt != null && aliveAt >= staleBefore) {
+                    long score = schedule.get(id);
+                    schedule.put(id, score + entry.periodMillis * ((now - score) / entry.periodMillis + 1));
+                    add(claimed, id, true);
+                } else {
+                    delete(id);
+                }
+            } else {
+                schedule.remove(id);
+                processing.put(id, leaseUntil);
+                add(claimed, id, false);
+            }
+        }
+        return claimed;
+    }
+
+    @Override
+    public synchronized void complete(String id) {
+        if (processing.remove(id) != null) {
+            delete(id);
+        }
+    }
+
+    @Override
+    public synchronized void retry(String id, long retryAt) {
+        processing.computeIfPresent(id, (k, v) -> retryAt);
+    }
+
+    @Override
+    public synchronized void refresh(Collection<String> ids, long now) {
+        ids.stream().filter(schedule::containsKey).forEach(id -> alive.put(id, now));
+    }
+
+    @Override
+    public synchronized boolean cancel(String id) {
+        boolean removed = schedule.containsKey(id) || processing.containsKey(id);
+        delete(id);
+        return removed;
+    }
+
+    /**
+     * @return 调度中与处理中的消息数
+     */
+    public synchronized int size() {
+        return schedule.size() + processing.size();
+    }
+
+    private void add(List<ScheduledEntry> claimed, String id, boolean periodic) {
+        Entry entry = entries.get(id);
+        if (entry == null) {
+            processing.remove(id);
+            return;
+        }
+        claimed.add(new ScheduledEntry(id, entry.messageType, entry.payload, periodic));
+    }
+
+    private void delete(String id) {
+        schedule.remove(id);
+        processing.remove(id);
+        alive.remove(id);
+        entries.remove(id);
+    }
+
+    private static List<String> dueIds(Map<String, Long> scores, long now, int count) {
+        return scores.entrySet().stream()
+                .filter(e -> e.getValue() <= now)
+                .sorted(Map.Entry.comparingByValue())
+                .limit(Math.max(0, count))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    private static class Entry {
+        private final String messageType;
+        private final byte[] payload;
+        private final long periodMillis;
+
+        Entry(String messageType, byte[] payload, long periodMillis) {
+            this.messageType = messageType;
+            this.payload = payload;
+            this.periodMillis = periodMillis;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package infrastructure.mq.provider.redis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 进程内的 {@link RedisStreamCommands}，按 Redis Stream 消费组的语义保存消息、投递位置与待确认列表，
+ * 用于测试与单节点运行。消息不持久化。
+ */
+public class InMemoryStreamCommands implements RedisStreamCommands {
+    private final Map<String, Stream> streams = new HashMap<>();
+
+    @Override
+    public synchronized void createGroup(String stream, String group) {
+        streamOf(stream).groups.putIfAbsent(group, new Group());
+    }
+
+    @Override
+    public synchronized void addAll(String stream, List<byte[]> payloads, long maxLength) {
+        Stream s = streamOf(stream);
+        for (byte[] payload : payloads) {
+            s.entries.add(new StreamEntry(System.currentTimeMillis() + "-" + s.sequence++, payload));
+        }
+        if (maxLength > 0 && s.entries.size() > maxLength) {
+            int excess = (int) (s.entries.size() - maxLength);
+            s.entries.subList(0, excess).clear();
+            s.trimmed += excess;
+        }
+    }
+
+    @Override
+    public synchronized List<StreamEntry> readGroup(String stream, String group, String consumer, int count) {
+        Stream s = streamOf(stream);
+        Group g = groupOf(s, group);
+        List<StreamEntry> entries = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        //entries trimmed before delivery are lost, as with MAXLEN in Redis
+        g.delivered = Math.max(g.delivered, s.trimmed);
+        while (entries.size() < count && g.delivered < s.trimmed + s.entries.size()) {
+            StreamEntry entry = s.entries.get((int) (g.delivered++ - s.trimmed));
+            g.pending.put(entry.getId(), new Pending(entry, consumer, now));
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    @Override
+    public synchronized void ack(String stream, String group, List<String> ids) {
+        Group g = groupOf(streamOf(stream), group);
+        ids.forEach(g.pending::remove);
+    }
+
+    @Override
+    public synchronized List<StreamEntry> claimIdle(String stream, String group, String consumer, long minIdleMillis,
+                                                    int count) {
+        Group g = groupOf(streamOf(stream), group);
+        List<StreamEntry> entries = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        Iterator<Pending> iterator = g.pending.values().iterator();
+        while (entries.size() < count && iterator.hasNext()) {
+            Pending pending = iterator.next();
+            if (!consumer.equals(pending.consumer) && now - pending.deliveredAt >= minIdleMillis) {
+                entries.add(pending.claim(consumer, now));
+            }
+        }
+        return entries;
+    }
+
+    @Override
+    public synchronized List<StreamEntry> claim(String stream, String group, String consumer, long minIdleMillis,
+                                                List<String> ids) {
+        Group g = groupOf(streamOf(stream), group);
+        List<StreamEntry> entries = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (String id : ids) {
+            Pending pending = g.pending.get(id);
+            if (pending != null && now - pending.deliveredAt >= minIdleMillis) {
+                entries.add(pending.claim(consumer, now));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return 消费组中已投递未确认的消息数
+     */
+    public synchronized int getPendingCount(String stream, String group) {
+        return groupOf(streamOf(stream), group).pending.size();
+    }
+
+    /**
+     * @return 消息的投递次数，已确认或未投递时返回0
+     */
+    public synchronized int getDeliveryCount(String stream, String group, String id) {
+        Pending pending = groupOf(streamOf(stream), group).pending.get(id);
+        return pending == null ? 0 : pending.deliveryCount;
+    }
+
+    /**
+     * @return 流中保留的消息
+     */
+    public synchronized List<StreamEntry> getEntries(String stream) {
+        return new ArrayList<>(streamOf(stream).entries);
+    }
+
+    private Stream streamOf(String stream) {
+        return streams.computeIfAbsent(stream, k -> new Stream());
+    }
+
+    private static Group groupOf(Stream stream, String group) {
+        Group g = stream.groups.get(group);
+        if (g == null) {
+            throw new IllegalStateException("NOGROUP No such consumer group " + group);
+        }
+        return g;
+    }
+
+    private static class Stream {
+        private final List<StreamEntry> entries = new ArrayList<>();
+        private final Map<String, Group> groups = new HashMap<>();
+        private long sequence;
+        private long trimmed;
+    }
+
+    private static class Group {
+        private final Map<String, Pending> pending = new LinkedHashMap<>();
+        private long delivered;
+    }
+
+    private static class Pending {
+        private final StreamEntry entry;
+        private String consumer;
+        private long deliveredAt;
+        private int deliveryCount = 1;
+
+        Pending(StreamEntry entry, String consumer, long deliveredAt) {
+            this.entry = entry;
+            this.consumer = consumer;
+            this.deliveredAt = deliveredAt;
+        }
+
+        StreamEntry claim(String consumer, long now) {
+            this.consumer = consumer;
+            this.deliveredAt = now;
+            this.deliveryCount++;
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package infrastructure.mq.provider.redis;
+
+import infrastructure.bean.CharsetUtils;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.output.IntegerOutput;
+import io.lettuce.core.output.NestedMultiOutput;
+import io.lettuce.core.output.StatusOutput;
+import io.lettuce.core.output.ValueOutput;
+import io.lettuce.core.protocol.CommandArgs;
+import io.lettuce.core.protocol.ProtocolKeyword;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * 通过 Lettuce 自定义命令实现的 {@link RedisStreamCommands}。
+ * <p>当前版本的 spring-data-redis 与 Lettuce 均未提供 Stream API，因此直接发送原始命令，
+ * 要求连接工厂为 LettuceConnectionFactory，Redis 版本不低于 6.2（XPENDING 的 IDLE 参数）。
+ */
+public class LettuceStreamCommands implements RedisStreamCommands {
+    private static final String PAYLOAD_FIELD = "m";
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private RedisConnectionFactory connectionFactory;
+
+    public LettuceStreamCommands(RedisConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    private enum Command implements ProtocolKeyword {
+        XADD, XGROUP, XREADGROUP, XACK, XPENDING, XCLAIM;
+
+        private final byte[] bytes = name().getBytes(CharsetUtils.UTF_8);
+
+        @Override
+        public byte[] getBytes() {
+            return bytes;
+        }
+    }
+
+    @Override
+    public void createGroup(String stream, String group) {
+        try {
+            execute(commands -> await(commands.dispatch(Command.XGROUP, new StatusOutput<>(ByteArrayCodec.INSTANCE),
+                    args().add("CREATE").addKey(bytes(stream)).add(group).add("0").add("MKSTREAM"))));
+        } catch (IllegalStateException ex) {
+            if (ex.getCause() == null || ex.getCause().getMessage() == null
+                    || !ex.getCause().getMessage().contains("BUSYGROUP")) {
+                throw ex;
+            }
+        }
+    }
+
+    @Override
+    public void addAll(String stream, List<byte[]> payloads, long maxLength) {
+        execute(commands -> {
+            List<RedisFuture<byte[]>> futures = new ArrayList<>(payloads.size());
+            for (byte[] payload : payloads) {
+                futures.add(commands.dispatch(Command.XADD, new ValueOutput<>(ByteArrayCodec.INSTANCE),
+                        args().addKey(bytes(stream)).add("MAXLEN").add("~").add(maxLength)
+                                .add("*").add(PAYLOAD_FIELD).addValue(payload)));
+            }
+            futures.forEach(LettuceStreamCommands::await);
+            return null;
+        });
+    }
+
+    @Override
+    public List<StreamEntry> readGroup(String stream, String group, String consumer, int count) {
+        List<Object> reply = execute(commands -> await(commands.dispatch(Command.XREADGROUP,
+                new NestedMultiOutput<>(ByteArrayCodec.INSTANCE),
+                args().add("GROUP").add(group).add(consumer).add("COUNT").add(count)
+                        .add("STREAMS").addKey(bytes(stream)).add(">"))));
+        if (reply == null || reply.isEmpty() || reply.get(0) == null) {
+            return Collections.emptyList();
+        }
+        return parseEntries((List<?>) ((List<?>) reply.get(0)).get(1));
+    }
+
+    @Override
+    public void ack(String stream, String group, List<String> ids) {
+        CommandArgs<byte[], byte[]> args = args().addKey(bytes(stream)).add(group);
+        ids.forEach(args::add);
+        execute(commands -> await(commands.dispatch(Command.XACK, new IntegerOutput<>(ByteArrayCodec.INSTANCE), args)));
+    }
+
+    /**
+     * 按消息ID分页扫描空闲的待确认消息，跳过的自己的消息不占用认领数
+     */
+    @Override
+    public List<StreamEntry> claimIdle(String stream, String group, String consumer, long minIdleMillis, int count) {
+        List<String> ids = new ArrayList<>();
+        String start = "-";
+        while (ids.size() < count) {
+            CommandArgs<byte[], byte[]> pendingArgs = args().addKey(bytes(stream)).add(group)
+                    .add("IDLE").add(minIdleMillis).add(start).add("+").add(count);
+            List<Object> pending = execute(commands -> await(commands.dispatch(Command.XPENDING,
+                    new NestedMultiOutput<>(ByteArrayCodec.INSTANCE), pendingArgs)));
+            if (pending == null || pending.isEmpty()) {
+                break;
+            }
+            for (Object item : pending) {
+                List<?> detail = (List<?>) item;
+                if (ids.size() < count && !consumer.equals(string(detail.get(1)))) {
+                    ids.add(string(detail.get(0)));
+                }
+            }
+            if (pending.size() < count) {
+                break;
+            }
+            start = "(" + string(((List<?>) pending.get(pending.size() - 1)).get(0));
+        }
+        return claim(stream, group, consumer, minIdleMillis, ids);
+    }
+
+    @Override
+    public List<StreamEntry> claim(String stream, String group, String consumer, long minIdleMillis, List<String> ids) {
+        if (ids.isEmpty()) {
+            return Collections.emptyList();
+        }
+        CommandArgs<byte[], byte[]> claimArgs =
+                args().addKey(bytes(stream)).add(group).add(consumer).add(minIdleMillis);
+        ids.forEach(claimArgs::add);
+        return parseEntries(execute(commands -> await(commands.dispatch(Command.XCLAIM,
+                new NestedMultiOutput<>(ByteArrayCodec.INSTANCE), claimArgs))));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> T execute(Function<RedisClusterAsyncCommands<byte[], byte[]>, T> callback) {
+        RedisConnection connection = connectionFactory.getConnection();
+        try {
+            return callback.apply((RedisClusterAsyncCommands<byte[], byte[]>) connection.getNativeConnection());
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static <T> T await(RedisFuture<T> future) {
+        try {
+            return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Redis stream command failed", ex.getCause());
+        } catch (TimeoutException ex) {
+            throw new IllegalStateException("Redis stream command timed out", ex);
+        }
+    }
+
+    private static List<StreamEntry> parseEntries(List<?> entries) {
+        List<StreamEntry> result = new ArrayList<>(entries.size());
+        for (Object item : entries) {
+            //claimed entries may have been deleted from the stream
+            if (!(item instanceof List) || ((List<?>) item).size() < 2 || ((List<?>) item).get(1) == null) {
+                continue;
+            }
+            List<?> entry = (List<?>) item;
+            List<?> fields = (List<?>) entry.get(1);
+            for (int i = 0; i + 1 < fields.size(); i += 2) {
+                if (PAYLOAD_FIELD.equals(string(fields.get(i)))) {
+                    result.add(new StreamEntry(string(entry.get(0)), (byte[]) fields.get(i + 1)));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static CommandArgs<byte[], byte[]> args() {
+        return new CommandArgs<>(ByteArrayCodec.INSTANCE);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(CharsetUtils.UTF_8);
+    }
+
+    private static String string(Object value) {
+        return value instanceof byte[] ? new String((byte[]) value, CharsetUtils.UTF_8) : String.valueOf(value);
+    }
+}
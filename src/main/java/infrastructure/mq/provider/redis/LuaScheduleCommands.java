@@ -0,0 +1,182 @@
+package infrastructure.mq.provider.redis;
+
+import infrastructure.bean.CharsetUtils;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 以 Lua 脚本实现的 {@link RedisScheduleCommands}，所有键位于同一个集群槽位。
+ */
+public class LuaScheduleCommands implements RedisScheduleCommands {
+    //hash tag keeps all keys in one cluster slot so the scripts may touch them together
+    public static final String SCHEDULE_KEY = "infra:mq:{schedule}";
+    private static final byte[][] KEYS = {
+            SCHEDULE_KEY.getBytes(CharsetUtils.UTF_8),
+            (SCHEDULE_KEY + ":type").getBytes(CharsetUtils.UTF_8),
+            (SCHEDULE_KEY + ":payload").getBytes(CharsetUtils.UTF_8),
+            (SCHEDULE_KEY + ":period").getBytes(CharsetUtils.UTF_8),
+            (SCHEDULE_KEY + ":processing").getBytes(CharsetUtils.UTF_8),
+            (SCHEDULE_KEY + ":alive").getBytes(CharsetUtils.UTF_8)};
+
+    private static final String DELETE = "" +
+            "redis.call('ZREM', KEYS[1], id)\n" +
+            "redis.call('ZREM', KEYS[5], id)\n" +
+            "redis.call('ZREM', KEYS[6], id)\n" +
+            "redis.call('HDEL', KEYS[2], id)\n" +
+            "redis.call('HDEL', KEYS[3], id)\n" +
+            "redis.call('HDEL', KEYS[4], id)\n";
+
+    private static final byte[] REGISTER_SCRIPT = ("" +
+            "if tonumber(ARGV[5]) > 0 then redis.call('ZADD', KEYS[6], ARGV[6], ARGV[1]) end\n" +
+            "if redis.call('ZSCORE', KEYS[1], ARGV[1]) then return 0 end\n" +
+            "redis.call('HSET', KEYS[2], ARGV[1], ARGV[3])\n" +
+            "redis.call('HSET', KEYS[3], ARGV[1], ARGV[4])\n" +
+            "redis.call('HSET', KEYS[4], ARGV[1], ARGV[5])\n" +
+            "redis.call('ZADD', KEYS[1], ARGV[2], ARGV[1])\n" +
+            "return 1").getBytes(CharsetUtils.UTF_8);
+
+    private static final byte[] CLAIM_SCRIPT = ("" +
+            "local now = tonumber(ARGV[1])\n" +
+            "local claimed = {}\n" +
+            "local function add(id, periodic)\n" +
+            "  local messageType = redis.call('HGET', KEYS[2], id)\n" +
+            "  local payload = redis.call('HGET', KEYS[3], id)\n" +
+            "  if messageType and payload then\n" +
+            "    claimed[#claimed + 1] = id\n" +
+            "    claimed[#claimed + 1] = messageType\n" +
+            "    claimed[#claimed + 1] = payload\n" +
+            "    claimed[#claimed + 1] = periodic\n" +
+            "  else\n" +
+            "    redis.call('ZREM', KEYS[5], id)\n" +
+            "  end\n" +
+            "end\n" +
+            "local expired = redis.call('ZRANGEBYSCORE', KEYS[5], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2])\n" +
+            "for i = 1, #expired do\n" +
+            "  redis.call('ZADD', KEYS[5], ARGV[3], expired[i])\n" +
+            "  add(expired[i], '0')\n" +
+            "end\n" +
+            "local remaining = tonumber(ARGV[2]) - #expired\n" +
+            "if remaining <= 0 then return claimed end\n" +
+            "local due = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'WITHSCORES', 'LIMIT', 0, remaining)\n" +
+            "for i = 1, #due, 2 do\n" +
+            "  local id = due[i]\n" +
+            "  local period = tonumber(redis.call('HGET', KEYS[4], id))\n" +
+            "  if period and period > 0 then\n" +
+            "    local alive = tonumber(redis.call('ZSCORE', KEYS[6], id))\n" +
+            "    if alive and alive >= tonumber(ARGV[4]) then\n" +
+            "      local score = tonumber(due[i + 1])\n" +
+            "      redis.call('ZADD', KEYS[1], score + period * (math.floor((now - score) / period) + 1), id)\n" +
+            "      add(id, '1')\n" +
+            "    else\n" +
+            DELETE +
+            "    end\n" +
+            "  else\n" +
+            "    redis.call('ZREM', KEYS[1], id)\n" +
+            "    redis.call('ZADD', KEYS[5], ARGV[3], id)\n" +
+            "    add(id, '0')\n" +
+            "  end\n" +
+            "end\n" +
+            "return claimed").getBytes(CharsetUtils.UTF_8);
+
+    private static final byte[] COMPLETE_SCRIPT = ("" +
+            "local id = ARGV[1]\n" +
+            "if redis.call('ZREM', KEYS[5], id) == 0 then return 0 end\n" +
+            DELETE +
+            "return 1").getBytes(CharsetUtils.UTF_8);
+
+    private static final byte[] RETRY_SCRIPT = ("" +
+            "return redis.call('ZADD', KEYS[5], 'XX', ARGV[2], ARGV[1])").getBytes(CharsetUtils.UTF_8);
+
+    private static final byte[] REFRESH_SCRIPT = ("" +
+            "for i = 2, #ARGV do\n" +
+            "  if redis.call('ZSCORE', KEYS[1], ARGV[i]) then redis.call('ZADD', KEYS[6], ARGV[1], ARGV[i]) end\n" +
+            "end\n" +
+            "return 0").getBytes(CharsetUtils.UTF_8);
+
+    private static final byte[] CANCEL_SCRIPT = ("" +
+            "local id = ARGV[1]\n" +
+            "local removed = redis.call('ZREM', KEYS[1], id) + redis.call('ZREM', KEYS[5], id)\n" +
+            DELETE +
+            "return removed").getBytes(CharsetUtils.UTF_8);
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public LuaScheduleCommands(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @Override
+    public void register(String id, long dueMillis, String messageType, byte[] payload, long periodMillis,
+                         long now) {
+        eval(REGISTER_SCRIPT, ReturnType.INTEGER, bytes(id), bytes(dueMillis), bytes(messageType), payload,
+                bytes(periodMillis), bytes(now));
+    }
+
+    @Override
+    public List<ScheduledEntry> claim(long now, int count, long leaseUntil, long staleBefore) {
+        List<Object> claimed = eval(CLAIM_SCRIPT, ReturnType.MULTI, bytes(now), bytes(count), bytes(leaseUntil),
+                bytes(staleBefore));
+        if (claimed == null) {
+            return Collections.emptyList();
+        }
+        List<ScheduledEntry> entries = new ArrayList<>(claimed.size() / 4);
+        for (int i = 0; i + 3 < claimed.size(); i += 4) {
+            entries.add(new ScheduledEntry(string(claimed.get(i)), string(claimed.get(i + 1)),
+                    (byte[]) claimed.get(i + 2), "1".equals(string(claimed.get(i + 3)))));
+        }
+        return entries;
+    }
+
+    @Override
+    public void complete(String id) {
+        eval(COMPLETE_SCRIPT, ReturnType.INTEGER, bytes(id));
+    }
+
+    @Override
+    public void retry(String id, long retryAt) {
+        eval(RETRY_SCRIPT, ReturnType.INTEGER, bytes(id), bytes(retryAt));
+    }
+
+    @Override
+    public void refresh(Collection<String> ids, long now) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        List<byte[]> args = new ArrayList<>(ids.size() + 1);
+        args.add(bytes(now));
+        ids.forEach(id -> args.add(bytes(id)));
+        eval(REFRESH_SCRIPT, ReturnType.INTEGER, args.toArray(new byte[0][]));
+    }
+
+    @Override
+    public boolean cancel(String id) {
+        Long removed = eval(CANCEL_SCRIPT, ReturnType.INTEGER, bytes(id));
+        return removed != null && removed > 0;
+    }
+
+    private <T> T eval(byte[] script, ReturnType returnType, byte[]... args) {
+        byte[][] keysAndArgs = Arrays.copyOf(KEYS, KEYS.length + args.length);
+        System.arraycopy(args, 0, keysAndArgs, KEYS.length, args.length);
+        return stringRedisTemplate.execute(
+                (RedisCallback<T>) connection -> connection.eval(script, returnType, KEYS.length, keysAndArgs));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(CharsetUtils.UTF_8);
+    }
+
+    private static byte[] bytes(long value) {
+        return bytes(Long.toString(value));
+    }
+
+    private static String string(Object bytes) {
+        return new String((byte[]) bytes, CharsetUtils.UTF_8);
+    }
+}
@@ -0,0 +1,48 @@
+package infrastructure.mq.provider.redis;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 集群定时消息用到的 Redis 命令，每个方法原子执行，可替换为进程内实现以便测试。
+ * <p>定时与周期消息保存在以下次触发时间为分值的有序集合中。认领的定时消息移入处理中集合，
+ * 发送成功后才删除，认领的节点在租期内未完成时由任一节点重新认领。
+ * 周期消息由注册它的节点定期刷新存活时间，长时间无节点刷新的周期消息在到期时删除，不再触发。
+ */
+public interface RedisScheduleCommands {
+    /**
+     * 注册消息，ID已存在时保留已有的触发时间。周期消息同时刷新存活时间。
+     *
+     * @param periodMillis 周期，定时消息为0
+     * @param now          当前时间
+     */
+    void register(String id, long dueMillis, String messageType, byte[] payload, long periodMillis, long now);
+
+    /**
+     * 认领最多 count 条消息：先认领处理中已超过租期的定时消息，再认领到期的消息。
+     * 定时消息移入处理中集合，周期消息推进到下一次触发时间，存活时间早于 staleBefore 的周期消息删除不触发。
+     *
+     * @param leaseUntil 认领的定时消息的租期
+     */
+    List<ScheduledEntry> claim(long now, int count, long leaseUntil, long staleBefore);
+
+    /**
+     * 定时消息发送成功后删除
+     */
+    void complete(String id);
+
+    /**
+     * 定时消息发送失败后在 retryAt 时重新认领
+     */
+    void retry(String id, long retryAt);
+
+    /**
+     * 刷新仍在调度中的周期消息的存活时间
+     */
+    void refresh(Collection<String> ids, long now);
+
+    /**
+     * @return 消息仍在调度中或处理中时返回true
+     */
+    boolean cancel(String id);
+}
@@ -0,0 +1,245 @@
+package infrastructure.mq.provider.redis;
+
+import com.google.common.hash.Hashing;
+import infrastructure.bean.CharsetUtils;
+import infrastructure.mq.provider.MessageBuffer;
+import infrastructure.mq.provider.MessageSender;
+import infrastructure.mq.provider.ScheduledTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 集群范围只触发一次的定时消息：定时与周期消息保存在 Redis 有序集合中，分值为下次触发时间。
+ * <p>各节点轮询时原子地认领一批到期消息：定时消息移入处理中集合，周期消息推进到下一次触发时间，
+ * 认领的节点将消息作为即时消息交给被装饰的发送方。到期消息较多时各节点轮流认领，负载分散到整个集群。
+ * 定时消息发送成功后才删除，认领的节点在租期内未发送成功（如进程退出）时由任一节点重新认领。
+ * <p>周期消息的ID由消息类型、周期与消息内容决定，多个节点注册同一个周期消息时只保留最先注册的一份，
+ * 任一节点取消后整个集群都不再触发。注册了周期消息的节点定期刷新其存活时间，
+ * 超过租期无节点刷新的周期消息（如已从代码中移除）在到期时删除。
+ * <p>节点崩溃时，周期消息最多丢失已认领的一次触发。
+ */
+public class RedisScheduledMessageSender implements MessageSender, DisposableBean {
+    private static final Logger logger = LoggerFactory.getLogger(RedisScheduledMessageSender.class);
+
+    public static final long DEFAULT_LEASE_MILLIS = 30000;
+
+    private final MessageSender messageSender;
+    private final RedisScheduleCommands commands;
+    private final int batchSize;
+    private final long pollIntervalMillis;
+    private final long leaseMillis;
+    private final Set<String> periodicIds = ConcurrentHashMap.newKeySet();
+    private final Thread poller;
+    private volatile boolean running = true;
+    private long refreshedAt;
+
+    /**
+     * @param messageSender      发送认领到的消息以及即时消息
+     * @param batchSize          每次认领的最大消息数
+     * @param pollIntervalMillis 没有更多到期消息时的轮询间隔，各节点在此基础上随机错开
+     */
+    public RedisScheduledMessageSender(MessageSender messageSender, StringRedisTemplate stringRedisTemplate,
+                                       int batchSize, long pollIntervalMillis) {
+        this(messageSender, new LuaScheduleCommands(stringRedisTemplate), batchSize, pollIntervalMillis,
+                DEFAULT_LEASE_MILLIS);
+    }
+
+    /**
+     * @param messageSender      发送认领到的消息以及即时消息
+     * @param batchSize          每次认领的最大消息数
+     * @param pollIntervalMillis 没有更多到期消息时的轮询间隔，各节点在此基础上随机错开
+     * @param leaseMillis        认领的定时消息在此时间内未发送成功时重新认领；周期消息超过此时间无节点刷新时删除
+     */
+    public RedisScheduledMessageSender(MessageSender messageSender, RedisScheduleCommands commands,
+                                       int batchSize, long pollIntervalMillis, long leaseMillis) {
+        this.messageSender = messageSender;
+        this.commands = commands;
+        this.batchSize = batchSize;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.leaseMillis = leaseMillis;
+        this.poller = new Thread(this::pollLoop, "mq-redis-schedule");
+        poller.setDaemon(true);
+        poller.start();
+    }
+
+    @Override
+    public void send(String messageType, byte[] messageBytes) {
+        messageSender.send(messageType, messageBytes);
+    }
+
+    @Override
+    public void sendAll(String messageType, List<byte[]> messagesBytes) {
+        messageSender.sendAll(messageType, messagesBytes);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(String messageType, byte[] messageBytes) {
+        return messageSender.sendAsync(messageType, messageBytes);
+    }
+
+    @Override
+    public void send(String messageType, MessageBuffer messageBuffer) {
+        messageSender.send(messageType, messageBuffer);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(String messageType, MessageBuffer messageBuffer) {
+        return messageSender.sendAsync(messageType, messageBuffer);
+    }
+
+    @Override
+    public boolean supportsMessageBuffer() {
+        return messageSender.supportsMessageBuffer();
+    }
+
+    @Override
+    public void send(String messageType, String partitionKey, byte[] messageBytes) {
+        messageSender.send(messageType, partitionKey, messageBytes);
+    }
+
+    @Override
+    public boolean isInProcess() {
+        return messageSender.isInProcess();
+    }
+
+    @Override
+    public boolean isReceivedInProcess() {
+        return messageSender.isReceivedInProcess();
+    }
+
+    @Override
+    public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime time) {
+        String id = UUID.randomUUID().toString();
+        commands.register(id, time.toInstant().toEpochMilli(), messageType, messageBytes, 0,
+                System.currentTimeMillis());
+        return new RedisScheduledTask(id);
+    }
+
+    /**
+     * 同一个周期消息已由其他节点注册时沿用已有的触发时间
+     */
+    @Override
+    public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime firstTime, Duration duration) {
+        long period = duration.toMillis();
+        String id = "periodic:" + Hashing.sha256().newHasher()
+                .putString(messageType, CharsetUtils.UTF_8)
+                .putLong(period)
+                .putBytes(messageBytes)
+                .hash();
+        commands.register(id, firstTime.toInstant().toEpochMilli(), messageType, messageBytes, period,
+                System.currentTimeMillis());
+        periodicIds.add(id);
+        return new RedisScheduledTask(id);
+    }
+
+    /**
+     * 停止轮询，等待正在发送的一批消息发送完成。未发送的定时消息在租期后由其他节点认领。
+     */
+    public void shutdown() {
+        running = false;
+        poller.interrupt();
+        try {
+            poller.join(pollIntervalMillis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void destroy() {
+        shutdown();
+    }
+
+    private void pollLoop() {
+        while (running) {
+            int claimed = 0;
+            try {
+                refreshIfDue();
+                claimed = claimAndSend();
+            } catch (RuntimeException ex) {
+                if (running) {
+                    logger.error("claim scheduled messages error", ex);
+                }
+            }
+            if (claimed >= batchSize) {
+                continue;
+            }
+            try {
+                long jitter = ThreadLocalRandom.current().nextLong(pollIntervalMillis / 2 + 1);
+                TimeUnit.MILLISECONDS.sleep(pollIntervalMillis / 2 + jitter);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 每三分之一租期刷新一次本节点注册的周期消息
+     */
+    private void refreshIfDue() {
+        long now = System.currentTimeMillis();
+        if (now - refreshedAt >= leaseMillis / 3) {
+            commands.refresh(periodicIds, now);
+            refreshedAt = now;
+        }
+    }
+
+    private int claimAndSend() {
+        long now = System.currentTimeMillis();
+        List<ScheduledEntry> claimed = commands.claim(now, batchSize, now + leaseMillis, now - leaseMillis);
+        for (ScheduledEntry entry : claimed) {
+            try {
+                messageSender.send(entry.getMessageType(), entry.getPayload());
+            } catch (RuntimeException ex) {
+                logger.error("send scheduled message error, type: " + entry.getMessageType() +
+                        ", id: " + entry.getId(), ex);
+                if (!entry.isPeriodic()) {
+                    //still held in the processing set, let any node claim it at the next poll
+                    commands.retry(entry.getId(), now + pollIntervalMillis);
+                }
+                continue;
+            }
+            if (!entry.isPeriodic()) {
+                commands.complete(entry.getId());
+            }
+        }
+        return claimed.size();
+    }
+
+    private class RedisScheduledTask implements ScheduledTask {
+        private final String id;
+        private volatile boolean cancelled;
+
+        RedisScheduledTask(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (cancelled) {
+                return false;
+            }
+            cancelled = true;
+            periodicIds.remove(id);
+            return commands.cancel(id);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
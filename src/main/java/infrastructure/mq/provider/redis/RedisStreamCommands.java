@@ -0,0 +1,41 @@
+package infrastructure.mq.provider.redis;
+
+import java.util.List;
+
+/**
+ * 消息队列用到的 Redis Stream 命令，可替换为进程内实现以便测试。
+ */
+public interface RedisStreamCommands {
+    /**
+     * XGROUP CREATE，消费组已存在时忽略
+     */
+    void createGroup(String stream, String group);
+
+    /**
+     * 以管道方式批量 XADD
+     *
+     * @param maxLength 流的近似最大长度
+     */
+    void addAll(String stream, List<byte[]> payloads, long maxLength);
+
+    /**
+     * XREADGROUP 读取尚未投递给本组的消息，不阻塞
+     */
+    List<StreamEntry> readGroup(String stream, String group, String consumer, int count);
+
+    /**
+     * XACK
+     */
+    void ack(String stream, String group, List<String> ids);
+
+    /**
+     * 将其他消费者空闲超过 minIdleMillis 的待确认消息（XPENDING）认领（XCLAIM）给 consumer。
+     * consumer 自己的待确认消息可能仍在处理中，不认领
+     */
+    List<StreamEntry> claimIdle(String stream, String group, String consumer, long minIdleMillis, int count);
+
+    /**
+     * XCLAIM 指定的待确认消息，空闲不足 minIdleMillis（如刚被其他消费者认领）的不认领
+     */
+    List<StreamEntry> claim(String stream, String group, String consumer, long minIdleMillis, List<String> ids);
+}
@@ -0,0 +1,166 @@
+package infrastructure.mq.provider.redis;
+
+import infrastructure.mq.provider.MessageReceiver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * 以消费组方式读取 {@link RedisStreamMessageSender} 写入的消息，交给 {@link MessageReceiver} 处理。
+ * <p>每次 XREADGROUP 最多预取 prefetchCount 条，处理完成的消息攒批 XACK；处理失败或节点宕机未确认的消息，
+ * 空闲超过 claimIdleMillis 后会被存活的消费者 XCLAIM 认领并重新处理。
+ * <p>消费者不按空闲时间认领自己的消息，以免重复处理仍在处理中的消息；自己处理失败的消息记下后同样在
+ * 空闲超过 claimIdleMillis 后认领重新处理，已被其他消费者认领的不再处理。
+ */
+public class RedisStreamMessageConsumer {
+    private static final Logger logger = LoggerFactory.getLogger(RedisStreamMessageConsumer.class);
+
+    public static final String GROUP = "infra:mq";
+    private static final int ACK_BATCH_SIZE = 256;
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    private final RedisStreamCommands commands;
+    private final String stream;
+    private final String consumer;
+    private final int prefetchCount;
+    private final long claimIdleMillis;
+    private final Semaphore prefetchPermits;
+    private final ConcurrentLinkedQueue<String> ackQueue = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Failure> failedQueue = new ConcurrentLinkedQueue<>();
+    private final ExecutorService executorService =
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    private final Thread poller;
+    private volatile boolean running = true;
+
+    public RedisStreamMessageConsumer(RedisStreamCommands commands, String stream, int prefetchCount, long claimIdleMillis) {
+        this.commands = commands;
+        this.stream = stream;
+        this.consumer = ManagementFactory.getRuntimeMXBean().getName();
+        this.prefetchCount = prefetchCount;
+        this.claimIdleMillis = claimIdleMillis;
+        this.prefetchPermits = new Semaphore(prefetchCount);
+
+        commands.createGroup(stream, GROUP);
+        poller = new Thread(this::pollLoop, "mq-redis-stream-consumer");
+        poller.setDaemon(true);
+        poller.start();
+    }
+
+    public void shutdown() {
+        running = false;
+        poller.interrupt();
+        executorService.shutdown();
+        flushAcks();
+    }
+
+    private void pollLoop() {
+        long lastAck = System.currentTimeMillis();
+        long lastClaim = lastAck;
+        while (running) {
+            try {
+                //wait until at least one prefetched message has been handled
+                prefetchPermits.acquire();
+                prefetchPermits.release();
+                List<StreamEntry> entries = new ArrayList<>(
+                        commands.readGroup(stream, GROUP, consumer, Math.max(1, prefetchPermits.availablePermits())));
+
+                long now = System.currentTimeMillis();
+                if (now - lastClaim >= claimIdleMillis / 2) {
+                    entries.addAll(commands.claimIdle(stream, GROUP, consumer, claimIdleMillis, prefetchCount));
+                    entries.addAll(claimFailed(now));
+                    lastClaim = now;
+                }
+                for (StreamEntry entry : entries) {
+                    prefetchPermits.acquire();
+                    executorService.execute(() -> handle(entry));
+                }
+                if (ackQueue.size() >= ACK_BATCH_SIZE || now - lastAck >= POLL_INTERVAL_MILLIS) {
+                    flushAcks();
+                    lastAck = now;
+                }
+                if (entries.isEmpty()) {
+                    Thread.sleep(POLL_INTERVAL_MILLIS);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException ex) {
+                logger.error("redis stream poll error", ex);
+                try {
+                    Thread.sleep(POLL_INTERVAL_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 接收方处理完成后才确认并释放预取名额，监听器在其他线程上处理时同样等到处理完成
+     */
+    private void handle(StreamEntry entry) {
+        CompletableFuture<Boolean> received;
+        try {
+            received = MessageReceiver.getInstance().onMessageReceivedAsync(entry.getPayload());
+        } catch (RuntimeException ex) {
+            logger.error("redis stream message handle error", ex);
+            failedQueue.add(new Failure(entry.getId()));
+            prefetchPermits.release();
+            return;
+        }
+        received.whenComplete((accepted, ex) -> {
+            if (ex != null) {
+                logger.error("redis stream message handle error", ex);
+                failedQueue.add(new Failure(entry.getId()));
+            } else if (accepted) {
+                ackQueue.add(entry.getId());
+            } else {
+                failedQueue.add(new Failure(entry.getId()));
+            }
+            prefetchPermits.release();
+        });
+    }
+
+    /**
+     * 失败超过 claimIdleMillis 的消息必定已空闲足够久，认领不到时已被其他消费者认领或确认
+     */
+    private List<StreamEntry> claimFailed(long now) {
+        List<String> ids = new ArrayList<>();
+        Failure failure;
+        while (ids.size() < prefetchCount && (failure = failedQueue.peek()) != null &&
+                now - failure.failedAt >= claimIdleMillis) {
+            failedQueue.poll();
+            ids.add(failure.id);
+        }
+        return commands.claim(stream, GROUP, consumer, claimIdleMillis, ids);
+    }
+
+    private void flushAcks() {
+        List<String> ids = new ArrayList<>();
+        String id;
+        while ((id = ackQueue.poll()) != null) {
+            ids.add(id);
+        }
+        if (!ids.isEmpty()) {
+            commands.ack(stream, GROUP, ids);
+        }
+    }
+
+    private static class Failure {
+        private final String id;
+        private final long failedAt = System.currentTimeMillis();
+
+        Failure(String id) {
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package infrastructure.mq.provider.redis;
+
+import infrastructure.mq.provider.MessageSender;
+import infrastructure.mq.provider.ScheduledTask;
+import infrastructure.mq.provider.threading.MessageScheduler;
+import infrastructure.mq.provider.threading.TimingWheelMessageScheduler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * 将消息写入 Redis Stream 的 {@link MessageSender}，由各节点的 {@link RedisStreamMessageConsumer} 消费。
+ * <p>发送线程只负责入队，后台线程将队列中的消息合并为一批，以管道方式 XADD 后唤醒这一批的发送方。
+ * 定时与周期消息在本地计时，到期后写入 Stream。
+ * <p>消费组中的消息分散到各节点并行处理，带分区键的消息按普通消息发送，不保证跨节点的顺序。
+ */
+public class RedisStreamMessageSender implements MessageSender {
+    private static final Logger logger = LoggerFactory.getLogger(RedisStreamMessageSender.class);
+
+    public static final String STREAM_KEY = "infra:mq:stream";
+    private static final int MAX_BATCH_SIZE = 512;
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    private final RedisStreamCommands commands;
+    private final String stream;
+    private final long maxLength;
+    private final BlockingQueue<PendingAdd> queue = new LinkedBlockingQueue<>();
+    private final MessageScheduler scheduler = new TimingWheelMessageScheduler(Runnable::run);
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    public RedisStreamMessageSender(RedisStreamCommands commands, String stream, long maxLength) {
+        this.commands = commands;
+        this.stream = stream;
+        this.maxLength = maxLength;
+        this.flusher = new Thread(this::flushLoop, "mq-redis-stream-sender");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @Override
+    public void send(String messageType, byte[] messageBytes) {
+        enqueue(messageBytes).join();
+    }
+
+    /**
+     * 整批入队后再等待，同一批消息通常在一次管道中写入。
+     */
+    @Override
+    public void sendAll(String messageType, List<byte[]> messagesBytes) {
+        List<CompletableFuture<Void>> futures = messagesBytes.stream().map(this::enqueue).collect(Collectors.toList());
+        futures.forEach(CompletableFuture::join);
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(String messageType, byte[] messageBytes) {
+        return enqueue(messageBytes);
+    }
+
+    @Override
+    public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime time) {
+        return scheduler.schedule(() -> enqueue(messageBytes), OffsetDateTime.now().until(time, ChronoUnit.MILLIS));
+    }
+
+    @Override
+    public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime firstTime, Duration duration) {
+        return scheduler.scheduleAtFixedRate(() -> enqueue(messageBytes),
+                OffsetDateTime.now().until(firstTime, ChronoUnit.MILLIS), duration.toMillis());
+    }
+
+    public void shutdown() {
+        running = false;
+        scheduler.shutdown();
+        flusher.interrupt();
+    }
+
+    private CompletableFuture<Void> enqueue(byte[] messageBytes) {
+        PendingAdd pendingAdd = new PendingAdd(messageBytes);
+        queue.add(pendingAdd);
+        return pendingAdd.future;
+    }
+
+    private void flushLoop() {
+        List<PendingAdd> batch = new ArrayList<>();
+        while (running) {
+            try {
+                PendingAdd first = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                commands.addAll(stream, batch.stream().map(p -> p.messageBytes).collect(Collectors.toList()), maxLength);
+                batch.forEach(p -> p.future.complete(null));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException ex) {
+                logger.error("redis stream add error", ex);
+                batch.forEach(p -> p.future.completeExceptionally(ex));
+            } finally {
+                batch.clear();
+            }
+        }
+        PendingAdd pendingAdd;
+        while ((pendingAdd = queue.poll()) != null) {
+            pendingAdd.future.completeExceptionally(new IllegalStateException("Message sender is shut down"));
+        }
+    }
+
+    private static class PendingAdd {
+        private final byte[] messageBytes;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingAdd(byte[] messageBytes) {
+            this.messageBytes = messageBytes;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package infrastructure.mq.provider.redis;
+
+/**
+ * 认领到的一条定时或周期消息。
+ */
+public class ScheduledEntry {
+    private String id;
+    private String messageType;
+    private byte[] payload;
+    private boolean periodic;
+
+    public ScheduledEntry(String id, String messageType, byte[] payload, boolean periodic) {
+        this.id = id;
+        this.messageType = messageType;
+        this.payload = payload;
+        this.periodic = periodic;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getMessageType() {
+        return messageType;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public boolean isPeriodic() {
+        return periodic;
+    }
+}
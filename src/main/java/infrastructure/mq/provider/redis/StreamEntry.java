@@ -0,0 +1,22 @@
+package infrastructure.mq.provider.redis;
+
+/**
+ * Redis Stream 中的一条消息。
+ */
+public class StreamEntry {
+    private String id;
+    private byte[] payload;
+
+    public StreamEntry(String id, byte[] payload) {
+        this.id = id;
+        this.payload = payload;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+}
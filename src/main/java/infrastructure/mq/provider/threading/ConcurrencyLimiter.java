@@ -0,0 +1,141 @@
+package infrastructure.mq.provider.threading;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 按消息类型限制同时处理的消息数。
+ * <p>自适应时以 AIMD 调整上限：处理失败，或处理时间超过长期平均的容忍倍数时，上限乘以退避系数，
+ * 每个上限周期内最多退避一次；处理正常且并发数达到上限的一半以上时，每个上限周期内上限加1。
+ * 处理时间由接收方在监听器处理后报告，见 {@link #onSample(String, long, boolean)}。
+ */
+public class ConcurrencyLimiter {
+    private static final double BACKOFF_RATIO = 0.9;
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final int LONG_WINDOW = 600;
+    private static final int WARM_UP_SAMPLES = 10;
+
+    private final ConcurrentMap<String, Limit> limits = new ConcurrentHashMap<>();
+    private final boolean adaptive;
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+
+    private ConcurrencyLimiter(boolean adaptive, int initialLimit, int minLimit, int maxLimit) {
+        this.adaptive = adaptive;
+        this.initialLimit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * @return 上限固定的限制器
+     */
+    public static ConcurrencyLimiter fixed(int limit) {
+        return new ConcurrencyLimiter(false, limit, limit, limit);
+    }
+
+    /**
+     * @return 按处理时间与失败自适应调整上限的限制器
+     */
+    public static ConcurrencyLimiter aimd(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Illegal concurrency limits: min " + minLimit +
+                    ", initial " + initialLimit + ", max " + maxLimit);
+        }
+        return new ConcurrencyLimiter(true, initialLimit, minLimit, maxLimit);
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * @return 未达到上限时占用一个位置并返回true
+     */
+    boolean tryAcquire(String messageType) {
+        return limitOf(messageType).tryAcquire();
+    }
+
+    void release(String messageType) {
+        limitOf(messageType).release();
+    }
+
+    /**
+     * @return 上限降低后正在处理的消息数超过上限时返回true
+     */
+    boolean isOverLimit(String messageType) {
+        Limit limit = limitOf(messageType);
+        return limit.inFlight > limit.limit;
+    }
+
+    /**
+     * 报告一次监听器处理，上限固定时忽略
+     *
+     * @param latencyNanos 处理时间
+     * @param failed       处理是否失败
+     */
+    public void onSample(String messageType, long latencyNanos, boolean failed) {
+        if (adaptive) {
+            limitOf(messageType).onSample(latencyNanos, failed);
+        }
+    }
+
+    /**
+     * @return 消息类型当前的并发上限
+     */
+    public int getLimit(String messageType) {
+        return limitOf(messageType).limit;
+    }
+
+    /**
+     * @return 消息类型正在处理的消息数
+     */
+    public int getInFlight(String messageType) {
+        return limitOf(messageType).inFlight;
+    }
+
+    private Limit limitOf(String messageType) {
+        Limit limit = limits.get(messageType);
+        return limit != null ? limit : limits.computeIfAbsent(messageType, t -> new Limit());
+    }
+
+    private class Limit {
+        private volatile int limit = initialLimit;
+        private volatile int inFlight;
+        private double estimate = initialLimit;
+        private double longLatency;
+        private long samples;
+        private long samplesSinceBackoff;
+
+        synchronized boolean tryAcquire() {
+            if (inFlight >= limit) {
+                return false;
+            }
+            inFlight++;
+            return true;
+        }
+
+        synchronized void release() {
+            inFlight--;
+        }
+
+        synchronized void onSample(long latencyNanos, boolean failed) {
+            samples++;
+            samplesSinceBackoff++;
+            boolean slow = samples > WARM_UP_SAMPLES && latencyNanos > longLatency * LATENCY_TOLERANCE;
+            //the baseline follows latency slowly, so a sustained rise keeps counting as slow for a while
+            longLatency = longLatency == 0 ? latencyNanos :
+                    longLatency + (latencyNanos - longLatency) / Math.min(samples, LONG_WINDOW);
+            if (failed || slow) {
+                if (samplesSinceBackoff >= limit) {
+                    estimate = Math.max(minLimit, estimate * BACKOFF_RATIO);
+                    samplesSinceBackoff = 0;
+                }
+            } else if (inFlight * 2 >= limit) {
+                estimate = Math.min(maxLimit, estimate + 1.0 / limit);
+            }
+            limit = Math.max(minLimit, (int) estimate);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package infrastructure.mq.provider.threading;
+
+/**
+ * {@link ThreadingMessageSender} 即时消息的处理线程。
+ */
+public enum DispatchMode {
+    /**
+     * 固定大小的线程池，线程数为CPU核数，每条消息一个任务。
+     */
+    PLATFORM,
+    /**
+     * 每种消息类型按需启动虚拟线程处理队列，同时运行的虚拟线程数不超过每种类型的并发上限，
+     * 适合阻塞在数据库或 HTTP 调用上的监听器。运行环境低于 Java 21 时退回 {@link #PLATFORM}。
+     */
+    VIRTUAL,
+}
@@ -0,0 +1,52 @@
+package infrastructure.mq.provider.threading;
+
+import infrastructure.mq.provider.ScheduledTask;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于 {@link ScheduledExecutorService} 的调度器。
+ */
+public class ExecutorMessageScheduler implements MessageScheduler {
+    private ScheduledExecutorService executorService;
+
+    public ExecutorMessageScheduler(ScheduledExecutorService executorService) {
+        this.executorService = executorService;
+    }
+
+    @Override
+    public ScheduledTask schedule(Runnable task, long delayMillis) {
+        return new FutureTask(executorService.schedule(task, delayMillis, TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelayMillis, long periodMillis) {
+        return new FutureTask(executorService.scheduleAtFixedRate(
+                task, initialDelayMillis, periodMillis, TimeUnit.MILLISECONDS));
+    }
+
+    @Override
+    public void shutdown() {
+        executorService.shutdown();
+    }
+
+    private static class FutureTask implements ScheduledTask {
+        private ScheduledFuture<?> future;
+
+        FutureTask(ScheduledFuture<?> future) {
+            this.future = future;
+        }
+
+        @Override
+        public boolean cancel() {
+            return future.cancel(false);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+    }
+}
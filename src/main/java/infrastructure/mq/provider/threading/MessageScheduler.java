@@ -0,0 +1,29 @@
+package infrastructure.mq.provider.threading;
+
+import infrastructure.mq.provider.ScheduledTask;
+
+/**
+ * 定时消息调度器。时间精确到毫秒。
+ */
+public interface MessageScheduler {
+    /**
+     * 延迟执行任务
+     *
+     * @param task        任务
+     * @param delayMillis 延迟毫秒数，小于等于0时立即执行
+     * @return 可取消的任务
+     */
+    ScheduledTask schedule(Runnable task, long delayMillis);
+
+    /**
+     * 以固定频率执行任务
+     *
+     * @param task               任务
+     * @param initialDelayMillis 首次执行的延迟毫秒数
+     * @param periodMillis       两次执行的间隔毫秒数
+     * @return 可取消的任务
+     */
+    ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelayMillis, long periodMillis);
+
+    void shutdown();
+}
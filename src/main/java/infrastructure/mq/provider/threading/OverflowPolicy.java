@@ -0,0 +1,23 @@
+package infrastructure.mq.provider.threading;
+
+/**
+ * 消息队列已满时的处理策略
+ */
+public enum OverflowPolicy {
+    /**
+     * 发送方等待，超时后抛出 {@link infrastructure.errorcode.SystemErrorCode#MQ_QUEUE_FULL}
+     */
+    BLOCK,
+    /**
+     * 立即抛出 {@link infrastructure.errorcode.SystemErrorCode#MQ_QUEUE_FULL}
+     */
+    REJECT,
+    /**
+     * 丢弃队列中最早的消息
+     */
+    DROP_OLDEST,
+    /**
+     * 写入磁盘，队列有空位时再读回
+     */
+    SPILL_TO_DISK,
+}
@@ -0,0 +1,71 @@
+package infrastructure.mq.provider.threading;
+
+/**
+ * 某一消息类型的队列统计
+ */
+public class QueueStatistics {
+    private final String messageType;
+    private final int depth;
+    private final long spilled;
+    private final long rejected;
+    private final long dropped;
+    private final long shed;
+    private final int concurrencyLimit;
+
+    public QueueStatistics(String messageType, int depth, long spilled, long rejected, long dropped, long shed,
+                           int concurrencyLimit) {
+        this.messageType = messageType;
+        this.depth = depth;
+        this.spilled = spilled;
+        this.rejected = rejected;
+        this.dropped = dropped;
+        this.shed = shed;
+        this.concurrencyLimit = concurrencyLimit;
+    }
+
+    public String getMessageType() {
+        return messageType;
+    }
+
+    /**
+     * 内存队列中等待处理的消息数
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * 磁盘中等待读回的消息数
+     */
+    public long getSpilled() {
+        return spilled;
+    }
+
+    /**
+     * 累计拒绝的消息数
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * 累计丢弃的消息数
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * 累计因积压时排队过久而丢弃的消息数
+     */
+    public long getShed() {
+        return shed;
+    }
+
+    /**
+     * 当前同时处理的消息数上限，没有限制时为0
+     */
+    public int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+}
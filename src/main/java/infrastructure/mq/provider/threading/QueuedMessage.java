@@ -0,0 +1,14 @@
+package infrastructure.mq.provider.threading;
+
+/**
+ * 队列中的消息及其入队时间
+ */
+class QueuedMessage {
+    final byte[] bytes;
+    final long enqueuedNanos;
+
+    QueuedMessage(byte[] bytes, long enqueuedNanos) {
+        this.bytes = bytes;
+        this.enqueuedNanos = enqueuedNanos;
+    }
+}
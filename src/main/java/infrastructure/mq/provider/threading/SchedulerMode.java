@@ -0,0 +1,15 @@
+package infrastructure.mq.provider.threading;
+
+/**
+ * {@link ThreadingMessageSender} 定时消息的调度方式。
+ */
+public enum SchedulerMode {
+    /**
+     * 使用 {@link java.util.concurrent.ScheduledThreadPoolExecutor}，投递与定时共用同一线程池。
+     */
+    EXECUTOR,
+    /**
+     * 使用分层时间轮，插入与取消为O(1)，到期任务交给投递线程池执行。
+     */
+    TIMING_WHEEL,
+}
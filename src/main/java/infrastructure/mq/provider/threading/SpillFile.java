@@ -0,0 +1,79 @@
+package infrastructure.mq.provider.threading;
+
+import com.google.common.hash.Hashing;
+import infrastructure.bean.CharsetUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * 内存队列溢出时暂存消息的文件，先进先出。记录格式：4字节长度 + 8字节入队时间 + 消息字节。
+ * <p>只作为内存的延伸，不保证重启后恢复：文件在创建时清空，全部读出后截断。
+ */
+class SpillFile {
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    private long readPosition;
+    private long writePosition;
+    private long count;
+
+    SpillFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 消息类型对应的暂存文件。文件名中替换了不能用于文件名的字符，再附加原始类型的散列，
+     * 使替换后相同的不同类型（如 a/b 与 a_b）不会共用同一个文件
+     */
+    static File fileOf(File directory, String messageType) {
+        String hash = Hashing.murmur3_32().hashString(messageType, CharsetUtils.UTF_8).toString();
+        return new File(directory, messageType.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + hash + ".spill");
+    }
+
+    synchronized void append(QueuedMessage message) throws IOException {
+        if (randomAccessFile == null) {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            randomAccessFile.setLength(0);
+        }
+        randomAccessFile.seek(writePosition);
+        randomAccessFile.writeInt(message.bytes.length);
+        randomAccessFile.writeLong(message.enqueuedNanos);
+        randomAccessFile.write(message.bytes);
+        writePosition = randomAccessFile.getFilePointer();
+        count++;
+    }
+
+    /**
+     * @return 没有暂存的消息时返回null
+     */
+    synchronized QueuedMessage poll() throws IOException {
+        if (count == 0) {
+            return null;
+        }
+        randomAccessFile.seek(readPosition);
+        byte[] bytes = new byte[randomAccessFile.readInt()];
+        long enqueuedNanos = randomAccessFile.readLong();
+        randomAccessFile.readFully(bytes);
+        readPosition = randomAccessFile.getFilePointer();
+        if (--count == 0) {
+            readPosition = 0;
+            writePosition = 0;
+            randomAccessFile.setLength(0);
+        }
+        return new QueuedMessage(bytes, enqueuedNanos);
+    }
+
+    synchronized long size() {
+        return count;
+    }
+
+    synchronized void close() throws IOException {
+        if (randomAccessFile != null) {
+            randomAccessFile.close();
+            randomAccessFile = null;
+        }
+        count = 0;
+        file.delete();
+    }
+}
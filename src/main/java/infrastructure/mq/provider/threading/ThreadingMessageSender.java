@@ -1,40 +1,404 @@
 package infrastructure.mq.provider.threading;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import infrastructure.errorcode.SystemErrorCode;
 import infrastructure.mq.provider.MessageReceiver;
 import infrastructure.mq.provider.MessageSender;
+import infrastructure.mq.provider.ScheduledTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 /**
+ * 即时消息按类型进入有界队列，每条入队的消息对应线程池中的一个出队任务。
+ * 队列已满时按 {@link OverflowPolicy} 处理。
+ * <p>开启积压丢弃时，队列深度超过阈值后，排队超过最长等待时间的消息在出队时直接丢弃，使积压尽快恢复。
+ * <p>{@link DispatchMode#VIRTUAL} 或设置了自适应的 {@link ConcurrencyLimiter} 时，每种消息类型由不超过并发上限的
+ * 工作任务出队：虚拟线程循环出队，阻塞的监听器只占用虚拟线程；线程池中的工作任务每处理一条消息重新提交一次，
+ * 不独占线程。接收方交给其他线程处理的消息（如隔离舱中的监听器）处理完成后才归还并发位置。
+ * 分区消息与定时消息不受影响。
+ *
  * @author joeyh 2019/1/22 15:25
  */
 public class ThreadingMessageSender implements MessageSender {
-    private ScheduledExecutorService executorService =
-            Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+    private static final Logger logger = LoggerFactory.getLogger(ThreadingMessageSender.class);
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    public static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 1000;
+    public static final int DEFAULT_MAX_CONCURRENCY_PER_TYPE = 256;
+    private static final CompletableFuture<Void> HANDLED = CompletableFuture.completedFuture(null);
+
+    private ExecutorService executorService;
+    private ExecutorService timerExecutorService;
+    private MessageScheduler scheduler;
+    private final ConcurrentMap<String, TypeQueue> queues = new ConcurrentHashMap<>();
+    private final int queueCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutMillis;
+    private final File spillDirectory;
+    private final int shedQueueDepth;
+    private final long shedMaxAgeNanos;
+    private final ThreadFactory virtualThreadFactory;
+    private final ConcurrencyLimiter concurrencyLimiter;
+
+    public ThreadingMessageSender() {
+        this(SchedulerMode.EXECUTOR);
+    }
+
+    public ThreadingMessageSender(SchedulerMode schedulerMode) {
+        this(schedulerMode, DEFAULT_QUEUE_CAPACITY, OverflowPolicy.BLOCK, DEFAULT_BLOCK_TIMEOUT_MILLIS, null);
+    }
+
+    /**
+     * @param queueCapacity      每种消息类型的队列容量
+     * @param overflowPolicy     队列已满时的处理策略
+     * @param blockTimeoutMillis {@link OverflowPolicy#BLOCK} 时发送方最多等待的毫秒数
+     * @param spillDirectory     {@link OverflowPolicy#SPILL_TO_DISK} 时暂存消息的目录
+     */
+    public ThreadingMessageSender(SchedulerMode schedulerMode, int queueCapacity, OverflowPolicy overflowPolicy,
+                                  long blockTimeoutMillis, File spillDirectory) {
+        this(schedulerMode, queueCapacity, overflowPolicy, blockTimeoutMillis, spillDirectory, 0, 0);
+    }
+
+    /**
+     * @param shedQueueDepth   队列深度（含暂存到磁盘的消息）超过此值时丢弃排队过久的消息，小于等于0时不丢弃
+     * @param shedMaxAgeMillis 积压时消息的最长排队时间
+     */
+    public ThreadingMessageSender(SchedulerMode schedulerMode, int queueCapacity, OverflowPolicy overflowPolicy,
+                                  long blockTimeoutMillis, File spillDirectory,
+                                  int shedQueueDepth, long shedMaxAgeMillis) {
+        this(schedulerMode, queueCapacity, overflowPolicy, blockTimeoutMillis, spillDirectory,
+                shedQueueDepth, shedMaxAgeMillis, DispatchMode.PLATFORM, DEFAULT_MAX_CONCURRENCY_PER_TYPE);
+    }
+
+    /**
+     * @param dispatchMode          即时消息的处理线程
+     * @param maxConcurrencyPerType {@link DispatchMode#VIRTUAL} 时每种消息类型同时运行的虚拟线程数上限
+     */
+    public ThreadingMessageSender(SchedulerMode schedulerMode, int queueCapacity, OverflowPolicy overflowPolicy,
+                                  long blockTimeoutMillis, File spillDirectory,
+                                  int shedQueueDepth, long shedMaxAgeMillis,
+                                  DispatchMode dispatchMode, int maxConcurrencyPerType) {
+        this(schedulerMode, queueCapacity, overflowPolicy, blockTimeoutMillis, spillDirectory,
+                shedQueueDepth, shedMaxAgeMillis, dispatchMode, ConcurrencyLimiter.fixed(maxConcurrencyPerType));
+    }
+
+    /**
+     * @param concurrencyLimiter 每种消息类型同时处理的消息数上限，{@link DispatchMode#PLATFORM} 时只在自适应时生效
+     */
+    public ThreadingMessageSender(SchedulerMode schedulerMode, int queueCapacity, OverflowPolicy overflowPolicy,
+                                  long blockTimeoutMillis, File spillDirectory,
+                                  int shedQueueDepth, long shedMaxAgeMillis,
+                                  DispatchMode dispatchMode, ConcurrencyLimiter concurrencyLimiter) {
+        if (overflowPolicy == OverflowPolicy.SPILL_TO_DISK) {
+            if (spillDirectory == null || !(spillDirectory.isDirectory() || spillDirectory.mkdirs())) {
+                throw new IllegalArgumentException("Spill directory not available: " + spillDirectory);
+            }
+        }
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.spillDirectory = spillDirectory;
+        this.shedQueueDepth = shedQueueDepth;
+        this.shedMaxAgeNanos = TimeUnit.MILLISECONDS.toNanos(shedMaxAgeMillis);
+        if (dispatchMode == DispatchMode.VIRTUAL && !VirtualThreads.isSupported()) {
+            logger.warn("virtual threads not supported by java " + System.getProperty("java.version") +
+                    ", dispatch on platform threads");
+        }
+        this.virtualThreadFactory = dispatchMode == DispatchMode.VIRTUAL && VirtualThreads.isSupported() ?
+                VirtualThreads.factory("mq-virtual-") : null;
+        this.concurrencyLimiter = virtualThreadFactory != null || concurrencyLimiter.isAdaptive() ?
+                concurrencyLimiter : null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (schedulerMode == SchedulerMode.TIMING_WHEEL) {
+            executorService = Executors.newFixedThreadPool(threads);
+            //due messages are forwarded on their own threads, a backlog of immediate messages cannot delay them
+            timerExecutorService = Executors.newCachedThreadPool(
+                    new ThreadFactoryBuilder().setNameFormat("mq-timer-%d").setDaemon(true).build());
+            scheduler = new TimingWheelMessageScheduler(timerExecutorService);
+        } else {
+            ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(threads);
+            executorService = scheduledExecutorService;
+            scheduler = new ExecutorMessageScheduler(scheduledExecutorService);
+        }
+    }
 
     @Override
     public void send(String messageType, byte[] messageBytes) {
-        executorService.submit(() -> forward(messageBytes));
+        enqueue(messageType, messageBytes);
+    }
+
+    /**
+     * 逐条入队，每条消息都受队列容量限制。
+     */
+    @Override
+    public void sendAll(String messageType, List<byte[]> messagesBytes) {
+        messagesBytes.forEach(bytes -> enqueue(messageType, bytes));
+    }
+
+    /**
+     * 在发送线程上直接交给接收方，由接收方按分区键排队，保证同一分区键的消息不会在线程池中乱序。
+     * 分区队列同样有界，已满时发送方等待，超时后抛出 {@link SystemErrorCode#MQ_QUEUE_FULL} 并计入该类型的拒绝数。
+     */
+    @Override
+    public void send(String messageType, String partitionKey, byte[] messageBytes) {
+        try {
+            forward(messageBytes);
+        } catch (RuntimeException ex) {
+            queues.computeIfAbsent(messageType, TypeQueue::new).rejected.incrementAndGet();
+            throw ex;
+        }
     }
 
     @Override
-    public void send(String messageType, byte[] messageBytes, OffsetDateTime time) {
-        executorService.schedule(() -> forward(messageBytes),
-                OffsetDateTime.now().until(time, ChronoUnit.SECONDS), TimeUnit.SECONDS);
+    public boolean isInProcess() {
+        return true;
     }
 
     @Override
-    public void send(String messageType, byte[] messageBytes, OffsetDateTime firstTime, Duration duration) {
-        executorService.scheduleAtFixedRate(() -> forward(messageBytes),
-                OffsetDateTime.now().until(firstTime, ChronoUnit.SECONDS), duration.getSeconds(), TimeUnit.SECONDS);
+    public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime time) {
+        return scheduler.schedule(() -> forward(messageBytes), millisUntil(time));
     }
 
-    private void forward(byte[] messageBytes) {
-        MessageReceiver.getInstance().onMessageReceived(messageBytes);
+    @Override
+    public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime firstTime, Duration duration) {
+        return scheduler.scheduleAtFixedRate(() -> forward(messageBytes), millisUntil(firstTime), duration.toMillis());
+    }
+
+    /**
+     * @return 各消息类型的队列统计
+     */
+    public List<QueueStatistics> getQueueStatistics() {
+        return queues.values().stream().map(TypeQueue::statistics).collect(Collectors.toList());
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+        executorService.shutdown();
+        if (timerExecutorService != null) {
+            timerExecutorService.shutdown();
+        }
+        for (TypeQueue queue : queues.values()) {
+            if (queue.spillFile != null) {
+                try {
+                    queue.spillFile.close();
+                } catch (IOException ex) {
+                    logger.warn("close spill file error", ex);
+                }
+            }
+        }
+    }
+
+    private void enqueue(String messageType, byte[] messageBytes) {
+        TypeQueue queue = queues.computeIfAbsent(messageType, TypeQueue::new);
+        QueuedMessage message = new QueuedMessage(messageBytes, System.nanoTime());
+        switch (overflowPolicy) {
+            case BLOCK:
+                boolean offered;
+                try {
+                    offered = queue.messages.offer(message, blockTimeoutMillis, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw SystemErrorCode.MQ_QUEUE_FULL.e(ex);
+                }
+                if (!offered) {
+                    queue.rejected.incrementAndGet();
+                    throw SystemErrorCode.MQ_QUEUE_FULL.e();
+                }
+                break;
+            case REJECT:
+                if (!queue.messages.offer(message)) {
+                    queue.rejected.incrementAndGet();
+                    throw SystemErrorCode.MQ_QUEUE_FULL.e();
+                }
+                break;
+            case DROP_OLDEST:
+                synchronized (queue) {
+                    if (!queue.messages.offer(message)) {
+                        if (queue.messages.poll() != null) {
+                            //the dropped message's pending task takes the new one
+                            queue.dropped.incrementAndGet();
+                            queue.messages.add(message);
+                            return;
+                        }
+                        queue.messages.add(message);
+                    }
+                }
+                break;
+            case SPILL_TO_DISK:
+                synchronized (queue) {
+                    if (queue.spillFile.size() > 0 || !queue.messages.offer(message)) {
+                        try {
+                            queue.spillFile.append(message);
+                        } catch (IOException ex) {
+                            queue.rejected.incrementAndGet();
+                            throw SystemErrorCode.MQ_QUEUE_FULL.e(ex);
+                        }
+                        return;
+                    }
+                }
+                break;
+        }
+        dispatch(queue);
+    }
+
+    /**
+     * 工作任务数已达上限时不再启动，运行中的工作任务会在队列清空前处理到新消息
+     */
+    private void dispatch(TypeQueue queue) {
+        if (concurrencyLimiter == null) {
+            executorService.execute(() -> drain(queue));
+        } else if (concurrencyLimiter.tryAcquire(queue.messageType)) {
+            startWorker(queue);
+        }
+    }
+
+    private void startWorker(TypeQueue queue) {
+        if (virtualThreadFactory != null) {
+            virtualThreadFactory.newThread(() -> drainLoop(queue)).start();
+        } else {
+            executorService.execute(() -> drainOne(queue));
+        }
+    }
+
+    /**
+     * 虚拟线程等待每条消息处理完成后再取下一条，工作线程数即处理中的消息数
+     */
+    private void drainLoop(TypeQueue queue) {
+        do {
+            while (await(drain(queue)) && !concurrencyLimiter.isOverLimit(queue.messageType)) {
+                //keep draining until the queue is empty or the limit shrinks below the running workers
+            }
+            concurrencyLimiter.release(queue.messageType);
+            //a message enqueued after the last poll may have seen the limit reached and started no worker
+        } while (!queue.messages.isEmpty() && concurrencyLimiter.tryAcquire(queue.messageType));
+    }
+
+    /**
+     * 线程池中的工作任务处理一条消息后重新提交，其他消息类型的任务可以在两次之间执行。
+     * 消息在其他线程上处理时不占用线程池，处理完成后才归还位置。
+     */
+    private void drainOne(TypeQueue queue) {
+        CompletableFuture<?> handled = drain(queue);
+        (handled != null ? handled : HANDLED).whenComplete((result, ex) -> {
+            concurrencyLimiter.release(queue.messageType);
+            if (!queue.messages.isEmpty() && concurrencyLimiter.tryAcquire(queue.messageType)) {
+                executorService.execute(() -> drainOne(queue));
+            }
+        });
+    }
+
+    /**
+     * @return 没有取出消息时返回false，否则等待消息处理完成后返回true
+     */
+    private static boolean await(CompletableFuture<?> handled) {
+        if (handled == null) {
+            return false;
+        }
+        try {
+            handled.join();
+        } catch (CompletionException | CancellationException ignored) {
+            //already logged by the receiver
+        }
+        return true;
+    }
+
+    /**
+     * @return 没有取出消息时返回null，否则在消息处理完成（或被丢弃）后完成
+     */
+    private CompletableFuture<?> drain(TypeQueue queue) {
+        QueuedMessage message = queue.messages.poll();
+        CompletableFuture<?> handled = null;
+        if (message != null) {
+            handled = HANDLED;
+            if (isStale(queue, message)) {
+                queue.shed.incrementAndGet();
+            } else {
+                try {
+                    handled = forward(message.bytes);
+                } catch (RuntimeException ex) {
+                    logger.error("message dispatch error, type: " + queue.messageType, ex);
+                }
+            }
+        }
+        if (queue.spillFile != null) {
+            refill(queue);
+        }
+        return handled;
+    }
+
+    private void refill(TypeQueue queue) {
+        synchronized (queue) {
+            try {
+                while (queue.spillFile.size() > 0 && queue.messages.remainingCapacity() > 0) {
+                    queue.messages.add(queue.spillFile.poll());
+                    dispatch(queue);
+                }
+            } catch (IOException ex) {
+                logger.error("read spill file error, type: " + queue.messageType, ex);
+            }
+        }
+    }
+
+    private boolean isStale(TypeQueue queue, QueuedMessage message) {
+        if (shedQueueDepth <= 0 || System.nanoTime() - message.enqueuedNanos <= shedMaxAgeNanos) {
+            return false;
+        }
+        long depth = queue.messages.size() + (queue.spillFile == null ? 0 : queue.spillFile.size());
+        return depth >= shedQueueDepth;
+    }
+
+    private static long millisUntil(OffsetDateTime time) {
+        return OffsetDateTime.now().until(time, ChronoUnit.MILLIS);
+    }
+
+    /**
+     * 消息不持久化，发送方不等待在其他线程上处理的监听器
+     *
+     * @return 监听器处理完成后完成
+     */
+    private CompletableFuture<Boolean> forward(byte[] messageBytes) {
+        return MessageReceiver.getInstance().onMessageReceivedAsync(messageBytes);
+    }
+
+    private class TypeQueue {
+        private final String messageType;
+        private final BlockingQueue<QueuedMessage> messages = new LinkedBlockingQueue<>(queueCapacity);
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong shed = new AtomicLong();
+        private final SpillFile spillFile;
+
+        TypeQueue(String messageType) {
+            this.messageType = messageType;
+            this.spillFile = overflowPolicy == OverflowPolicy.SPILL_TO_DISK ?
+                    new SpillFile(SpillFile.fileOf(spillDirectory, messageType)) : null;
+        }
+
+        QueueStatistics statistics() {
+            return new QueueStatistics(messageType, messages.size(), spillFile == null ? 0 : spillFile.size(),
+                    rejected.get(), dropped.get(), shed.get(),
+                    concurrencyLimiter == null ? 0 : concurrencyLimiter.getLimit(messageType));
+        }
     }
 }
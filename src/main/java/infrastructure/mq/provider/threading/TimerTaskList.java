@@ -0,0 +1,107 @@
+package infrastructure.mq.provider.threading;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 时间轮的一个槽，双向链表保存同一时间段到期的任务，插入与删除均为O(1)。
+ */
+class TimerTaskList implements Delayed {
+    private final Entry root = new Entry(null, -1);
+    private final AtomicLong expiration = new AtomicLong(-1);
+
+    TimerTaskList() {
+        root.next = root;
+        root.prev = root;
+    }
+
+    /**
+     * @return 槽的到期时间有变化时返回true，此时需要重新放入延迟队列
+     */
+    boolean setExpiration(long expirationMillis) {
+        return expiration.getAndSet(expirationMillis) != expirationMillis;
+    }
+
+    long getExpiration() {
+        return expiration.get();
+    }
+
+    void add(Entry entry) {
+        boolean done = false;
+        while (!done) {
+            //a task entry may be moved between lists while the wheel advances
+            entry.remove();
+            synchronized (this) {
+                synchronized (entry) {
+                    if (entry.list == null) {
+                        Entry tail = root.prev;
+                        entry.next = root;
+                        entry.prev = tail;
+                        entry.list = this;
+                        tail.next = entry;
+                        root.prev = entry;
+                        done = true;
+                    }
+                }
+            }
+        }
+    }
+
+    synchronized void remove(Entry entry) {
+        synchronized (entry) {
+            if (entry.list == this) {
+                entry.next.prev = entry.prev;
+                entry.prev.next = entry.next;
+                entry.next = null;
+                entry.prev = null;
+                entry.list = null;
+            }
+        }
+    }
+
+    /**
+     * 取出全部任务并交给 consumer 重新插入或执行。
+     */
+    synchronized void flush(Consumer<Entry> consumer) {
+        Entry head = root.next;
+        while (head != root) {
+            remove(head);
+            consumer.accept(head);
+            head = root.next;
+        }
+        expiration.set(-1);
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(Math.max(getExpiration() - TimingWheelMessageScheduler.now(), 0), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+        return Long.compare(getExpiration(), ((TimerTaskList) o).getExpiration());
+    }
+
+    static class Entry {
+        final TimingWheelMessageScheduler.WheelTask task;
+        final long expirationMillis;
+        volatile TimerTaskList list;
+        Entry next;
+        Entry prev;
+
+        Entry(TimingWheelMessageScheduler.WheelTask task, long expirationMillis) {
+            this.task = task;
+            this.expirationMillis = expirationMillis;
+        }
+
+        void remove() {
+            TimerTaskList current = list;
+            while (current != null) {
+                current.remove(this);
+                current = list;
+            }
+        }
+    }
+}
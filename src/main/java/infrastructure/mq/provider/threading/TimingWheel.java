@@ -0,0 +1,69 @@
+package infrastructure.mq.provider.threading;
+
+import java.util.concurrent.DelayQueue;
+
+/**
+ * 分层时间轮中的一层。超出本层跨度的任务放入按需创建的上层时间轮，
+ * 上层的槽到期后任务会被重新插入下层，直至落入最底层的槽中到期。
+ */
+class TimingWheel {
+    private final long tickMillis;
+    private final int wheelSize;
+    private final long interval;
+    private final TimerTaskList[] buckets;
+    private final DelayQueue<TimerTaskList> queue;
+    private long currentTime;
+    private volatile TimingWheel overflowWheel;
+
+    TimingWheel(long tickMillis, int wheelSize, long startMillis, DelayQueue<TimerTaskList> queue) {
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        this.interval = tickMillis * wheelSize;
+        this.queue = queue;
+        this.currentTime = startMillis - (startMillis % tickMillis);
+        this.buckets = new TimerTaskList[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new TimerTaskList();
+        }
+    }
+
+    /**
+     * @return 任务已到期或已取消时返回false
+     */
+    boolean add(TimerTaskList.Entry entry) {
+        long expiration = entry.expirationMillis;
+        if (entry.task.isCancelled() || expiration < currentTime + tickMillis) {
+            return false;
+        }
+        if (expiration < currentTime + interval) {
+            long virtualId = expiration / tickMillis;
+            TimerTaskList bucket = buckets[(int) (virtualId % wheelSize)];
+            bucket.add(entry);
+            if (bucket.setExpiration(virtualId * tickMillis)) {
+                queue.offer(bucket);
+            }
+            return true;
+        }
+        return getOverflowWheel().add(entry);
+    }
+
+    void advanceClock(long timeMillis) {
+        if (timeMillis >= currentTime + tickMillis) {
+            currentTime = timeMillis - (timeMillis % tickMillis);
+            if (overflowWheel != null) {
+                overflowWheel.advanceClock(currentTime);
+            }
+        }
+    }
+
+    private TimingWheel getOverflowWheel() {
+        if (overflowWheel == null) {
+            synchronized (this) {
+                if (overflowWheel == null) {
+                    overflowWheel = new TimingWheel(interval, wheelSize, currentTime, queue);
+                }
+            }
+        }
+        return overflowWheel;
+    }
+}
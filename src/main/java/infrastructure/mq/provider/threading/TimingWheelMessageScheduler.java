@@ -0,0 +1,163 @@
+package infrastructure.mq.provider.threading;
+
+import infrastructure.mq.provider.ScheduledTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 基于分层时间轮的调度器。
+ * <p>插入与取消为O(1)。单个后台线程只负责推进时间轮，到期任务交给 executor 执行，
+ * 因此计时不会占用投递线程，投递也不会阻塞计时。
+ */
+public class TimingWheelMessageScheduler implements MessageScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(TimingWheelMessageScheduler.class);
+
+    private static final long TICK_MILLIS = 1;
+    private static final int WHEEL_SIZE = 512;
+    private static final long ADVANCE_TIMEOUT_MILLIS = 200;
+
+    private final Executor executor;
+    private final DelayQueue<TimerTaskList> queue = new DelayQueue<>();
+    private final TimingWheel timingWheel;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Thread worker;
+    private volatile boolean running = true;
+
+    public TimingWheelMessageScheduler(Executor executor) {
+        this.executor = executor;
+        this.timingWheel = new TimingWheel(TICK_MILLIS, WHEEL_SIZE, now(), queue);
+        this.worker = new Thread(this::advance, "mq-timing-wheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    @Override
+    public ScheduledTask schedule(Runnable task, long delayMillis) {
+        WheelTask wheelTask = new WheelTask(task, 0);
+        wheelTask.submit(now() + Math.max(delayMillis, 0));
+        return wheelTask;
+    }
+
+    @Override
+    public ScheduledTask scheduleAtFixedRate(Runnable task, long initialDelayMillis, long periodMillis) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("period must be positive: " + periodMillis);
+        }
+        WheelTask wheelTask = new WheelTask(task, periodMillis);
+        wheelTask.submit(now() + Math.max(initialDelayMillis, 0));
+        return wheelTask;
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void add(TimerTaskList.Entry entry) {
+        lock.readLock().lock();
+        try {
+            addOrFire(entry);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void addOrFire(TimerTaskList.Entry entry) {
+        if (!timingWheel.add(entry) && !entry.task.isCancelled()) {
+            executor.execute(entry.task);
+        }
+    }
+
+    private void advance() {
+        while (running) {
+            try {
+                TimerTaskList bucket = queue.poll(ADVANCE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (bucket == null) {
+                    continue;
+                }
+                lock.writeLock().lock();
+                try {
+                    while (bucket != null) {
+                        timingWheel.advanceClock(bucket.getExpiration());
+                        bucket.flush(this::addOrFire);
+                        bucket = queue.poll();
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException ex) {
+                logger.error("timing wheel advance error", ex);
+            }
+        }
+    }
+
+    class WheelTask implements ScheduledTask, Runnable {
+        private final Runnable task;
+        private final long periodMillis;
+        private volatile TimerTaskList.Entry entry;
+        private volatile boolean cancelled;
+
+        WheelTask(Runnable task, long periodMillis) {
+            this.task = task;
+            this.periodMillis = periodMillis;
+        }
+
+        void submit(long expirationMillis) {
+            entry = new TimerTaskList.Entry(this, expirationMillis);
+            add(entry);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            //like ScheduledThreadPoolExecutor, the next run is scheduled only after this one returns,
+            //so a run longer than the period delays the next one instead of overlapping it
+            try {
+                task.run();
+            } finally {
+                if (periodMillis > 0) {
+                    resubmit(entry.expirationMillis + periodMillis);
+                }
+            }
+        }
+
+        private synchronized void resubmit(long expirationMillis) {
+            if (!cancelled) {
+                submit(expirationMillis);
+            }
+        }
+
+        @Override
+        public synchronized boolean cancel() {
+            if (cancelled) {
+                return false;
+            }
+            cancelled = true;
+            TimerTaskList.Entry current = entry;
+            if (current != null) {
+                current.remove();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
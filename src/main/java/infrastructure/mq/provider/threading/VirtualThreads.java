@@ -0,0 +1,61 @@
+package infrastructure.mq.provider.threading;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 虚拟线程。运行在 Java 21 及以上版本时通过 {@link MethodHandle} 调用 Thread.ofVirtual()，
+ * 不需要以 Java 21 编译；更低的版本不支持虚拟线程。
+ */
+final class VirtualThreads {
+    private static final MethodHandle OF_VIRTUAL;
+    private static final MethodHandle NAME;
+    private static final MethodHandle FACTORY;
+
+    static {
+        MethodHandle ofVirtual = null;
+        MethodHandle name = null;
+        MethodHandle factory = null;
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(builderClass));
+            name = lookup.findVirtual(builderClass, "name",
+                    MethodType.methodType(builderClass, String.class, long.class));
+            factory = lookup.findVirtual(builderClass, "factory", MethodType.methodType(ThreadFactory.class));
+        } catch (ReflectiveOperationException ex) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+    }
+
+    private VirtualThreads() {
+    }
+
+    static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * 不支持虚拟线程时抛出 {@link UnsupportedOperationException}
+     *
+     * @param prefix 线程名前缀，后接从0开始的序号
+     */
+    static ThreadFactory factory(String prefix) {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21");
+        }
+        try {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(), prefix, 0L);
+            return (ThreadFactory) FACTORY.invoke(builder);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
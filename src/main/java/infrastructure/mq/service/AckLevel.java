@@ -0,0 +1,19 @@
+package infrastructure.mq.service;
+
+/**
+ * 异步发送的确认级别，决定 {@link MessageQueueService#sendAsync} 返回的结果何时完成。
+ */
+public enum AckLevel {
+    /**
+     * 消息已交给发送方
+     */
+    ENQUEUED,
+    /**
+     * 消息已持久化。不落盘的发送方在入队后即完成
+     */
+    PERSISTED,
+    /**
+     * 监听器已处理完成。重新投递后仍失败、进入死信队列时异常完成
+     */
+    HANDLED,
+}
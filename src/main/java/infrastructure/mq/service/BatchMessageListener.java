@@ -0,0 +1,43 @@
+package infrastructure.mq.service;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 批量处理消息的监听器。消息累积到 {@link #maxBatchSize()} 条，或距第一条消息到达超过
+ * {@link #maxBatchDelayMillis()} 毫秒时，作为一批交给 {@link #handleBatch(List)}。
+ */
+public interface BatchMessageListener<T> extends MessageListener<T> {
+
+    /**
+     * 每批最多消息数
+     */
+    default int maxBatchSize() {
+        return 100;
+    }
+
+    /**
+     * 第一条消息到达后最多等待的毫秒数
+     */
+    default long maxBatchDelayMillis() {
+        return 100;
+    }
+
+    /**
+     * 批量处理消息
+     * <p>抛出异常时整批消息重新投递；部分失败时在返回结果中标记失败的消息。
+     *
+     * @param messageBodies 消息体
+     * @return 处理结果，返回null时整批成功
+     */
+    BatchResult handleBatch(List<T> messageBodies);
+
+    @Override
+    default void handle(T messageBody) {
+        BatchResult result = handleBatch(Collections.singletonList(messageBody));
+        Exception cause = result == null ? null : result.getFailures().get(0);
+        if (cause != null) {
+            throw new RuntimeException(cause);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package infrastructure.mq.service;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 批量处理结果，记录处理失败的消息。失败的消息按重新投递策略重新投递。
+ */
+public class BatchResult {
+    private final Map<Integer, Exception> failures = new HashMap<>();
+
+    public static BatchResult success() {
+        return new BatchResult();
+    }
+
+    /**
+     * 标记一条消息处理失败
+     *
+     * @param index 消息在批次中的下标，超出批次范围的下标被忽略
+     * @param cause 失败原因，为null时以通用异常代替
+     * @return this
+     */
+    public BatchResult fail(int index, Exception cause) {
+        failures.put(index, cause != null ? cause : new RuntimeException("message " + index + " of batch failed"));
+        return this;
+    }
+
+    public Map<Integer, Exception> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+}
@@ -0,0 +1,36 @@
+package infrastructure.mq.service;
+
+/**
+ * 隔离舱策略：限制某一消息类型同时处理的消息数与等待处理的消息数，避免慢监听器占满全部工作线程。
+ */
+public class BulkheadPolicy {
+    private int maxConcurrency;
+    private int queueCapacity;
+    private MessagePriority priority;
+
+    /**
+     * @param maxConcurrency 最大并发处理数
+     * @param queueCapacity  等待队列容量，队列已满时消息按重新投递策略延后投递
+     * @param priority       优先级
+     */
+    public BulkheadPolicy(int maxConcurrency, int queueCapacity, MessagePriority priority) {
+        if (maxConcurrency < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("maxConcurrency and queueCapacity must be positive");
+        }
+        this.maxConcurrency = maxConcurrency;
+        this.queueCapacity = queueCapacity;
+        this.priority = priority;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public MessagePriority getPriority() {
+        return priority;
+    }
+}
@@ -0,0 +1,54 @@
+package infrastructure.mq.service;
+
+import java.time.Duration;
+import java.util.function.Function;
+
+/**
+ * 合并策略：等待处理的消息中合并键相同的只保留最新的一条，被合并的消息视为已处理。
+ * <p>设置静默期时，同一合并键的消息在静默期内没有新消息到达后才处理，连续到达的一批消息只处理一次。
+ */
+public class CoalescingPolicy<T> {
+    private Function<? super T, String> keyFunction;
+    private Duration quietPeriod;
+    private Duration maxDelay;
+
+    /**
+     * @param keyFunction 从消息体取合并键，返回null的消息不合并
+     * @param quietPeriod 静默期，为0时只合并尚未开始处理的消息
+     * @param maxDelay    从第一条消息到达起最多等待的时间，避免消息持续到达时一直不处理
+     */
+    public CoalescingPolicy(Function<? super T, String> keyFunction, Duration quietPeriod, Duration maxDelay) {
+        if (quietPeriod.isNegative() || maxDelay.compareTo(quietPeriod) < 0) {
+            throw new IllegalArgumentException("quietPeriod must not be negative or exceed maxDelay");
+        }
+        this.keyFunction = keyFunction;
+        this.quietPeriod = quietPeriod;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * 只合并尚未开始处理的消息
+     */
+    public static <T> CoalescingPolicy<T> latest(Function<? super T, String> keyFunction) {
+        return new CoalescingPolicy<>(keyFunction, Duration.ZERO, Duration.ZERO);
+    }
+
+    /**
+     * 静默期后处理，最多等待10个静默期
+     */
+    public static <T> CoalescingPolicy<T> debounce(Function<? super T, String> keyFunction, Duration quietPeriod) {
+        return new CoalescingPolicy<>(keyFunction, quietPeriod, quietPeriod.multipliedBy(10));
+    }
+
+    public String keyOf(T messageBody) {
+        return keyFunction.apply(messageBody);
+    }
+
+    public Duration getQuietPeriod() {
+        return quietPeriod;
+    }
+
+    public Duration getMaxDelay() {
+        return maxDelay;
+    }
+}
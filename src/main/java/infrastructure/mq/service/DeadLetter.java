@@ -0,0 +1,48 @@
+package infrastructure.mq.service;
+
+import java.time.OffsetDateTime;
+
+/**
+ * 超过最大投递次数仍处理失败的消息。
+ */
+public class DeadLetter {
+    private String type;
+    private String body;
+    private int attempts;
+    private String error;
+    private OffsetDateTime time;
+
+    public DeadLetter(String type, String body, int attempts, String error, OffsetDateTime time) {
+        this.type = type;
+        this.body = body;
+        this.attempts = attempts;
+        this.error = error;
+        this.time = time;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * JSON格式的消息体
+     */
+    public String getBody() {
+        return body;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * 最后一次处理失败的异常信息
+     */
+    public String getError() {
+        return error;
+    }
+
+    public OffsetDateTime getTime() {
+        return time;
+    }
+}
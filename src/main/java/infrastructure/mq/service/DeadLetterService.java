@@ -0,0 +1,32 @@
+package infrastructure.mq.service;
+
+import java.util.List;
+
+/**
+ * 死信队列
+ */
+public interface DeadLetterService {
+
+    /**
+     * 获取指定类型的死信
+     *
+     * @param type 消息类型
+     * @return 死信，按进入死信队列的时间排序
+     */
+    List<DeadLetter> getDeadLetters(String type);
+
+    /**
+     * 将指定类型的死信重新发送，投递次数从头计算
+     *
+     * @param type 消息类型
+     * @return 重新发送的消息数
+     */
+    int requeue(String type);
+
+    /**
+     * 将全部死信重新发送
+     *
+     * @return 重新发送的消息数
+     */
+    int requeueAll();
+}
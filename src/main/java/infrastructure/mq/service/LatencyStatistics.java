@@ -0,0 +1,75 @@
+package infrastructure.mq.service;
+
+/**
+ * 某一消息类型在某一处理阶段的延迟分布，单位为微秒
+ */
+public class LatencyStatistics {
+    private final String messageType;
+    private final Stage stage;
+    private final long count;
+    private final double mean;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long max;
+
+    public LatencyStatistics(String messageType, Stage stage, long count, double mean, long p50, long p90, long p99,
+                             long max) {
+        this.messageType = messageType;
+        this.stage = stage;
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    public String getMessageType() {
+        return messageType;
+    }
+
+    public Stage getStage() {
+        return stage;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP90() {
+        return p90;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public enum Stage {
+        /**
+         * 从发送到开始解析消息体，包括发送方队列、传输与接收方队列；进程内投递的消息为在投递队列中等待的时间。
+         * 以毫秒时间戳计算，跨节点时包含时钟偏差；只统计首次投递的即时消息
+         */
+        QUEUE_WAIT,
+        /**
+         * 解析消息体，包括解压；进程内投递的消息为复制消息体，不复制时不统计
+         */
+        DESERIALIZATION,
+        /**
+         * 监听器处理一条消息，不包括批量处理的监听器
+         */
+        HANDLER
+    }
+}
@@ -1,5 +1,10 @@
 package infrastructure.mq.service;
 
+import org.springframework.util.ClassUtils;
+
+import java.lang.reflect.Type;
+import java.time.Duration;
+
 /**
  * @author joeyh 2019/1/9 14:05
  */
@@ -11,6 +16,15 @@ public interface MessageListener<T> {
      */
     String forMessageType();
 
+    /**
+     * 获取监听器名称。同一消息类型可以有多个监听器，各自独立处理、重新投递，名称不能重复。
+     *
+     * @return listener name, 默认为监听器的类名
+     */
+    default String listenerName() {
+        return ClassUtils.getUserClass(getClass()).getName();
+    }
+
     /**
      * 获取消息体类型
      *
@@ -18,11 +32,70 @@ public interface MessageListener<T> {
      */
     Class<T> forMessageClass();
 
+    /**
+     * 获取消息体的泛型类型，消息体为泛型类型（如 {@code List<Order>}）时覆盖此方法
+     *
+     * @return message generic type, 默认为 {@link #forMessageClass()}
+     */
+    default Type forMessageGenericType() {
+        return forMessageClass();
+    }
+
     /**
      * 处理收到的消息
-     * <p>如接收失败需抛出异常，将重新投递消息。
+     * <p>如接收失败需抛出异常，将按 {@link #redeliveryPolicy()} 重新投递消息。
+     * <p>同一消息类型有多个监听器时消息体只解析一次，各监听器收到同一个对象，不应修改消息体。
      *
      * @param messageBody 消息体
      */
     void handle(T messageBody);
+
+    /**
+     * 获取重新投递策略
+     *
+     * @return 重新投递策略，返回null时使用全局配置
+     */
+    default RedeliveryPolicy redeliveryPolicy() {
+        return null;
+    }
+
+    /**
+     * 获取隔离舱策略
+     * <p>设置后该类型的消息在共享的工作线程上按优先级与并发上限处理；带分区键的消息仍在分区线程上按顺序处理。
+     *
+     * @return 隔离舱策略，返回null时在投递线程上直接处理
+     */
+    default BulkheadPolicy bulkheadPolicy() {
+        return null;
+    }
+
+    /**
+     * 获取合并策略
+     * <p>设置后消息在调度线程上处理，同一合并键的消息不会并发处理。
+     *
+     * @return 合并策略，返回null时不合并
+     */
+    default CoalescingPolicy<T> coalescingPolicy() {
+        return null;
+    }
+
+    /**
+     * 获取消息的存活时间
+     * <p>发送方按此设置即时消息的过期时间，过期后未处理的消息在解析消息体前丢弃。同一消息类型有多个监听器时取最长的存活时间。
+     *
+     * @return 存活时间，返回null时不过期
+     */
+    default Duration timeToLive() {
+        return null;
+    }
+
+    /**
+     * 进程内投递时是否复制消息体。
+     * <p>不复制时监听器收到的是发送方传入的对象本身，发送方在发送后不应再修改该对象。
+     *
+     * @return 需要复制时返回true
+     */
+    default boolean copyOnLocalDelivery() {
+        return false;
+    }
 }
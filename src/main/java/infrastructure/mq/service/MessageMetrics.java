@@ -0,0 +1,16 @@
+package infrastructure.mq.service;
+
+import java.util.List;
+
+/**
+ * 消息处理的延迟统计
+ */
+public interface MessageMetrics {
+
+    /**
+     * 获取各消息类型各阶段的延迟分布
+     *
+     * @return 启动以来的累计统计，按消息类型与阶段排序
+     */
+    List<LatencyStatistics> getLatencyStatistics();
+}
@@ -0,0 +1,10 @@
+package infrastructure.mq.service;
+
+/**
+ * 消息处理优先级。工作线程空闲时先处理高优先级类型的消息。
+ */
+public enum MessagePriority {
+    HIGH,
+    NORMAL,
+    LOW,
+}
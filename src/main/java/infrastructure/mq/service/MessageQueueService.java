@@ -2,6 +2,9 @@ package infrastructure.mq.service;
 
 import java.time.Duration;
 import java.time.OffsetDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author joeyh 2019/1/9 10:34
@@ -16,14 +19,65 @@ public interface MessageQueueService {
      */
     void send(String type, Object messageBody);
 
+    /**
+     * 批量发送同一类型的消息
+     *
+     * @param type          消息类型
+     * @param messageBodies 消息体
+     */
+    void sendAll(String type, Collection<?> messageBodies);
+
+    /**
+     * 发送带分区键的消息。分区键相同的消息按发送顺序依次处理，不同分区键的消息并行处理。
+     * <p>重新投递的消息不保证顺序。多个节点共同消费的发送方（Redis Stream）只保证同一节点上的顺序。
+     *
+     * @param type         消息类型
+     * @param messageBody  消息体
+     * @param partitionKey 分区键
+     */
+    void sendWithPartitionKey(String type, Object messageBody, String partitionKey);
+
+    /**
+     * 发送指定存活时间的消息，过期后未处理的消息被丢弃
+     *
+     * @param type        消息类型
+     * @param messageBody 消息体
+     * @param timeToLive  存活时间
+     */
+    void sendWithTtl(String type, Object messageBody, Duration timeToLive);
+
+    /**
+     * 异步发送消息
+     *
+     * @param type        消息类型
+     * @param messageBody 消息体
+     * @param ackLevel    确认级别
+     * @return 达到确认级别时完成，发送失败时异常完成。{@link AckLevel#HANDLED} 只在本进程处理消息时完成，超时后异常完成；
+     * 发送方的消息可能由其他进程处理时不发送，异常完成
+     */
+    CompletableFuture<Void> sendAsync(String type, Object messageBody, AckLevel ackLevel);
+
+    /**
+     * 发送请求消息并等待应答。请求消息由 {@link RequestListener} 处理，超时未处理的请求不再处理。
+     *
+     * @param type        消息类型
+     * @param messageBody 消息体
+     * @param replyClass  应答消息体类型
+     * @param timeout     等待应答的最长时间
+     * @return 收到应答时完成，超时或请求最终处理失败时异常完成；
+     * 发送方的消息可能由其他进程处理时不发送，异常完成
+     */
+    <R> CompletableFuture<R> request(String type, Object messageBody, Class<R> replyClass, Duration timeout);
+
     /**
      * 发送定时消息
      *
      * @param type        消息类型
      * @param messageBody 消息体
      * @param time        触发时间
+     * @return 定时消息，触发或取消前保留在 {@link #getScheduledMessages()} 中
      */
-    void send(String type, Object messageBody, OffsetDateTime time);
+    ScheduledMessage send(String type, Object messageBody, OffsetDateTime time);
 
     /**
      * 发送周期性定时消息
@@ -32,6 +86,22 @@ public interface MessageQueueService {
      * @param messageBody 消息体
      * @param time        首次触发时间
      * @param duration    两次发送的间隔时间
+     * @return 定时消息，取消前一直保留在 {@link #getScheduledMessages()} 中
+     */
+    ScheduledMessage send(String type, Object messageBody, OffsetDateTime time, Duration duration);
+
+    /**
+     * 按 cron 表达式发送定时消息，时区为系统默认时区
+     *
+     * @param type           消息类型
+     * @param messageBody    消息体
+     * @param cronExpression cron 表达式，格式同 Spring 的 {@code @Scheduled(cron = ...)}，如 "0 0 2 * * *"
+     * @return 定时消息，取消前一直保留在 {@link #getScheduledMessages()} 中
+     */
+    ScheduledMessage sendByCron(String type, Object messageBody, String cronExpression);
+
+    /**
+     * @return 尚未触发的定时消息，与尚未取消的周期消息和 cron 消息
      */
-    void send(String type, Object messageBody, OffsetDateTime time, Duration duration);
+    List<ScheduledMessage> getScheduledMessages();
 }
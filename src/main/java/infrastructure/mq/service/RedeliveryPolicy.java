@@ -0,0 +1,49 @@
+package infrastructure.mq.service;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 消息处理失败后的重新投递策略：指数退避加随机抖动，超过最大投递次数后进入死信队列。
+ */
+public class RedeliveryPolicy {
+    private int maxAttempts;
+    private Duration initialBackoff;
+    private Duration maxBackoff;
+    private double multiplier;
+    private double jitter;
+
+    /**
+     * @param maxAttempts    最大投递次数（包含首次投递），为1时不重新投递
+     * @param initialBackoff 首次重新投递前的等待时间
+     * @param maxBackoff     等待时间上限
+     * @param multiplier     每次重新投递等待时间的增长倍数
+     * @param jitter         随机抖动比例，取值[0, 1]
+     */
+    public RedeliveryPolicy(int maxAttempts, Duration initialBackoff, Duration maxBackoff, double multiplier, double jitter) {
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * 计算第 attempt 次投递失败后的等待时间
+     *
+     * @param attempt 已投递次数，从1开始
+     * @return 等待时间
+     */
+    public Duration backoff(int attempt) {
+        double millis = initialBackoff.toMillis() * Math.pow(multiplier, attempt - 1);
+        millis = Math.min(millis, maxBackoff.toMillis());
+        if (jitter > 0) {
+            millis = millis * (1 - jitter + 2 * jitter * ThreadLocalRandom.current().nextDouble());
+        }
+        return Duration.ofMillis((long) millis);
+    }
+}
@@ -0,0 +1,23 @@
+package infrastructure.mq.service;
+
+/**
+ * 处理请求并返回应答的监听器，配合 {@link MessageQueueService#request} 使用。
+ * <p>以普通消息收到时只处理，不发送应答。请求处理失败按重新投递策略重试，最终失败时请求方收到异常。
+ *
+ * @param <T> 请求消息体类型
+ * @param <R> 应答消息体类型
+ */
+public interface RequestListener<T, R> extends MessageListener<T> {
+    /**
+     * 处理请求
+     *
+     * @param request 请求消息体
+     * @return 应答消息体
+     */
+    R reply(T request);
+
+    @Override
+    default void handle(T messageBody) {
+        reply(messageBody);
+    }
+}
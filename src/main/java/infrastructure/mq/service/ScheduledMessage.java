@@ -0,0 +1,33 @@
+package infrastructure.mq.service;
+
+import java.time.OffsetDateTime;
+
+/**
+ * 已提交的定时消息，可取消或调整下一次触发时间。
+ */
+public interface ScheduledMessage {
+    String getId();
+
+    String getMessageType();
+
+    /**
+     * 调度方式：定时消息为触发时间，周期消息为首次触发时间与间隔，cron 消息为 cron 表达式
+     */
+    String getSchedule();
+
+    /**
+     * 取消定时消息，周期消息与 cron 消息此后不再触发
+     *
+     * @return 此前未被取消时返回true
+     */
+    boolean cancel();
+
+    boolean isCancelled();
+
+    /**
+     * 将下一次触发调整到指定时间，周期消息与 cron 消息此后按原有的间隔或表达式继续触发
+     *
+     * @param nextTime 下一次触发时间
+     */
+    void reschedule(OffsetDateTime nextTime);
+}
@@ -0,0 +1,42 @@
+package infrastructure.mq.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LocalMessageDeduplicatorTest {
+    private static final long LEASE_MILLIS = 100;
+
+    private final LocalMessageDeduplicator deduplicator = new LocalMessageDeduplicator(60000, 1000, LEASE_MILLIS);
+
+    @Test
+    public void reservedIdIsDuplicate() {
+        assertTrue(deduplicator.tryAcquire("m1"));
+        assertFalse(deduplicator.tryAcquire("m1"));
+        assertTrue(deduplicator.tryAcquire("m2"));
+    }
+
+    @Test
+    public void reservationExpiresAfterLease() throws InterruptedException {
+        assertTrue(deduplicator.tryAcquire("m1"));
+        Thread.sleep(LEASE_MILLIS * 2);
+        assertTrue(deduplicator.tryAcquire("m1"));
+        assertFalse(deduplicator.tryAcquire("m1"));
+    }
+
+    @Test
+    public void completedIdStaysDuplicateAfterLease() throws InterruptedException {
+        assertTrue(deduplicator.tryAcquire("m1"));
+        deduplicator.complete("m1");
+        Thread.sleep(LEASE_MILLIS * 2);
+        assertFalse(deduplicator.tryAcquire("m1"));
+    }
+
+    @Test
+    public void releasedIdCanBeAcquiredAgain() {
+        assertTrue(deduplicator.tryAcquire("m1"));
+        deduplicator.release("m1");
+        assertTrue(deduplicator.tryAcquire("m1"));
+    }
+}
@@ -0,0 +1,167 @@
+package infrastructure.mq.internal;
+
+import infrastructure.errorcode.ErrorCodeException;
+import infrastructure.errorcode.SystemErrorCode;
+import infrastructure.mq.provider.threading.ThreadingMessageSender;
+import infrastructure.mq.service.LatencyStatistics;
+import infrastructure.mq.service.MessageListener;
+import infrastructure.mq.service.RedeliveryPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.MDC;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LocalMessageDispatcherTest {
+    private static final String TYPE = "local";
+    private static final BlockingQueue<String> handled = new LinkedBlockingQueue<>();
+    private static volatile CountDownLatch blocked;
+
+    private static MessageConverter messageConverter;
+    private static ThreadingMessageSender messageSender;
+    private static HistogramMessageMetrics messageMetrics;
+    private static MessageReceiverImpl messageReceiver;
+
+    private LocalMessageDispatcher dispatcher;
+
+    @BeforeClass
+    public static void installReceiver() {
+        List<MessageListener> listeners = Collections.singletonList(new TestListener());
+        messageConverter = new MessageConverter(Collections.singletonMap(TYPE, String.class));
+        messageSender = new ThreadingMessageSender();
+        MessageRedelivery messageRedelivery = new MessageRedelivery(messageSender, messageConverter,
+                new InMemoryDeadLetterService(100, messageSender, messageConverter),
+                new RedeliveryPolicy(3, Duration.ofMillis(50), Duration.ofMillis(50), 2, 0));
+        messageMetrics = new HistogramMessageMetrics();
+        messageReceiver = new MessageReceiverImpl(messageConverter, listeners, messageRedelivery,
+                new StripedExecutor(1), 1, null, new MessageAcknowledger(5000),
+                new ReplyCorrelator(messageSender, messageConverter), messageMetrics, null);
+    }
+
+    @Before
+    public void setUp() {
+        handled.clear();
+        blocked = new CountDownLatch(1);
+        dispatcher = new LocalMessageDispatcher(messageReceiver, 1, 50);
+    }
+
+    @After
+    public void tearDown() {
+        blocked.countDown();
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void keyedMessagesAreHandledInOrder() throws InterruptedException {
+        for (int i = 0; i < 100; i++) {
+            assertTrue(dispatcher.dispatch(TYPE, "m" + i, "k", 0));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals("m" + i, handled.poll(2, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void fullQueueFallsBackToSender() throws InterruptedException {
+        fillQueue();
+        long start = System.nanoTime();
+        assertFalse(dispatcher.dispatch(TYPE, "overflow", null, 0));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 45);
+
+        MessageQueueServiceImpl messageQueueService = new MessageQueueServiceImpl(messageSender, messageConverter,
+                new MessageAcknowledger(5000), new ReplyCorrelator(messageSender, messageConverter), dispatcher);
+        messageQueueService.send(TYPE, "fallback");
+        assertEquals("fallback", handled.poll(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void fullQueueRejectsKeyedMessage() {
+        fillQueue();
+        try {
+            dispatcher.dispatch(TYPE, "keyed", "k", 0);
+            fail();
+        } catch (ErrorCodeException ex) {
+            assertEquals(SystemErrorCode.MQ_QUEUE_FULL, ex.getErrorCode());
+        }
+    }
+
+    @Test
+    public void dispatchAfterShutdownFallsBackToSender() {
+        dispatcher.shutdown();
+        assertFalse(dispatcher.dispatch(TYPE, "late", null, 0));
+    }
+
+    @Test
+    public void listenerRunsInTraceOfSender() throws InterruptedException {
+        MDC.put(MessageTracing.MDC_TRACE_ID, "1111111111111111");
+        MDC.put(MessageTracing.MDC_SPAN_ID, "2222222222222222");
+        try {
+            assertTrue(dispatcher.dispatch(TYPE, "trace", null, 0));
+        } finally {
+            MDC.clear();
+        }
+        assertEquals("trace 1111111111111111/2222222222222222", handled.poll(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void queueWaitIsRecorded() throws InterruptedException {
+        assertTrue(dispatcher.dispatch(TYPE, "m1", null, 0));
+        assertEquals("m1", handled.poll(2, TimeUnit.SECONDS));
+        assertTrue(messageMetrics.getLatencyStatistics().stream()
+                .anyMatch(s -> s.getStage() == LatencyStatistics.Stage.QUEUE_WAIT && s.getCount() > 0));
+    }
+
+    /**
+     * 第一条消息阻塞唯一的工作线程，之后的消息填满队列
+     */
+    private void fillQueue() {
+        assertTrue(dispatcher.dispatch(TYPE, "block", null, 0));
+        int dispatched = 0;
+        while (dispatcher.dispatch(TYPE, "filler", null, 0)) {
+            assertTrue(++dispatched <= 4096);
+        }
+    }
+
+    private static class TestListener implements MessageListener<String> {
+        @Override
+        public String forMessageType() {
+            return TYPE;
+        }
+
+        @Override
+        public Class<String> forMessageClass() {
+            return String.class;
+        }
+
+        @Override
+        public void handle(String messageBody) {
+            if (messageBody.startsWith("block")) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return;
+            }
+            if (messageBody.equals("trace")) {
+                handled.add(messageBody + " " + MDC.get(MessageTracing.MDC_TRACE_ID) + "/" +
+                        MDC.get(MessageTracing.MDC_PARENT_SPAN_ID));
+            } else if (!messageBody.equals("filler")) {
+                handled.add(messageBody);
+            }
+        }
+    }
+}
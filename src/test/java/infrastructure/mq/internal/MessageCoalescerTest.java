@@ -0,0 +1,85 @@
+package infrastructure.mq.internal;
+
+import infrastructure.mq.provider.threading.MessageScheduler;
+import infrastructure.mq.provider.threading.TimingWheelMessageScheduler;
+import infrastructure.mq.service.CoalescingPolicy;
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MessageCoalescerTest {
+    private final MessageScheduler scheduler = new TimingWheelMessageScheduler(Executors.newCachedThreadPool());
+    private final BlockingQueue<CompletableFuture<Boolean>> handling = new LinkedBlockingQueue<>();
+    private final List<Object> handled = new CopyOnWriteArrayList<>();
+    private final List<List<MessageEnvelope>> superseded = new CopyOnWriteArrayList<>();
+    private final MessageCoalescer coalescer = new MessageCoalescer(
+            CoalescingPolicy.<String>debounce(body -> body.startsWith("k") ? "k" : null, Duration.ofMillis(50)),
+            scheduler, this::handle);
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void supersededMessageCompletesWithMergedMessage() throws Exception {
+        MessageEnvelope first = new MessageEnvelope("t");
+        CompletableFuture<Boolean> firstReceived = coalescer.add("k1", first);
+        CompletableFuture<Boolean> secondReceived = coalescer.add("k2", new MessageEnvelope("t"));
+
+        CompletableFuture<Boolean> merged = handling.poll(2, TimeUnit.SECONDS);
+        assertNotNull(merged);
+        assertEquals(1, handled.size());
+        assertEquals("k2", handled.get(0));
+        assertEquals(1, superseded.get(0).size());
+        assertSame(first, superseded.get(0).get(0));
+        assertFalse(firstReceived.isDone());
+        assertFalse(secondReceived.isDone());
+
+        merged.complete(true);
+        assertTrue(firstReceived.get(1, TimeUnit.SECONDS));
+        assertTrue(secondReceived.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void supersededMessageIsNotReceivedWhenMergedMessageIsNot() throws Exception {
+        CompletableFuture<Boolean> firstReceived = coalescer.add("k1", new MessageEnvelope("t"));
+        coalescer.add("k2", new MessageEnvelope("t"));
+
+        handling.poll(2, TimeUnit.SECONDS).complete(false);
+        assertFalse(firstReceived.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void messageWithoutKeyIsHandledDirectly() {
+        CompletableFuture<Boolean> received = coalescer.add("x", null);
+        assertEquals(1, handled.size());
+        assertTrue(superseded.get(0).isEmpty());
+        assertFalse(received.isDone());
+        handling.poll().complete(true);
+        assertTrue(received.join());
+    }
+
+    private CompletableFuture<Boolean> handle(Object body, MessageEnvelope envelope,
+                                              List<MessageEnvelope> superseded) {
+        handled.add(body);
+        this.superseded.add(superseded);
+        CompletableFuture<Boolean> received = new CompletableFuture<>();
+        handling.add(received);
+        return received;
+    }
+}
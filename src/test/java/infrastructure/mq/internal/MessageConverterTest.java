@@ -0,0 +1,138 @@
+package infrastructure.mq.internal;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import infrastructure.errorcode.ErrorCodeException;
+import infrastructure.errorcode.SystemErrorCode;
+import org.junit.Test;
+
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessageConverterTest {
+    private static final String EVENT = "event";
+    private static final String EVENTS = "events";
+
+    private final MessageConverter messageConverter = new MessageConverter(messageTypes());
+
+    @Test
+    public void subclassBodyKeepsItsFields() {
+        OrderEvent event = new OrderEvent();
+        event.setName("created");
+        event.setOrderId(42);
+        MessageEnvelope envelope = messageConverter.readEnvelope(messageConverter.toBytes(EVENT, event));
+        String json = messageConverter.readBodyAsString(envelope);
+        assertTrue(json, json.contains("\"orderId\":42"));
+        assertEquals("created", ((Event) messageConverter.readBody(envelope)).getName());
+    }
+
+    @Test
+    public void subclassBodyKeepsItsFieldsInBuffer() {
+        OrderEvent event = new OrderEvent();
+        event.setOrderId(7);
+        byte[] bytes = messageConverter.toBuffer(EVENT, event).toByteArray();
+        String json = messageConverter.readBodyAsString(messageConverter.readEnvelope(bytes));
+        assertTrue(json, json.contains("\"orderId\":7"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void genericBodyIsCopied() {
+        Event first = new Event();
+        first.setName("first");
+        Event second = new OrderEvent();
+        second.setName("second");
+        List<Event> events = Arrays.asList(first, second);
+        List<Event> copy = (List<Event>) messageConverter.copy(EVENTS, events);
+        assertNotSame(events, copy);
+        assertEquals(2, copy.size());
+        assertEquals(Event.class, copy.get(0).getClass());
+        assertEquals("second", copy.get(1).getName());
+    }
+
+    @Test
+    public void compressedBodyRoundTrips() {
+        MessageConverter compressing = compressing();
+        MessageEnvelope envelope = compressing.readEnvelope(compressing.toBytes(EVENT, event(200)));
+        assertTrue(envelope.isCompressed());
+        assertEquals(200, ((Event) compressing.readBody(envelope)).getName().length());
+    }
+
+    @Test
+    public void rawLengthOverLimitIsIllegal() {
+        assertIllegalRawLength(4096);
+    }
+
+    @Test
+    public void rawLengthNotMatchingBodyIsIllegal() {
+        assertIllegalRawLength(100);
+    }
+
+    private static void assertIllegalRawLength(int rawLength) {
+        MessageConverter compressing = compressing();
+        MessageEnvelope envelope = compressing.readEnvelope(compressing.toBytes(EVENT, event(200)));
+        MessageEnvelope tampered = envelope.withAttempt(envelope.getAttempt());
+        tampered.setCompressed(rawLength);
+        try {
+            compressing.readBody(compressing.readEnvelope(compressing.toBytes(tampered)));
+            fail();
+        } catch (ErrorCodeException ex) {
+            assertEquals(SystemErrorCode.MQ_MSG_ILLEGAL, ex.getErrorCode());
+        }
+    }
+
+    /**
+     * 压缩超过16字节的消息体，解压上限1024字节
+     */
+    private static MessageConverter compressing() {
+        return new MessageConverter(messageTypes(), 16, Collections.emptyMap(), null, 1024);
+    }
+
+    private static Event event(int nameLength) {
+        Event event = new Event();
+        char[] name = new char[nameLength];
+        Arrays.fill(name, 'a');
+        event.setName(new String(name));
+        return event;
+    }
+
+    private static Map<String, Type> messageTypes() {
+        Map<String, Type> messageTypes = new HashMap<>();
+        messageTypes.put(EVENT, Event.class);
+        messageTypes.put(EVENTS, new TypeReference<List<Event>>() {
+        }.getType());
+        return messageTypes;
+    }
+
+    public static class Event {
+        private String name;
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+    }
+
+    public static class OrderEvent extends Event {
+        private long orderId;
+
+        public long getOrderId() {
+            return orderId;
+        }
+
+        public void setOrderId(long orderId) {
+            this.orderId = orderId;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package infrastructure.mq.internal;
+
+import infrastructure.mq.provider.MessageSender;
+import infrastructure.mq.provider.ScheduledTask;
+import org.junit.After;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageOutboxTest {
+    private final InMemoryOutboxMapper outboxMapper = new InMemoryOutboxMapper();
+    private final RecordingSender messageSender = new RecordingSender();
+    private final List<MessageOutbox> outboxes = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        outboxes.forEach(MessageOutbox::shutdown);
+    }
+
+    @Test
+    public void relayedRowIsSentInOrderAndDeleted() throws Exception {
+        MessageOutbox outbox = newOutbox(60000);
+        List<MessageOutbox.Entry> entries = Arrays.asList(entry("a", null), entry("b", "k"), entry("c", null));
+        outbox.relay(outbox.save(entries), entries);
+
+        messageSender.await(3);
+        assertEquals(Arrays.asList("a", "b", "c"), messageSender.sent);
+        assertTrue(outboxMapper.rows.isEmpty());
+    }
+
+    @Test
+    public void rowNotRelayedIsReclaimedAfterLease() throws Exception {
+        MessageOutbox outbox = newOutbox(200);
+        outbox.save(Arrays.asList(entry("a", null), entry("b", "k")));
+
+        Thread.sleep(100);
+        assertTrue(messageSender.sent.isEmpty());
+        messageSender.await(2);
+        assertEquals(Arrays.asList("a", "b"), messageSender.sent);
+        assertTrue(outboxMapper.rows.isEmpty());
+    }
+
+    @Test
+    public void reclaimedRowIsRelayedByOneNode() throws Exception {
+        MessageOutbox outbox = newOutbox(100);
+        newOutbox(100);
+        outbox.save(Collections.singletonList(entry("a", null)));
+
+        messageSender.await(1);
+        Thread.sleep(300);
+        assertEquals(Collections.singletonList("a"), messageSender.sent);
+    }
+
+    private MessageOutbox newOutbox(long leaseMillis) {
+        MessageOutbox outbox = new MessageOutbox(outboxMapper, messageSender, leaseMillis, 20, 10);
+        outboxes.add(outbox);
+        return outbox;
+    }
+
+    private static MessageOutbox.Entry entry(String body, String partitionKey) {
+        return new MessageOutbox.Entry("t", partitionKey, body.getBytes());
+    }
+
+    /**
+     * 记录发送的消息内容
+     */
+    private static class RecordingSender implements MessageSender {
+        private final List<String> sent = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void send(String messageType, byte[] messageBytes) {
+            sent.add(new String(messageBytes));
+        }
+
+        @Override
+        public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime time) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime firstTime,
+                                  Duration duration) {
+            throw new UnsupportedOperationException();
+        }
+
+        void await(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 2000;
+            while (sent.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    /**
+     * 内存中的发件箱表
+     */
+    static class InMemoryOutboxMapper implements OutboxMapper {
+        final Map<String, Row> rows = Collections.synchronizedMap(new LinkedHashMap<>());
+
+        @Override
+        public void insert(String id, long relayAt, byte[] payload) {
+            Row row = new Row();
+            row.setId(id);
+            row.setRelayAt(relayAt);
+            row.setPayload(payload);
+            rows.put(id, row);
+        }
+
+        @Override
+        public List<Row> selectDue(long now, int limit) {
+            synchronized (rows) {
+                return rows.values().stream().filter(r -> r.getRelayAt() <= now).limit(limit)
+                        .map(InMemoryOutboxMapper::copy).collect(Collectors.toList());
+            }
+        }
+
+        @Override
+        public int claim(String id, long relayAt, long next) {
+            synchronized (rows) {
+                Row row = rows.get(id);
+                if (row == null || row.getRelayAt() != relayAt) {
+                    return 0;
+                }
+                row.setRelayAt(next);
+                return 1;
+            }
+        }
+
+        @Override
+        public int delete(String id) {
+            return rows.remove(id) == null ? 0 : 1;
+        }
+
+        private static Row copy(Row source) {
+            Row row = new Row();
+            row.setId(source.getId());
+            row.setRelayAt(source.getRelayAt());
+            row.setPayload(source.getPayload());
+            return row;
+        }
+    }
+}
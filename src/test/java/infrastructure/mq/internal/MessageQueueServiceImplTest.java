@@ -0,0 +1,197 @@
+package infrastructure.mq.internal;
+
+import com.google.common.collect.ImmutableMap;
+import infrastructure.errorcode.ErrorCodeException;
+import infrastructure.errorcode.SystemErrorCode;
+import infrastructure.mq.provider.MessageSender;
+import infrastructure.mq.provider.ScheduledTask;
+import infrastructure.mq.service.AckLevel;
+import infrastructure.mq.service.ScheduledMessage;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessageQueueServiceImplTest {
+    private static final String TYPE = "t";
+    private static final String TTL_TYPE = "ttl";
+
+    private final MessageConverter messageConverter = new MessageConverter(
+            ImmutableMap.of(TYPE, String.class, TTL_TYPE, String.class), 0,
+            Collections.singletonMap(TTL_TYPE, Duration.ofMinutes(1)));
+    private final RemoteSender messageSender = new RemoteSender();
+    private final MessageQueueServiceImpl messageQueueService = new MessageQueueServiceImpl(messageSender,
+            messageConverter, new MessageAcknowledger(1000), new ReplyCorrelator(messageSender, messageConverter));
+
+    @Test
+    public void handledAckIsRejectedWhenAnotherProcessMayReceive() throws Exception {
+        CompletableFuture<Void> handled = messageQueueService.sendAsync(TYPE, "m1", AckLevel.HANDLED);
+        try {
+            handled.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof ErrorCodeException);
+            assertEquals(SystemErrorCode.MQ_ACK_UNSUPPORTED, ((ErrorCodeException) ex.getCause()).getErrorCode());
+        }
+        assertTrue(messageSender.sent.isEmpty());
+    }
+
+    @Test
+    public void persistedAckIsSupportedWhenAnotherProcessMayReceive() throws Exception {
+        messageQueueService.sendAsync(TYPE, "m1", AckLevel.PERSISTED).get(1, TimeUnit.SECONDS);
+        assertEquals(1, messageSender.sent.size());
+    }
+
+    @Test
+    public void requestIsRejectedWhenAnotherProcessMayReceive() throws Exception {
+        CompletableFuture<String> reply =
+                messageQueueService.request(TYPE, "m1", String.class, Duration.ofSeconds(1));
+        try {
+            reply.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof ErrorCodeException);
+            assertEquals(SystemErrorCode.MQ_REQUEST_UNSUPPORTED, ((ErrorCodeException) ex.getCause()).getErrorCode());
+        }
+        assertTrue(messageSender.sent.isEmpty());
+    }
+
+    @Test
+    public void messageExpiresAfterTimeToLiveOfItsType() {
+        long now = System.currentTimeMillis();
+        messageQueueService.send(TYPE, "m1");
+        messageQueueService.send(TTL_TYPE, "m2");
+        messageQueueService.sendWithTtl(TYPE, "m3", Duration.ofSeconds(10));
+
+        assertEquals(0, expiresAt(0));
+        assertExpiresAt(now + 60000, expiresAt(1));
+        assertExpiresAt(now + 10000, expiresAt(2));
+    }
+
+    @Test
+    public void scheduledMessageIsRegisteredUntilItFires() throws Exception {
+        ScheduledMessage scheduled =
+                messageQueueService.send(TYPE, "m1", OffsetDateTime.now().plus(200, ChronoUnit.MILLIS));
+        assertEquals(Collections.singletonList(scheduled), messageQueueService.getScheduledMessages());
+        Thread.sleep(500);
+        assertTrue(messageQueueService.getScheduledMessages().isEmpty());
+        assertFalse(messageSender.tasks.get(0).isCancelled());
+    }
+
+    @Test
+    public void cancelledScheduledMessageIsUnregistered() {
+        ScheduledMessage scheduled = messageQueueService.send(TYPE, "m1", OffsetDateTime.now().plusHours(1));
+        assertTrue(scheduled.cancel());
+        assertFalse(scheduled.cancel());
+        assertTrue(scheduled.isCancelled());
+        assertTrue(messageSender.tasks.get(0).isCancelled());
+        assertTrue(messageQueueService.getScheduledMessages().isEmpty());
+    }
+
+    @Test
+    public void rescheduleReplacesTheSenderTask() {
+        OffsetDateTime time = OffsetDateTime.now().plusHours(1);
+        ScheduledMessage scheduled = messageQueueService.send(TYPE, "m1", time, Duration.ofMinutes(5));
+        scheduled.reschedule(time.plusHours(1));
+
+        assertEquals(2, messageSender.tasks.size());
+        assertTrue(messageSender.tasks.get(0).isCancelled());
+        assertFalse(messageSender.tasks.get(1).isCancelled());
+        assertEquals(time.plusHours(1), messageSender.tasks.get(1).time);
+        assertEquals(Collections.singletonList(scheduled), messageQueueService.getScheduledMessages());
+
+        scheduled.cancel();
+        assertTrue(messageSender.tasks.get(1).isCancelled());
+        assertTrue(messageQueueService.getScheduledMessages().isEmpty());
+        try {
+            scheduled.reschedule(time);
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals(2, messageSender.tasks.size());
+        }
+    }
+
+    @Test
+    public void cronMessageIsSentUntilCancelled() throws Exception {
+        ScheduledMessage scheduled = messageQueueService.sendByCron(TYPE, "m1", "* * * * * *");
+        assertEquals(Collections.singletonList(scheduled), messageQueueService.getScheduledMessages());
+        long deadline = System.currentTimeMillis() + 2500;
+        while (messageSender.sent.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("m1", messageConverter.readBody(messageConverter.readEnvelope(messageSender.sent.get(0))));
+
+        scheduled.cancel();
+        assertTrue(messageQueueService.getScheduledMessages().isEmpty());
+        int sent = messageSender.sent.size();
+        Thread.sleep(1200);
+        assertEquals(sent, messageSender.sent.size());
+    }
+
+    private long expiresAt(int index) {
+        return messageConverter.readEnvelope(messageSender.sent.get(index)).getExpiresAt();
+    }
+
+    private static void assertExpiresAt(long expected, long actual) {
+        assertTrue(actual + " not near " + expected, actual >= expected && actual - expected < 1000);
+    }
+
+    /**
+     * 消息可能由其他进程接收的发送方，只记录发送的消息与提交的定时任务
+     */
+    private static class RemoteSender implements MessageSender {
+        private final List<byte[]> sent = new CopyOnWriteArrayList<>();
+        private final List<RecordedTask> tasks = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void send(String messageType, byte[] messageBytes) {
+            sent.add(messageBytes);
+        }
+
+        @Override
+        public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime time) {
+            RecordedTask task = new RecordedTask(time);
+            tasks.add(task);
+            return task;
+        }
+
+        @Override
+        public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime firstTime,
+                                  Duration duration) {
+            return send(messageType, messageBytes, firstTime);
+        }
+    }
+
+    private static class RecordedTask implements ScheduledTask {
+        private final OffsetDateTime time;
+        private volatile boolean cancelled;
+
+        RecordedTask(OffsetDateTime time) {
+            this.time = time;
+        }
+
+        @Override
+        public boolean cancel() {
+            boolean wasCancelled = cancelled;
+            cancelled = true;
+            return !wasCancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package infrastructure.mq.internal;
+
+import infrastructure.errorcode.ErrorCodeException;
+import infrastructure.errorcode.SystemErrorCode;
+import infrastructure.mq.provider.threading.ThreadingMessageSender;
+import infrastructure.mq.service.BatchMessageListener;
+import infrastructure.mq.service.BatchResult;
+import infrastructure.mq.service.BulkheadPolicy;
+import infrastructure.mq.service.CoalescingPolicy;
+import infrastructure.mq.service.MessageListener;
+import infrastructure.mq.service.MessagePriority;
+import infrastructure.mq.service.RedeliveryPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.reflect.Type;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessageReceiverImplTest {
+    private static final String ORDERED = "ordered";
+    private static final String BATCH = "batch";
+    private static final String BULKHEAD = "bulkhead";
+    private static final String FAN_OUT = "fan-out";
+    private static final String SHARED = "shared";
+    private static final String COALESCED = "coalesced";
+    private static final BlockingQueue<String> handled = new LinkedBlockingQueue<>();
+    private static volatile CountDownLatch blocked;
+    private static volatile boolean failing;
+
+    private static MessageConverter messageConverter;
+    private static InMemoryDeadLetterService deadLetterService;
+    private static MessageAcknowledger messageAcknowledger;
+    private static MessageReceiverImpl messageReceiver;
+
+    @BeforeClass
+    public static void installReceiver() {
+        List<MessageListener> listeners = Arrays.asList(new TestListener(ORDERED), new TestBatchListener(BATCH),
+                new TestBulkheadListener(BULKHEAD), new TestFanOutListener(FAN_OUT, "first", true),
+                new TestFanOutListener(FAN_OUT, "last", false), new TestFanOutListener(SHARED, "ok", false),
+                new TestFailingListener(SHARED, "failing"), new TestCoalescingListener(COALESCED));
+        Map<String, Type> messageTypes = new HashMap<>();
+        listeners.forEach(l -> messageTypes.put(l.forMessageType(), l.forMessageGenericType()));
+        messageConverter = new MessageConverter(messageTypes);
+        ThreadingMessageSender messageSender = new ThreadingMessageSender();
+        deadLetterService = new InMemoryDeadLetterService(100, messageSender, messageConverter);
+        MessageRedelivery messageRedelivery = new MessageRedelivery(messageSender, messageConverter,
+                deadLetterService,
+                new RedeliveryPolicy(3, Duration.ofMillis(50), Duration.ofMillis(50), 2, 0));
+        messageAcknowledger = new MessageAcknowledger(5000);
+        messageReceiver = new MessageReceiverImpl(messageConverter, listeners, messageRedelivery,
+                new StripedExecutor(4), 4, new LocalMessageDeduplicator(60000, 10000),
+                messageAcknowledger, new ReplyCorrelator(messageSender, messageConverter),
+                new HistogramMessageMetrics(), null);
+    }
+
+    @Before
+    public void setUp() {
+        handled.clear();
+        blocked = new CountDownLatch(1);
+        failing = false;
+    }
+
+    @After
+    public void tearDown() {
+        blocked.countDown();
+    }
+
+    @Test
+    public void keyedMessagesAreHandledInOrderPerKey() throws Exception {
+        List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            String key = "k" + i % 4;
+            futures.add(messageReceiver.onMessageReceivedAsync(keyed(ORDERED, key + ":" + i, key)));
+        }
+        for (CompletableFuture<Boolean> future : futures) {
+            assertTrue(future.get(2, TimeUnit.SECONDS));
+        }
+        Map<String, Integer> last = new HashMap<>();
+        for (String message : handled) {
+            String[] parts = message.substring(ORDERED.length() + 1).split(":");
+            int sequence = Integer.parseInt(parts[1]);
+            assertTrue(message, last.getOrDefault(parts[0], -1) < sequence);
+            last.put(parts[0], sequence);
+        }
+        assertEquals(100, handled.size());
+    }
+
+    @Test
+    public void keyedMessageCompletesAfterHandlerReturns() throws Exception {
+        CompletableFuture<Boolean> received = messageReceiver.onMessageReceivedAsync(keyed(ORDERED, "block-1", "k"));
+        CompletableFuture<Boolean> next = messageReceiver.onMessageReceivedAsync(keyed(ORDERED, "next", "k"));
+        Thread.sleep(100);
+        assertFalse(received.isDone());
+        assertFalse(next.isDone());
+        blocked.countDown();
+        assertTrue(received.get(2, TimeUnit.SECONDS));
+        assertTrue(next.get(2, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(ORDERED + "/block-1", ORDERED + "/next"), new ArrayList<>(handled));
+    }
+
+    @Test
+    public void batchedMessageCompletesAfterItsBatchIsHandled() throws Exception {
+        CompletableFuture<Boolean> first = messageReceiver.onMessageReceivedAsync(message(BATCH, "block-1"));
+        CompletableFuture<Boolean> second = messageReceiver.onMessageReceivedAsync(message(BATCH, "b-2"));
+        Thread.sleep(300);
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+        blocked.countDown();
+        assertTrue(first.get(2, TimeUnit.SECONDS));
+        assertTrue(second.get(2, TimeUnit.SECONDS));
+        assertTrue(handled.contains(BATCH + "/b-2"));
+    }
+
+    @Test
+    public void nullBatchResultCountsAsSuccess() throws Exception {
+        new TestBatchListener(BATCH).handle("null");
+        assertTrue(messageReceiver.onMessageReceivedAsync(message(BATCH, "null")).get(2, TimeUnit.SECONDS));
+        assertEquals(BATCH + "/null", handled.poll(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void batchResultIndexOutOfRangeIsIgnored() throws Exception {
+        assertTrue(messageReceiver.onMessageReceivedAsync(message(BATCH, "bad-index")).get(2, TimeUnit.SECONDS));
+        assertEquals(BATCH + "/bad-index", handled.poll(2, TimeUnit.SECONDS));
+        assertNull(handled.poll(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void bulkheadMessageCompletesAfterHandlerReturns() throws Exception {
+        CompletableFuture<Boolean> received = messageReceiver.onMessageReceivedAsync(message(BULKHEAD, "block-1"));
+        Thread.sleep(100);
+        assertFalse(received.isDone());
+        blocked.countDown();
+        assertTrue(received.get(2, TimeUnit.SECONDS));
+        assertEquals(BULKHEAD + "/block-1", handled.poll(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void fanOutMessageCompletesAfterEveryListenerReturns() throws Exception {
+        CompletableFuture<Boolean> received = messageReceiver.onMessageReceivedAsync(message(FAN_OUT, "block-1"));
+        assertEquals(FAN_OUT + "/block-1", handled.poll(2, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertFalse(received.isDone());
+        blocked.countDown();
+        assertTrue(received.get(2, TimeUnit.SECONDS));
+        assertEquals(FAN_OUT + "/block-1", handled.poll(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void requeuedDeadLetterIsHandledAgainByFailedListener() throws Exception {
+        failing = true;
+        assertTrue(messageReceiver.onMessageReceivedAsync(message(SHARED, "m1")).get(2, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 2000;
+        while (deadLetterService.getDeadLetters(SHARED).isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, deadLetterService.getDeadLetters(SHARED).size());
+        assertTrue(handled.contains(SHARED + "/m1"));
+        handled.clear();
+
+        failing = false;
+        assertEquals(1, deadLetterService.requeue(SHARED));
+        assertEquals(SHARED + "/failing/m1", handled.poll(2, TimeUnit.SECONDS));
+        assertNull(handled.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void supersededMessageFailsWithMergedMessage() throws Exception {
+        failing = true;
+        MessageEnvelope first = messageConverter.newEnvelope(COALESCED);
+        MessageEnvelope second = messageConverter.newEnvelope(COALESCED);
+        CompletableFuture<Void> firstHandled = messageAcknowledger.track(first.getId());
+        CompletableFuture<Void> secondHandled = messageAcknowledger.track(second.getId());
+        CompletableFuture<Boolean> firstReceived =
+                messageReceiver.onMessageReceivedAsync(messageConverter.toBytes(first, "m1"));
+        CompletableFuture<Boolean> secondReceived =
+                messageReceiver.onMessageReceivedAsync(messageConverter.toBytes(second, "m2"));
+
+        //the merged message is scheduled for redelivery, the superseded one is not redelivered on its own
+        assertTrue(firstReceived.get(2, TimeUnit.SECONDS));
+        assertTrue(secondReceived.get(2, TimeUnit.SECONDS));
+        for (CompletableFuture<Void> result : Arrays.asList(firstHandled, secondHandled)) {
+            try {
+                result.get(3, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException ex) {
+                assertEquals("failing", ex.getCause().getMessage());
+            }
+        }
+        assertTrue(handled.isEmpty());
+    }
+
+    @Test
+    public void expiredMessageIsDroppedBeforeDeserialization() throws Exception {
+        MessageEnvelope envelope = messageConverter.newEnvelope(ORDERED);
+        envelope.setExpiresAt(System.currentTimeMillis() - 1);
+        CompletableFuture<Void> result = messageAcknowledger.track(envelope.getId());
+        //a body of the wrong shape would fail to deserialize and be redelivered
+        byte[] messageBytes = messageConverter.toBytes(envelope, Collections.singletonMap("a", 1));
+
+        assertTrue(messageReceiver.onMessageReceivedAsync(messageBytes).get(2, TimeUnit.SECONDS));
+        assertExpired(result);
+        assertNull(handled.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void messageExpiredWhileQueuedIsNotHandled() throws Exception {
+        CompletableFuture<Boolean> blocking =
+                messageReceiver.onMessageReceivedAsync(keyed(ORDERED, "block-1", "k"));
+        MessageEnvelope envelope = messageConverter.newEnvelope(ORDERED);
+        envelope.setPartitionKey("k");
+        envelope.setExpiresAt(System.currentTimeMillis() + 100);
+        CompletableFuture<Void> result = messageAcknowledger.track(envelope.getId());
+        CompletableFuture<Boolean> received =
+                messageReceiver.onMessageReceivedAsync(messageConverter.toBytes(envelope, "expiring"));
+        Thread.sleep(200);
+
+        blocked.countDown();
+        assertTrue(blocking.get(2, TimeUnit.SECONDS));
+        assertTrue(received.get(2, TimeUnit.SECONDS));
+        assertExpired(result);
+        assertEquals(Collections.singletonList(ORDERED + "/block-1"), new ArrayList<>(handled));
+    }
+
+    private static void assertExpired(CompletableFuture<Void> result) throws Exception {
+        try {
+            result.get(2, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof ErrorCodeException);
+            assertEquals(SystemErrorCode.MQ_MSG_EXPIRED, ((ErrorCodeException) ex.getCause()).getErrorCode());
+        }
+    }
+
+    private static byte[] message(String type, String body) {
+        return messageConverter.toBytes(type, body);
+    }
+
+    private static byte[] keyed(String type, String body, String partitionKey) {
+        MessageEnvelope envelope = messageConverter.newEnvelope(type);
+        envelope.setPartitionKey(partitionKey);
+        return messageConverter.toBytes(envelope, body);
+    }
+
+    /**
+     * 每批最多3条。以 block 开头的消息阻塞整批到测试结束；null 的批次返回null；
+     * bad-index 的批次标记超出范围的下标
+     */
+    private static class TestBatchListener extends TestListener implements BatchMessageListener<String> {
+        TestBatchListener(String messageType) {
+            super(messageType);
+        }
+
+        @Override
+        public int maxBatchSize() {
+            return 3;
+        }
+
+        @Override
+        public BatchResult handleBatch(List<String> messageBodies) {
+            messageBodies.forEach(super::handle);
+            if (messageBodies.contains("null")) {
+                return null;
+            }
+            if (messageBodies.contains("bad-index")) {
+                return BatchResult.success().fail(messageBodies.size(), new IllegalStateException())
+                        .fail(-1, new IllegalStateException());
+            }
+            return BatchResult.success();
+        }
+
+        @Override
+        public void handle(String messageBody) {
+            BatchMessageListener.super.handle(messageBody);
+        }
+    }
+
+    /**
+     * 在隔离舱中逐条处理
+     */
+    private static class TestBulkheadListener extends TestListener {
+        TestBulkheadListener(String messageType) {
+            super(messageType);
+        }
+
+        @Override
+        public BulkheadPolicy bulkheadPolicy() {
+            return new BulkheadPolicy(1, 10, MessagePriority.NORMAL);
+        }
+    }
+
+    /**
+     * 同一消息类型的多个监听器之一，blocking 为false时不阻塞以 block 开头的消息
+     */
+    private static class TestFanOutListener extends TestListener {
+        private final String name;
+        private final boolean blocking;
+
+        TestFanOutListener(String messageType, String name, boolean blocking) {
+            super(messageType);
+            this.name = name;
+            this.blocking = blocking;
+        }
+
+        @Override
+        public String listenerName() {
+            return name;
+        }
+
+        @Override
+        boolean blocks(String messageBody) {
+            return blocking && super.blocks(messageBody);
+        }
+    }
+
+    /**
+     * failing 为true时处理失败，成功处理的消息记录为 类型/名称/消息体
+     */
+    private static class TestFailingListener extends TestListener {
+        private final String name;
+
+        TestFailingListener(String messageType, String name) {
+            super(messageType);
+            this.name = name;
+        }
+
+        @Override
+        public String listenerName() {
+            return name;
+        }
+
+        @Override
+        public void handle(String messageBody) {
+            if (failing) {
+                throw new IllegalStateException("failing");
+            }
+            super.handle(name + "/" + messageBody);
+        }
+    }
+
+    /**
+     * 合并同一类型的所有消息，failing 为true时处理失败
+     */
+    private static class TestCoalescingListener extends TestListener {
+        TestCoalescingListener(String messageType) {
+            super(messageType);
+        }
+
+        @Override
+        public CoalescingPolicy<String> coalescingPolicy() {
+            return CoalescingPolicy.debounce(body -> "k", Duration.ofMillis(100));
+        }
+
+        @Override
+        public void handle(String messageBody) {
+            if (failing) {
+                throw new IllegalStateException("failing");
+            }
+            super.handle(messageBody);
+        }
+    }
+
+    /**
+     * 记录处理过的消息体，以 block 开头的消息阻塞到测试结束
+     */
+    private static class TestListener implements MessageListener<String> {
+        private final String messageType;
+
+        TestListener(String messageType) {
+            this.messageType = messageType;
+        }
+
+        @Override
+        public String forMessageType() {
+            return messageType;
+        }
+
+        @Override
+        public Class<String> forMessageClass() {
+            return String.class;
+        }
+
+        @Override
+        public void handle(String messageBody) {
+            if (blocks(messageBody)) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            handled.add(messageType + "/" + messageBody);
+        }
+
+        boolean blocks(String messageBody) {
+            return messageBody.startsWith("block");
+        }
+    }
+}
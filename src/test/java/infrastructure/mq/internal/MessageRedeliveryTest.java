@@ -0,0 +1,122 @@
+package infrastructure.mq.internal;
+
+import infrastructure.mq.provider.MessageSender;
+import infrastructure.mq.provider.ScheduledTask;
+import infrastructure.mq.provider.redis.InMemoryScheduleCommands;
+import infrastructure.mq.provider.redis.RedisScheduledMessageSender;
+import infrastructure.mq.service.DeadLetter;
+import infrastructure.mq.service.RedeliveryPolicy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageRedeliveryTest {
+    private static final String TYPE = "t";
+    private static final long BACKOFF_MILLIS = 100;
+
+    private final MessageConverter messageConverter =
+            new MessageConverter(Collections.singletonMap(TYPE, String.class));
+    private final BlockingQueue<byte[]> sent = new LinkedBlockingQueue<>();
+    private final InMemoryScheduleCommands commands = new InMemoryScheduleCommands();
+    private final InMemoryDeadLetterService deadLetterService =
+            new InMemoryDeadLetterService(10, new RecordingSender(), messageConverter);
+    private RedisScheduledMessageSender scheduledSender;
+    private MessageRedelivery messageRedelivery;
+
+    @Before
+    public void setUp() {
+        scheduledSender = new RedisScheduledMessageSender(new RecordingSender(), commands, 16, 20, 1000);
+        messageRedelivery = new MessageRedelivery(scheduledSender, messageConverter, deadLetterService,
+                new RedeliveryPolicy(3, Duration.ofMillis(BACKOFF_MILLIS), Duration.ofMillis(BACKOFF_MILLIS), 2, 0));
+    }
+
+    @After
+    public void tearDown() {
+        scheduledSender.destroy();
+    }
+
+    @Test
+    public void redeliveryIsScheduledBeforeFailureReturns() throws Exception {
+        MessageEnvelope envelope = envelope("m1");
+        assertTrue(messageRedelivery.onFailure(envelope, null, new IllegalStateException()));
+        //the retry is held by the shared schedule, not by a timer of this node
+        assertEquals(1, commands.size());
+        assertNull(sent.poll(BACKOFF_MILLIS / 2, TimeUnit.MILLISECONDS));
+
+        byte[] retried = sent.poll(2, TimeUnit.SECONDS);
+        assertNotNull(retried);
+        MessageEnvelope retry = messageConverter.readEnvelope(retried);
+        assertEquals(envelope.getId(), retry.getId());
+        assertEquals(2, retry.getAttempt());
+        assertEquals("m1", messageConverter.readBody(retry));
+    }
+
+    @Test
+    public void lastAttemptIsDeadLetteredAndRequeuedAsFirstAttempt() throws Exception {
+        MessageEnvelope envelope = envelope("m1").withAttempt(3);
+        assertFalse(messageRedelivery.onFailure(envelope, null, new IllegalStateException("boom")));
+        assertEquals(0, commands.size());
+
+        List<DeadLetter> deadLetters = deadLetterService.getDeadLetters(TYPE);
+        assertEquals(1, deadLetters.size());
+        assertEquals(3, deadLetters.get(0).getAttempts());
+        assertTrue(deadLetters.get(0).getError().contains("boom"));
+
+        assertEquals(1, deadLetterService.requeueAll());
+        assertTrue(deadLetterService.getDeadLetters(TYPE).isEmpty());
+        MessageEnvelope requeued = messageConverter.readEnvelope(sent.poll(1, TimeUnit.SECONDS));
+        assertEquals(1, requeued.getAttempt());
+        assertNotEquals(envelope.getId(), requeued.getId());
+        assertEquals("m1", messageConverter.readBody(requeued));
+    }
+
+    @Test
+    public void fullDeadLetterQueueDropsOldest() {
+        for (int i = 0; i < 12; i++) {
+            deadLetterService.add(envelope("m" + i), new IllegalStateException());
+        }
+        List<DeadLetter> deadLetters = deadLetterService.getDeadLetters(TYPE);
+        assertEquals(10, deadLetters.size());
+        assertEquals("\"m2\"", deadLetters.get(0).getBody());
+    }
+
+    private MessageEnvelope envelope(String body) {
+        return messageConverter.readEnvelope(messageConverter.toBytes(TYPE, body));
+    }
+
+    /**
+     * 记录即时发送的消息
+     */
+    private class RecordingSender implements MessageSender {
+        @Override
+        public void send(String messageType, byte[] messageBytes) {
+            sent.add(messageBytes);
+        }
+
+        @Override
+        public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime time) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime firstTime,
+                                  Duration duration) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
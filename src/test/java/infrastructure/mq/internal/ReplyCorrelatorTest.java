@@ -0,0 +1,98 @@
+package infrastructure.mq.internal;
+
+import infrastructure.errorcode.ErrorCodeException;
+import infrastructure.errorcode.SystemErrorCode;
+import infrastructure.mq.provider.MessageSender;
+import infrastructure.mq.provider.ScheduledTask;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReplyCorrelatorTest {
+    private final MessageConverter messageConverter =
+            new MessageConverter(Collections.singletonMap("t", String.class));
+    private final LoopbackSender messageSender = new LoopbackSender();
+    private final ReplyCorrelator correlator = new ReplyCorrelator(messageSender, messageConverter);
+
+    @Test
+    public void replyCompletesRequest() throws Exception {
+        CompletableFuture<String> reply = correlator.register("c1", String.class, 5000);
+        correlator.reply("c1", "r1");
+        assertEquals("r1", reply.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void errorReplyFailsRequest() throws Exception {
+        CompletableFuture<String> reply = correlator.register("c1", String.class, 5000);
+        correlator.replyError("c1", new IllegalStateException("boom"));
+        assertErrorCode(reply, SystemErrorCode.MQ_REQUEST_FAILED);
+    }
+
+    @Test
+    public void requestTimesOutWithoutReply() throws Exception {
+        CompletableFuture<String> reply = correlator.register("c1", String.class, 50);
+        assertErrorCode(reply, SystemErrorCode.MQ_REQUEST_TIMEOUT);
+
+        //a late reply is dropped
+        correlator.reply("c1", "r1");
+        assertEquals(1, messageSender.received);
+    }
+
+    @Test
+    public void replyOnlyCompletesMatchingRequest() throws Exception {
+        CompletableFuture<String> first = correlator.register("c1", String.class, 5000);
+        CompletableFuture<String> second = correlator.register("c2", String.class, 5000);
+        correlator.reply("c2", "r2");
+        assertEquals("r2", second.get(1, TimeUnit.SECONDS));
+        assertFalse(first.isDone());
+
+        correlator.cancel("c1", new IllegalStateException());
+        assertTrue(first.isCompletedExceptionally());
+    }
+
+    private void assertErrorCode(CompletableFuture<?> reply, SystemErrorCode errorCode) throws Exception {
+        try {
+            reply.get(2, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof ErrorCodeException);
+            assertEquals(errorCode, ((ErrorCodeException) ex.getCause()).getErrorCode());
+        }
+    }
+
+    /**
+     * 把应答直接交回关联器，相当于消息总由本进程接收的发送方
+     */
+    private class LoopbackSender implements MessageSender {
+        private volatile int received;
+
+        @Override
+        public void send(String messageType, byte[] messageBytes) {
+            MessageEnvelope envelope = messageConverter.readEnvelope(messageBytes);
+            assertTrue(correlator.isReply(envelope));
+            received++;
+            correlator.onReply(envelope);
+        }
+
+        @Override
+        public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime time) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime firstTime,
+                                  Duration duration) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package infrastructure.mq.internal;
+
+import infrastructure.errorcode.ErrorCodeException;
+import infrastructure.errorcode.SystemErrorCode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class StripedExecutorTest {
+    private final CountDownLatch blocked = new CountDownLatch(1);
+    private StripedExecutor executor;
+
+    @Before
+    public void setUp() {
+        executor = new StripedExecutor(1, 2, 50);
+    }
+
+    @After
+    public void tearDown() {
+        blocked.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void fullStripeRejectsAfterTimeout() {
+        executor.execute("k", this::awaitBlocked);
+        executor.execute("k", () -> {
+        });
+        long start = System.nanoTime();
+        try {
+            executor.execute("k", () -> {
+            });
+            fail();
+        } catch (ErrorCodeException ex) {
+            assertEquals(SystemErrorCode.MQ_QUEUE_FULL, ex.getErrorCode());
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 45);
+    }
+
+    @Test
+    public void tasksOfOneKeyRunInOrder() throws InterruptedException {
+        StripedExecutor wide = new StripedExecutor(4, 1000, 1000);
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < 500; i++) {
+            int sequence = i;
+            wide.execute("k", () -> order.add(sequence));
+        }
+        wide.execute("k", done::countDown);
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+        wide.shutdown();
+    }
+
+    @Test
+    public void shutdownRunsQueuedTasksAndRejectsNewOnes() throws InterruptedException {
+        StripedExecutor executor = new StripedExecutor(1, 10, 50);
+        CountDownLatch ran = new CountDownLatch(1);
+        executor.execute("k", this::awaitBlocked);
+        executor.execute("k", ran::countDown);
+        executor.shutdown();
+        try {
+            executor.execute("k", () -> {
+            });
+            fail();
+        } catch (RejectedExecutionException ex) {
+            //expected
+        }
+        blocked.countDown();
+        assertTrue(ran.await(2, TimeUnit.SECONDS));
+    }
+
+    private void awaitBlocked() {
+        try {
+            blocked.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package infrastructure.mq.internal;
+
+import infrastructure.mq.provider.MessageSender;
+import infrastructure.mq.provider.ScheduledTask;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TransactionalMessageQueueServiceTest {
+    private static final String TYPE = "t";
+
+    private final MessageConverter messageConverter =
+            new MessageConverter(Collections.singletonMap(TYPE, String.class));
+    private final RecordingSender messageSender = new RecordingSender();
+    private final MessageOutboxTest.InMemoryOutboxMapper outboxMapper = new MessageOutboxTest.InMemoryOutboxMapper();
+    private final MessageOutbox messageOutbox = new MessageOutbox(outboxMapper, messageSender, 60000, 60000, 10);
+    private final TransactionTemplate transactionTemplate = new TransactionTemplate(new TestTransactionManager());
+
+    @After
+    public void tearDown() {
+        messageOutbox.shutdown();
+    }
+
+    @Test
+    public void bufferedMessagesAreSentInOrderAfterCommit() {
+        TransactionalMessageQueueService messageQueueService = newService(null);
+        transactionTemplate.execute(status -> {
+            messageQueueService.send(TYPE, "a");
+            messageQueueService.sendWithPartitionKey(TYPE, "b", "k");
+            messageQueueService.sendAll(TYPE, Arrays.asList("c", "d"));
+            messageQueueService.sendWithTtl(TYPE, "e", Duration.ofMinutes(1));
+            assertTrue(messageSender.sent.isEmpty());
+            return null;
+        });
+        assertEquals(Arrays.asList("a", "b", "c", "d", "e"), messageSender.sent);
+    }
+
+    @Test
+    public void bufferedMessagesAreDiscardedOnRollback() {
+        TransactionalMessageQueueService messageQueueService = newService(messageOutbox);
+        transactionTemplate.execute(status -> {
+            messageQueueService.send(TYPE, "a");
+            status.setRollbackOnly();
+            return null;
+        });
+        assertTrue(messageSender.sent.isEmpty());
+        assertTrue(outboxMapper.rows.isEmpty());
+    }
+
+    @Test
+    public void messageSentAfterCommitIsSentDirectly() {
+        TransactionalMessageQueueService messageQueueService = newService(null);
+        transactionTemplate.execute(status -> {
+            messageQueueService.send(TYPE, "a");
+            registerAfterCommit(() -> messageQueueService.send(TYPE, "b"));
+            return null;
+        });
+        assertEquals(Arrays.asList("a", "b"), messageSender.sent);
+    }
+
+    @Test
+    public void messageFirstSentAfterCommitIsSent() {
+        TransactionalMessageQueueService messageQueueService = newService(null);
+        transactionTemplate.execute(status -> {
+            registerAfterCommit(() -> messageQueueService.send(TYPE, "a"));
+            return null;
+        });
+        assertEquals(Collections.singletonList("a"), messageSender.sent);
+    }
+
+    @Test
+    public void outboxRowIsWrittenBeforeCommitAndRelayedAfterCommit() throws Exception {
+        TransactionalMessageQueueService messageQueueService = newService(messageOutbox);
+        transactionTemplate.execute(status -> {
+            messageQueueService.send(TYPE, "a");
+            messageQueueService.sendWithPartitionKey(TYPE, "b", "k");
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void beforeCommit(boolean readOnly) {
+                    //after the outbox row is written
+                    messageQueueService.send(TYPE, "c");
+                }
+            });
+            return null;
+        });
+        long deadline = System.currentTimeMillis() + 2000;
+        while (messageSender.sent.size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(3, messageSender.sent.size());
+        assertTrue(messageSender.sent.contains("c"));
+        assertTrue(messageSender.sent.indexOf("a") < messageSender.sent.indexOf("b"));
+        assertTrue(outboxMapper.rows.isEmpty());
+    }
+
+    private TransactionalMessageQueueService newService(MessageOutbox messageOutbox) {
+        MessageQueueServiceImpl messageQueueService = new MessageQueueServiceImpl(messageSender, messageConverter,
+                new MessageAcknowledger(1000), new ReplyCorrelator(messageSender, messageConverter));
+        return new TransactionalMessageQueueService(messageQueueService, messageConverter, messageOutbox);
+    }
+
+    private static void registerAfterCommit(Runnable action) {
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    /**
+     * 记录发送的消息体
+     */
+    private class RecordingSender implements MessageSender {
+        private final List<String> sent = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void send(String messageType, byte[] messageBytes) {
+            sent.add((String) messageConverter.readBody(messageConverter.readEnvelope(messageBytes)));
+        }
+
+        @Override
+        public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime time) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime firstTime,
+                                  Duration duration) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * 每次开始新事务，只驱动事务同步
+     */
+    private static class TestTransactionManager extends AbstractPlatformTransactionManager {
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+        }
+    }
+}
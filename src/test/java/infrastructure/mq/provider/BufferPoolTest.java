@@ -0,0 +1,48 @@
+package infrastructure.mq.provider;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class BufferPoolTest {
+    @Test
+    public void releasedBufferIsReused() {
+        BufferPool pool = new BufferPool(false, 4096, 2, 8192);
+        ByteBuffer buffer = pool.acquire(1000);
+        assertEquals(1024, buffer.capacity());
+        pool.release(buffer);
+        assertEquals(1024, pool.getFreeBytes());
+        assertSame(buffer, pool.acquire(1000));
+        assertEquals(0, pool.getFreeBytes());
+    }
+
+    @Test
+    public void freeBytesAreCapped() {
+        BufferPool pool = new BufferPool(false, 4096, 8, 6144);
+        ByteBuffer first = pool.acquire(4096);
+        ByteBuffer second = pool.acquire(4096);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(4096, pool.getFreeBytes());
+
+        ByteBuffer small = pool.acquire(2048);
+        pool.release(small);
+        assertEquals(6144, pool.getFreeBytes());
+        assertSame(first, pool.acquire(4096));
+        assertNotSame(second, pool.acquire(4096));
+    }
+
+    @Test
+    public void buffersPerSizeAreCapped() {
+        BufferPool pool = new BufferPool(false, 4096, 1, 1 << 20);
+        ByteBuffer first = pool.acquire(256);
+        ByteBuffer second = pool.acquire(256);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(256, pool.getFreeBytes());
+    }
+}
@@ -0,0 +1,289 @@
+package infrastructure.mq.provider.log;
+
+import infrastructure.bean.CharsetUtils;
+import infrastructure.mq.provider.MessageReceiver;
+import infrastructure.mq.provider.ScheduledTask;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LogMessageSenderTest {
+    private static final int SEGMENT_SIZE = 256;
+    private static final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    private static final Map<String, CompletableFuture<Boolean>> pending = new ConcurrentHashMap<>();
+    private static final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+    private static volatile CountDownLatch blocked;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private List<LogMessageSender> senders = new ArrayList<>();
+
+    @BeforeClass
+    public static void installReceiver() {
+        new MessageReceiver() {
+            @Override
+            public boolean onMessageReceived(byte[] messageBytes) {
+                String message = new String(messageBytes, CharsetUtils.UTF_8);
+                CountDownLatch latch = blocked;
+                if (message.startsWith("block") && latch != null) {
+                    try {
+                        latch.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return true;
+                }
+                received.add(message);
+                return true;
+            }
+
+            /**
+             * 以 pending 开头的消息在测试完成其结果前不算处理完，以 reject 开头的消息首次不接收
+             */
+            @Override
+            public CompletableFuture<Boolean> onMessageReceivedAsync(byte[] messageBytes) {
+                String message = new String(messageBytes, CharsetUtils.UTF_8);
+                int attempt = attempts.computeIfAbsent(message, m -> new AtomicInteger()).incrementAndGet();
+                if (message.startsWith("pending")) {
+                    CompletableFuture<Boolean> future = new CompletableFuture<>();
+                    pending.put(message, future);
+                    received.add(message);
+                    return future;
+                }
+                if (message.startsWith("reject") && attempt == 1) {
+                    return CompletableFuture.completedFuture(false);
+                }
+                return super.onMessageReceivedAsync(messageBytes);
+            }
+        };
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder("log");
+        received.clear();
+        pending.clear();
+        attempts.clear();
+        blocked = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        CountDownLatch latch = blocked;
+        if (latch != null) {
+            latch.countDown();
+        }
+        for (LogMessageSender sender : senders) {
+            sender.shutdown();
+        }
+    }
+
+    @Test
+    public void deliversAllMessagesAcrossSegments() throws Exception {
+        LogMessageSender sender = open();
+        for (int i = 0; i < 20; i++) {
+            sender.send("t", bytes(message(i)));
+        }
+        List<String> messages = take(20);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(messages.contains(message(i)));
+        }
+        //consumed segments are deleted at the next checkpoint
+        Thread.sleep(1200);
+        assertTrue(segmentFiles().length <= 2);
+    }
+
+    @Test
+    public void redeliversUnhandledMessageAfterRestart() throws Exception {
+        LogMessageSender sender = open();
+        sender.send("t", bytes(blocking(1)));
+        Thread.sleep(1200);
+        close(sender);
+
+        blocked.countDown();
+        blocked = null;
+        received.clear();
+        open();
+        assertEquals(blocking(1), received.poll(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void pendingDelayedMessageDoesNotPinSegments() throws Exception {
+        LogMessageSender sender = open();
+        sender.send("t", bytes("delayed"), OffsetDateTime.now().plusSeconds(3));
+        for (int i = 0; i < 20; i++) {
+            sender.send("t", bytes(message(i)));
+        }
+        take(20);
+        Thread.sleep(1500);
+        assertFalse(new File(directory, segmentName(0)).exists());
+        close(sender);
+
+        open();
+        assertNull(received.poll(500, TimeUnit.MILLISECONDS));
+        assertEquals("delayed", received.poll(4, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancelledDelayedMessageStaysCancelledAfterRestart() throws Exception {
+        LogMessageSender sender = open();
+        ScheduledTask task = sender.send("t", bytes("cancelled"), OffsetDateTime.now().plusSeconds(2));
+        sender.send("t", bytes("kept"), OffsetDateTime.now().plusSeconds(2));
+        assertTrue(task.cancel());
+        Thread.sleep(1200);
+        close(sender);
+
+        open();
+        assertEquals("kept", received.poll(4, TimeUnit.SECONDS));
+        assertNull(received.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void skipsCorruptedRecordInSealedSegment() throws Exception {
+        //the blocked first message keeps the consumer offset, and so the segments, in place
+        LogMessageSender sender = open();
+        sender.send("t", bytes(blocking(0)));
+        for (int i = 1; i < 6; i++) {
+            sender.send("t", bytes(message(i)));
+        }
+        close(sender);
+        blocked.countDown();
+        blocked = null;
+
+        //each record is 17 + 50 bytes, so the first segment holds three records
+        try (RandomAccessFile file = new RandomAccessFile(new File(directory, segmentName(0)), "rw")) {
+            file.seek(67 + 17 + 10);
+            file.write('#');
+        }
+        open();
+        List<String> messages = take(5);
+        assertFalse(messages.contains(message(1)));
+        assertTrue(messages.contains(blocking(0)));
+        assertTrue(messages.contains(message(2)));
+        assertTrue(messages.contains(message(5)));
+        assertNull(received.poll(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void messageNotHandledBeforeShutdownIsRedelivered() throws Exception {
+        LogMessageSender sender = open();
+        sender.send("t", bytes("pending-handled"));
+        sender.send("t", bytes("pending-unhandled"));
+        take(2);
+        pending.get("pending-handled").complete(true);
+        Thread.sleep(1200);
+        close(sender);
+
+        open();
+        assertEquals("pending-unhandled", received.poll(2, TimeUnit.SECONDS));
+        assertNull(received.poll(300, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void rejectedMessageIsRedelivered() throws Exception {
+        LogMessageSender sender = open();
+        sender.send("t", bytes("reject-1"));
+        assertEquals("reject-1", received.poll(3, TimeUnit.SECONDS));
+        assertEquals(2, attempts.get("reject-1").get());
+    }
+
+    @Test
+    public void keyedMessagesAreHandedOverInLogOrder() throws Exception {
+        LogMessageSender sender = open();
+        for (int i = 0; i < 20; i++) {
+            sender.send("t", "k", bytes(message(i)));
+        }
+        List<String> messages = take(20);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(message(i), messages.get(i));
+        }
+    }
+
+    @Test
+    public void sendAfterShutdownFailsFast() throws Exception {
+        LogMessageSender sender = open();
+        close(sender);
+        try {
+            sender.send("t", bytes("late"));
+            fail();
+        } catch (IllegalStateException | CompletionException ex) {
+            //expected
+        }
+    }
+
+    private LogMessageSender open() throws IOException {
+        LogMessageSender sender = new LogMessageSender(directory, SEGMENT_SIZE);
+        senders.add(sender);
+        return sender;
+    }
+
+    private void close(LogMessageSender sender) throws IOException {
+        senders.remove(sender);
+        sender.shutdown();
+    }
+
+    private File[] segmentFiles() {
+        return directory.listFiles((dir, name) -> name.endsWith(".log"));
+    }
+
+    private static String segmentName(long baseOffset) {
+        return String.format("%020d.log", baseOffset);
+    }
+
+    /**
+     * 50字节的消息
+     */
+    private static String message(int i) {
+        return String.format("message-%042d", i);
+    }
+
+    /**
+     * 50字节的消息，处理时阻塞直到测试结束
+     */
+    private static String blocking(int i) {
+        return String.format("block-%044d", i);
+    }
+
+    private static byte[] bytes(String message) {
+        return message.getBytes(CharsetUtils.UTF_8);
+    }
+
+    private static List<String> take(int count) throws InterruptedException {
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String message = received.poll(3, TimeUnit.SECONDS);
+            if (message == null) {
+                fail("received " + messages.size() + " of " + count + " messages");
+            }
+            messages.add(message);
+        }
+        return messages;
+    }
+}
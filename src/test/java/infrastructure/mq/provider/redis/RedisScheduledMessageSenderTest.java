@@ -0,0 +1,150 @@
+package infrastructure.mq.provider.redis;
+
+import infrastructure.bean.CharsetUtils;
+import infrastructure.mq.provider.MessageSender;
+import infrastructure.mq.provider.ScheduledTask;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RedisScheduledMessageSenderTest {
+    private static final long POLL_INTERVAL_MILLIS = 20;
+    private static final long LEASE_MILLIS = 300;
+
+    private final BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+    private final AtomicInteger failures = new AtomicInteger();
+    private InMemoryScheduleCommands commands;
+    private RedisScheduledMessageSender sender;
+
+    @Before
+    public void setUp() {
+        commands = new InMemoryScheduleCommands();
+        sender = new RedisScheduledMessageSender(new RecordingSender(), commands, 16, POLL_INTERVAL_MILLIS,
+                LEASE_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        sender.destroy();
+    }
+
+    @Test
+    public void scheduledMessageIsSentOnceThenRemoved() throws Exception {
+        sender.send("t", bytes("m1"), OffsetDateTime.now().plusNanos(TimeUnit.MILLISECONDS.toNanos(50)));
+        assertEquals("m1", sent.poll(2, TimeUnit.SECONDS));
+        assertNull(sent.poll(LEASE_MILLIS * 2, TimeUnit.MILLISECONDS));
+        assertEquals(0, commands.size());
+    }
+
+    @Test
+    public void failedSendIsRetried() throws Exception {
+        failures.set(2);
+        sender.send("t", bytes("m1"), OffsetDateTime.now());
+        assertEquals("m1", sent.poll(2, TimeUnit.SECONDS));
+        waitForEmpty();
+    }
+
+    @Test
+    public void claimNotSentWithinLeaseIsReclaimed() throws Exception {
+        sender.shutdown();
+        long now = System.currentTimeMillis();
+        commands.register("crashed", now, "t", bytes("m1"), 0, now);
+        //a node that claims the message and dies before sending it
+        assertEquals(1, commands.claim(now, 16, now + LEASE_MILLIS, now - LEASE_MILLIS).size());
+
+        sender = new RedisScheduledMessageSender(new RecordingSender(), commands, 16, POLL_INTERVAL_MILLIS,
+                LEASE_MILLIS);
+        assertNull(sent.poll(LEASE_MILLIS / 2, TimeUnit.MILLISECONDS));
+        assertEquals("m1", sent.poll(2, TimeUnit.SECONDS));
+        assertNull(sent.poll(LEASE_MILLIS * 2, TimeUnit.MILLISECONDS));
+        assertEquals(0, commands.size());
+    }
+
+    @Test
+    public void periodicMessageKeepsFiring() throws Exception {
+        sender.send("t", bytes("p"), OffsetDateTime.now(), Duration.ofMillis(100));
+        long deadline = System.currentTimeMillis() + LEASE_MILLIS * 4;
+        int fired = 0;
+        while (System.currentTimeMillis() < deadline) {
+            if (sent.poll(50, TimeUnit.MILLISECONDS) != null) {
+                fired++;
+            }
+        }
+        assertTrue("fired " + fired, fired >= 8);
+        assertEquals(1, commands.size());
+    }
+
+    @Test
+    public void periodicMessageNoNodeRefreshesIsRemoved() throws Exception {
+        long now = System.currentTimeMillis();
+        commands.register("periodic:removed", now + 50, "t", bytes("p"), 100, now - LEASE_MILLIS * 2);
+        assertNull(sent.poll(300, TimeUnit.MILLISECONDS));
+        assertEquals(0, commands.size());
+    }
+
+    @Test
+    public void cancelledPeriodicMessageStops() throws Exception {
+        ScheduledTask task = sender.send("t", bytes("p"), OffsetDateTime.now(), Duration.ofMillis(50));
+        assertEquals("p", sent.poll(2, TimeUnit.SECONDS));
+        assertTrue(task.cancel());
+        Thread.sleep(POLL_INTERVAL_MILLIS * 2);
+        sent.clear();
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals(0, commands.size());
+    }
+
+    @Test
+    public void destroyStopsPolling() throws Exception {
+        sender.destroy();
+        commands.register("late", System.currentTimeMillis(), "t", bytes("m1"), 0, System.currentTimeMillis());
+        assertNull(sent.poll(POLL_INTERVAL_MILLIS * 5, TimeUnit.MILLISECONDS));
+        assertEquals(1, commands.size());
+    }
+
+    private void waitForEmpty() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (commands.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, commands.size());
+    }
+
+    private static byte[] bytes(String message) {
+        return message.getBytes(CharsetUtils.UTF_8);
+    }
+
+    /**
+     * 记录发送的消息，failures 大于0时发送失败并减一
+     */
+    private class RecordingSender implements MessageSender {
+        @Override
+        public void send(String messageType, byte[] messageBytes) {
+            if (failures.getAndDecrement() > 0) {
+                throw new IllegalStateException("send failed");
+            }
+            sent.add(new String(messageBytes, CharsetUtils.UTF_8));
+        }
+
+        @Override
+        public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime time) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public ScheduledTask send(String messageType, byte[] messageBytes, OffsetDateTime firstTime,
+                                  Duration duration) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package infrastructure.mq.provider.redis;
+
+import infrastructure.bean.CharsetUtils;
+import infrastructure.mq.provider.MessageReceiver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RedisStreamMessageConsumerTest {
+    private static final String STREAM = "infra:mq:test";
+    private static final long CLAIM_IDLE_MILLIS = 200;
+    private static final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    private static final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+    private static final Map<String, CompletableFuture<Boolean>> pending = new ConcurrentHashMap<>();
+    private static volatile Predicate<String> accept = m -> true;
+
+    private InMemoryStreamCommands commands;
+    private RedisStreamMessageSender sender;
+    private RedisStreamMessageConsumer consumer;
+
+    @BeforeClass
+    public static void installReceiver() {
+        new MessageReceiver() {
+            @Override
+            public boolean onMessageReceived(byte[] messageBytes) {
+                String message = new String(messageBytes, CharsetUtils.UTF_8);
+                attempts.computeIfAbsent(message, m -> new AtomicInteger()).incrementAndGet();
+                if (message.startsWith("throw") && attempts.get(message).get() == 1) {
+                    throw new IllegalStateException("first attempt fails");
+                }
+                if (!accept.test(message)) {
+                    return false;
+                }
+                received.add(message);
+                return true;
+            }
+
+            /**
+             * 以 pending 开头的消息在测试完成其结果前不算处理完
+             */
+            @Override
+            public CompletableFuture<Boolean> onMessageReceivedAsync(byte[] messageBytes) {
+                String message = new String(messageBytes, CharsetUtils.UTF_8);
+                if (message.startsWith("pending")) {
+                    attempts.computeIfAbsent(message, m -> new AtomicInteger()).incrementAndGet();
+                    return pending.computeIfAbsent(message, m -> new CompletableFuture<>());
+                }
+                return super.onMessageReceivedAsync(messageBytes);
+            }
+        };
+    }
+
+    @Before
+    public void setUp() {
+        received.clear();
+        attempts.clear();
+        pending.clear();
+        accept = m -> true;
+        commands = new InMemoryStreamCommands();
+        sender = new RedisStreamMessageSender(commands, STREAM, 10000);
+        consumer = new RedisStreamMessageConsumer(commands, STREAM, 16, CLAIM_IDLE_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        consumer.shutdown();
+        sender.shutdown();
+    }
+
+    @Test
+    public void handledMessagesAreAcked() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            sender.send("t", bytes("m" + i));
+        }
+        for (int i = 0; i < 50; i++) {
+            assertTrue(received.poll(2, TimeUnit.SECONDS) != null);
+        }
+        waitForNoPending();
+        assertEquals(50, commands.getEntries(STREAM).size());
+    }
+
+    @Test
+    public void rejectedMessageIsClaimedAndRedelivered() throws Exception {
+        AtomicInteger rejections = new AtomicInteger();
+        accept = m -> !m.equals("retry") || rejections.incrementAndGet() > 2;
+        sender.send("t", bytes("retry"));
+        assertEquals("retry", received.poll(3, TimeUnit.SECONDS));
+        assertEquals(3, attempts.get("retry").get());
+        waitForNoPending();
+    }
+
+    @Test
+    public void failedMessageIsClaimedAndRedelivered() throws Exception {
+        sender.send("t", bytes("throw-1"));
+        assertEquals("throw-1", received.poll(3, TimeUnit.SECONDS));
+        assertEquals(2, attempts.get("throw-1").get());
+        waitForNoPending();
+    }
+
+    @Test
+    public void unackedMessageIsNotRedeliveredBeforeIdleTimeout() throws Exception {
+        accept = m -> false;
+        sender.send("t", bytes("slow"));
+        long deadline = System.currentTimeMillis() + 1000;
+        while (!attempts.containsKey("slow") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(CLAIM_IDLE_MILLIS / 2);
+        assertEquals(1, attempts.get("slow").get());
+        assertEquals(1, commands.getPendingCount(STREAM, RedisStreamMessageConsumer.GROUP));
+        assertNull(received.poll(10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void messageIsAckedAfterHandlingCompletes() throws Exception {
+        sender.send("t", bytes("pending-1"));
+        long deadline = System.currentTimeMillis() + 1000;
+        while (!pending.containsKey("pending-1") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(CLAIM_IDLE_MILLIS / 2);
+        assertEquals(1, commands.getPendingCount(STREAM, RedisStreamMessageConsumer.GROUP));
+        pending.get("pending-1").complete(true);
+        waitForNoPending();
+    }
+
+    @Test
+    public void messageStillHandledIsNotClaimedBySameConsumer() throws Exception {
+        sender.send("t", bytes("pending-2"));
+        long deadline = System.currentTimeMillis() + 1000;
+        while (!pending.containsKey("pending-2") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(CLAIM_IDLE_MILLIS * 3);
+        assertEquals(1, attempts.get("pending-2").get());
+        pending.get("pending-2").complete(true);
+        waitForNoPending();
+    }
+
+    @Test
+    public void onlyIdleMessagesOfOtherConsumersAreClaimed() throws Exception {
+        String stream = "infra:mq:test:claim";
+        commands.createGroup(stream, "g");
+        List<byte[]> payloads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            payloads.add(bytes("c" + i));
+        }
+        commands.addAll(stream, payloads, 100);
+        commands.readGroup(stream, "g", "self", 2);
+        commands.readGroup(stream, "g", "dead", 2);
+
+        assertTrue(commands.claimIdle(stream, "g", "self", CLAIM_IDLE_MILLIS, 1).isEmpty());
+        Thread.sleep(CLAIM_IDLE_MILLIS);
+        List<StreamEntry> claimed = commands.claimIdle(stream, "g", "self", CLAIM_IDLE_MILLIS, 1);
+        assertEquals(1, claimed.size());
+        assertEquals("c2", new String(claimed.get(0).getPayload(), CharsetUtils.UTF_8));
+        assertEquals(1, commands.claimIdle(stream, "g", "self", CLAIM_IDLE_MILLIS, 10).size());
+        assertEquals(2, commands.getDeliveryCount(stream, "g", claimed.get(0).getId()));
+    }
+
+    @Test
+    public void entriesOfOneBatchAreAddedInOrder() {
+        List<byte[]> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(bytes("b" + i));
+        }
+        accept = m -> false;
+        sender.sendAll("t", batch);
+        List<StreamEntry> entries = commands.getEntries(STREAM);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("b" + i, new String(entries.get(i).getPayload(), CharsetUtils.UTF_8));
+        }
+    }
+
+    private void waitForNoPending() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (commands.getPendingCount(STREAM, RedisStreamMessageConsumer.GROUP) > 0 &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, commands.getPendingCount(STREAM, RedisStreamMessageConsumer.GROUP));
+    }
+
+    private static byte[] bytes(String message) {
+        return message.getBytes(CharsetUtils.UTF_8);
+    }
+}
@@ -0,0 +1,96 @@
+package infrastructure.mq.provider.threading;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrencyLimiterTest {
+    private static final String TYPE = "t";
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void limitGrowsByOnePerWindowWhileHalfIsInFlight() {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.aimd(4, 1, 10);
+        acquire(limiter, 2);
+        samples(limiter, 4, MILLIS, false);
+        assertEquals(5, limiter.getLimit(TYPE));
+    }
+
+    @Test
+    public void limitStaysWhileLessThanHalfIsInFlight() {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.aimd(4, 1, 10);
+        acquire(limiter, 1);
+        samples(limiter, 20, MILLIS, false);
+        assertEquals(4, limiter.getLimit(TYPE));
+    }
+
+    @Test
+    public void failuresBackOffOncePerWindow() {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.aimd(10, 1, 20);
+        samples(limiter, 9, MILLIS, false);
+        limiter.onSample(TYPE, MILLIS, true);
+        assertEquals(9, limiter.getLimit(TYPE));
+
+        samples(limiter, 8, MILLIS, true);
+        assertEquals(9, limiter.getLimit(TYPE));
+        limiter.onSample(TYPE, MILLIS, true);
+        assertEquals(8, limiter.getLimit(TYPE));
+    }
+
+    @Test
+    public void latencyOverTwiceTheAverageBacksOffAfterWarmUp() {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.aimd(10, 1, 20);
+        samples(limiter, 9, MILLIS, false);
+        //within the warm-up samples latency is not judged
+        limiter.onSample(TYPE, 100 * MILLIS, false);
+        assertEquals(10, limiter.getLimit(TYPE));
+
+        limiter = ConcurrencyLimiter.aimd(10, 1, 20);
+        samples(limiter, 10, MILLIS, false);
+        limiter.onSample(TYPE, MILLIS * 19 / 10, false);
+        assertEquals(10, limiter.getLimit(TYPE));
+        limiter.onSample(TYPE, 3 * MILLIS, false);
+        assertEquals(9, limiter.getLimit(TYPE));
+    }
+
+    @Test
+    public void limitIsClampedToMinAndMax() {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.aimd(2, 2, 3);
+        samples(limiter, 50, MILLIS, true);
+        assertEquals(2, limiter.getLimit(TYPE));
+
+        acquire(limiter, 2);
+        samples(limiter, 50, MILLIS, false);
+        assertEquals(3, limiter.getLimit(TYPE));
+    }
+
+    @Test
+    public void fixedLimitIgnoresSamples() {
+        ConcurrencyLimiter limiter = ConcurrencyLimiter.fixed(2);
+        acquire(limiter, 2);
+        assertFalse(limiter.tryAcquire(TYPE));
+        samples(limiter, 50, MILLIS, true);
+        assertEquals(2, limiter.getLimit(TYPE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void initialLimitMustBeWithinMinAndMax() {
+        ConcurrencyLimiter.aimd(1, 2, 3);
+    }
+
+    private static void acquire(ConcurrencyLimiter limiter, int count) {
+        for (int i = 0; i < count; i++) {
+            assertTrue(limiter.tryAcquire(TYPE));
+        }
+    }
+
+    private static void samples(ConcurrencyLimiter limiter, int count, long latencyNanos, boolean failed) {
+        for (int i = 0; i < count; i++) {
+            limiter.onSample(TYPE, latencyNanos, failed);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package infrastructure.mq.provider.threading;
+
+import infrastructure.bean.CharsetUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+public class SpillFileTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void typesSanitizedToSameNameUseSeparateFiles() throws IOException {
+        File directory = folder.newFolder("spill");
+        File slash = SpillFile.fileOf(directory, "order/created");
+        File underscore = SpillFile.fileOf(directory, "order_created");
+        assertNotEquals(slash, underscore);
+        assertEquals(slash, SpillFile.fileOf(directory, "order/created"));
+
+        SpillFile first = new SpillFile(slash);
+        SpillFile second = new SpillFile(underscore);
+        first.append(message("first"));
+        second.append(message("second"));
+        assertEquals("first", new String(first.poll().bytes, CharsetUtils.UTF_8));
+        assertEquals("second", new String(second.poll().bytes, CharsetUtils.UTF_8));
+        assertNull(first.poll());
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void messagesArePolledInAppendOrder() throws IOException {
+        SpillFile spillFile = new SpillFile(SpillFile.fileOf(folder.newFolder("spill"), "t"));
+        for (int i = 0; i < 5; i++) {
+            spillFile.append(message("m" + i));
+        }
+        assertEquals(5, spillFile.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals("m" + i, new String(spillFile.poll().bytes, CharsetUtils.UTF_8));
+        }
+        assertEquals(0, spillFile.size());
+        spillFile.close();
+    }
+
+    private static QueuedMessage message(String message) {
+        return new QueuedMessage(message.getBytes(CharsetUtils.UTF_8), System.nanoTime());
+    }
+}
@@ -0,0 +1,175 @@
+package infrastructure.mq.provider.threading;
+
+import infrastructure.bean.CharsetUtils;
+import infrastructure.mq.provider.MessageReceiver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ThreadingMessageSenderTest {
+    private static final String TYPE = "t";
+    private static final BlockingQueue<CompletableFuture<Boolean>> handling = new LinkedBlockingQueue<>();
+    private static final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+    private static volatile CountDownLatch blocked;
+
+    private final ConcurrencyLimiter concurrencyLimiter = ConcurrencyLimiter.aimd(1, 1, 1);
+    private ThreadingMessageSender sender;
+
+    @BeforeClass
+    public static void installReceiver() {
+        new PendingReceiver();
+    }
+
+    @Before
+    public void setUp() {
+        blocked = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() {
+        blocked.countDown();
+        handling.forEach(result -> result.complete(true));
+        handling.clear();
+        received.clear();
+        sender.shutdown();
+    }
+
+    @Test
+    public void platformWorkerKeepsPermitUntilHandled() throws Exception {
+        limitToOne(DispatchMode.PLATFORM);
+        permitIsHeldUntilHandled();
+    }
+
+    @Test
+    public void virtualWorkerKeepsPermitUntilHandled() throws Exception {
+        limitToOne(DispatchMode.VIRTUAL);
+        permitIsHeldUntilHandled();
+    }
+
+    @Test
+    public void scheduledMessageIsNotDelayedByBusyDeliveryThreads() throws Exception {
+        sender = new ThreadingMessageSender(SchedulerMode.TIMING_WHEEL);
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < threads; i++) {
+            sender.send(TYPE + i, bytes("block-" + i));
+        }
+        for (int i = 0; i < threads; i++) {
+            assertNotNull(received.poll(2, TimeUnit.SECONDS));
+        }
+        sender.send(TYPE, bytes("timed"), OffsetDateTime.now().plus(50, ChronoUnit.MILLIS));
+        assertEquals("timed", received.poll(2, TimeUnit.SECONDS));
+
+        blocked.countDown();
+        for (int i = 0; i <= threads; i++) {
+            handling.poll(2, TimeUnit.SECONDS).complete(true);
+        }
+    }
+
+    @Test
+    public void staleMessagesAreShedWhileBacklogIsDeep() throws Exception {
+        sender = new ThreadingMessageSender(SchedulerMode.EXECUTOR, 100, OverflowPolicy.BLOCK, 1000, null, 2, 50,
+                DispatchMode.PLATFORM, concurrencyLimiter);
+        for (int i = 1; i <= 5; i++) {
+            sender.send(TYPE, bytes("m" + i));
+        }
+        CompletableFuture<Boolean> first = handling.poll(2, TimeUnit.SECONDS);
+        assertNotNull(first);
+        Thread.sleep(100);
+
+        //m2 and m3 are dropped while two or more messages wait behind them, the rest are handled however old
+        first.complete(true);
+        for (int i = 0; i < 2; i++) {
+            handling.poll(2, TimeUnit.SECONDS).complete(true);
+        }
+        assertEquals(Arrays.asList("m1", "m4", "m5"), new ArrayList<>(received));
+        assertEquals(2, sender.getQueueStatistics().get(0).getShed());
+        waitForNoneInFlight();
+    }
+
+    @Test
+    public void freshMessagesAreNotShed() throws Exception {
+        sender = new ThreadingMessageSender(SchedulerMode.EXECUTOR, 100, OverflowPolicy.BLOCK, 1000, null, 1,
+                60000, DispatchMode.PLATFORM, concurrencyLimiter);
+        for (int i = 1; i <= 3; i++) {
+            sender.send(TYPE, bytes("m" + i));
+        }
+        for (int i = 0; i < 3; i++) {
+            handling.poll(2, TimeUnit.SECONDS).complete(true);
+        }
+        assertEquals(Arrays.asList("m1", "m2", "m3"), new ArrayList<>(received));
+        assertEquals(0, sender.getQueueStatistics().get(0).getShed());
+        waitForNoneInFlight();
+    }
+
+    private void limitToOne(DispatchMode dispatchMode) {
+        sender = new ThreadingMessageSender(SchedulerMode.EXECUTOR, 100, OverflowPolicy.BLOCK, 1000, null, 0, 0,
+                dispatchMode, concurrencyLimiter);
+    }
+
+    private void permitIsHeldUntilHandled() throws Exception {
+        sender.send(TYPE, bytes("m1"));
+        sender.send(TYPE, bytes("m2"));
+        CompletableFuture<Boolean> first = handling.poll(2, TimeUnit.SECONDS);
+        assertNotNull(first);
+        assertNull(handling.poll(200, TimeUnit.MILLISECONDS));
+
+        first.complete(true);
+        CompletableFuture<Boolean> second = handling.poll(2, TimeUnit.SECONDS);
+        assertNotNull(second);
+        second.complete(true);
+        waitForNoneInFlight();
+    }
+
+    private void waitForNoneInFlight() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (concurrencyLimiter.getInFlight(TYPE) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, concurrencyLimiter.getInFlight(TYPE));
+    }
+
+    private static byte[] bytes(String message) {
+        return message.getBytes(CharsetUtils.UTF_8);
+    }
+
+    /**
+     * 每条消息返回未完成的结果，由测试完成。以 block 开头的消息阻塞处理线程到测试结束
+     */
+    private static class PendingReceiver extends MessageReceiver {
+        @Override
+        public boolean onMessageReceived(byte[] messageBytes) {
+            return onMessageReceivedAsync(messageBytes).join();
+        }
+
+        @Override
+        public CompletableFuture<Boolean> onMessageReceivedAsync(byte[] messageBytes) {
+            String message = new String(messageBytes, CharsetUtils.UTF_8);
+            received.add(message);
+            if (message.startsWith("block")) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            CompletableFuture<Boolean> result = new CompletableFuture<>();
+            handling.add(result);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package infrastructure.mq.provider.threading;
+
+import infrastructure.mq.provider.ScheduledTask;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimingWheelMessageSchedulerTest {
+    private ExecutorService executor;
+    private TimingWheelMessageScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        scheduler = new TimingWheelMessageScheduler(executor);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void runsDelayedTaskAfterDelay() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        scheduler.schedule(latch::countDown, 50);
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 45);
+    }
+
+    @Test
+    public void runsTasksBeyondOneWheelRound() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        scheduler.schedule(latch::countDown, 700);
+        assertFalse(latch.await(500, TimeUnit.MILLISECONDS));
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancelledTaskDoesNotRun() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        ScheduledTask task = scheduler.schedule(runs::incrementAndGet, 50);
+        assertTrue(task.cancel());
+        assertFalse(task.cancel());
+        Thread.sleep(150);
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void periodicTaskLongerThanPeriodDoesNotOverlap() throws InterruptedException {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger runs = new AtomicInteger();
+        ScheduledTask task = scheduler.scheduleAtFixedRate(() -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(30);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            runs.incrementAndGet();
+            running.decrementAndGet();
+        }, 0, 5);
+        Thread.sleep(300);
+        task.cancel();
+        assertEquals(1, maxRunning.get());
+        assertTrue(runs.get() >= 3);
+    }
+
+    @Test
+    public void cancelStopsPeriodicTask() throws InterruptedException {
+        AtomicInteger runs = new AtomicInteger();
+        ScheduledTask task = scheduler.scheduleAtFixedRate(runs::incrementAndGet, 0, 10);
+        Thread.sleep(100);
+        task.cancel();
+        Thread.sleep(30);
+        int afterCancel = runs.get();
+        Thread.sleep(100);
+        assertEquals(afterCancel, runs.get());
+        assertTrue(afterCancel > 0);
+    }
+}
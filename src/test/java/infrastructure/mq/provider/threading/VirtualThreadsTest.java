@@ -0,0 +1,40 @@
+package infrastructure.mq.provider.threading;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.concurrent.ThreadFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class VirtualThreadsTest {
+    @Test
+    public void supportedFromJava21() {
+        String version = System.getProperty("java.specification.version");
+        boolean java21 = !version.startsWith("1.") && Integer.parseInt(version) >= 21;
+        assertEquals(java21, VirtualThreads.isSupported());
+    }
+
+    @Test
+    public void factoryNamesThreadsByPrefix() throws InterruptedException {
+        Assume.assumeTrue(VirtualThreads.isSupported());
+        ThreadFactory factory = VirtualThreads.factory("test-virtual-");
+        Thread first = factory.newThread(() -> {
+        });
+        Thread second = factory.newThread(() -> {
+        });
+        assertEquals("test-virtual-0", first.getName());
+        assertEquals("test-virtual-1", second.getName());
+    }
+
+    @Test
+    public void factoryIsUnsupportedBeforeJava21() {
+        Assume.assumeTrue(!VirtualThreads.isSupported());
+        try {
+            VirtualThreads.factory("test-virtual-");
+            fail();
+        } catch (UnsupportedOperationException ignored) {
+        }
+    }
+}